@@ -0,0 +1,55 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import android.app.job.JobInfo;
+import android.content.Context;
+import android.os.Build;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SdkSuppress;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * System jobs of {@link BackupScheduler}, built by the platform {@link JobInfo.Builder} which validates them
+ */
+@RunWith(AndroidJUnit4.class)
+@SdkSuppress(minSdkVersion = Build.VERSION_CODES.LOLLIPOP)
+public class BackupSchedulerTest {
+    @Test
+    public void buildsJobInfoForAllConstraints() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        for (int i = 0; i < 8; i++) {
+            BackupScheduler.Constraints constraints =
+                    new BackupScheduler.Constraints((i & 1) != 0, (i & 2) != 0, (i & 4) != 0);
+
+            JobInfo jobInfo = BackupScheduler.jobInfo(context, i, "key" + i, constraints);
+
+            assertEquals(i, jobInfo.getId());
+            assertEquals(constraints.unmetered ? JobInfo.NETWORK_TYPE_UNMETERED : JobInfo.NETWORK_TYPE_ANY,
+                    jobInfo.getNetworkType());
+            assertEquals(constraints.charging, jobInfo.isRequireCharging());
+            assertEquals(constraints.idle, jobInfo.isRequireDeviceIdle());
+            assertTrue(jobInfo.isPersisted());
+            assertEquals("key" + i, jobInfo.getExtras().getString(BackupScheduler.EXTRA_KEY));
+        }
+    }
+}
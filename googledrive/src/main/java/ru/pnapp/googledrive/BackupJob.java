@@ -0,0 +1,45 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+
+import java.io.IOException;
+
+/**
+ * A unit of background work for {@link BackupScheduler}. A job may be stopped at any time when its constraints are
+ * no longer met, so it should keep its own progress and continue from it on the next run.
+ */
+public interface BackupJob {
+    /**
+     * Jobs with equal keys are coalesced, a job scheduled while another one with the same key is pending replaces it
+     *
+     * @return job key
+     */
+    @NonNull
+    String getKey();
+
+    /**
+     * Do the work or a part of it. The thread is interrupted if the job should stop
+     *
+     * @param drive drive to work with
+     * @return true if the job is complete, false if it should be resumed later
+     * @throws IOException on error, the job is retried with back-off
+     */
+    @WorkerThread
+    boolean run(GoogleDrive drive) throws IOException;
+}
@@ -0,0 +1,64 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import android.annotation.TargetApi;
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.os.Build;
+
+/**
+ * Runs {@link BackupJob}s scheduled by {@link BackupScheduler} with {@link android.app.job.JobScheduler}.
+ * Declared in the library manifest.
+ * <br>
+ * The system may start a job in a new process before the app has set up the scheduler or scheduled the job again.
+ * Such a job is rescheduled with back-off, it is replaced once the app schedules the same key. It is cancelled after
+ * {@link BackupScheduler#MAX_ORPHAN_STARTS} such starts.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class BackupJobService extends JobService {
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        final BackupScheduler scheduler = BackupScheduler.getInstance();
+        final String key = params.getExtras().getString(BackupScheduler.EXTRA_KEY);
+        if (key == null) return false;
+        if (scheduler == null || !scheduler.isScheduled(key)) {
+            // The job object died with the previous process, keep the job for a while until the app schedules it again
+            if (!BackupScheduler.orphanStarted(this, key, params.getJobId())) return false;
+            jobFinished(params, true);
+            return true;
+        }
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Boolean complete = scheduler.runJob(key);
+                jobFinished(params, complete != null && !complete);
+            }
+        }, "GoogleDrive.BackupJob");
+        if (!scheduler.attach(key, thread)) return false;
+        thread.start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        BackupScheduler scheduler = BackupScheduler.getInstance();
+        String key = params.getExtras().getString(BackupScheduler.EXTRA_KEY);
+        if (scheduler != null && key != null) scheduler.stop(key);
+        return true;
+    }
+}
@@ -0,0 +1,400 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PersistableBundle;
+import android.os.PowerManager;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs {@link BackupJob}s in background under constraints such as unmetered network, charging or idle device.
+ * Jobs with the same key are coalesced, a job that didn't complete is resumed later, a failed job is retried with
+ * exponential back-off.
+ * <br>
+ * On Lollipop and above with a {@link Context} the jobs are run by {@link JobScheduler}, so constraints are tracked
+ * by the system. Otherwise a scheduled executor is used and constraints are polled, without a context they are
+ * not checked at all.
+ * <br>
+ * Job objects are not persisted, the app should schedule its jobs again on start. System jobs are persisted across
+ * reboots. A system job started before the app scheduled it again, e.g. after the process was killed, is postponed
+ * with back-off up to {@link #MAX_ORPHAN_STARTS} times and then cancelled, so a key the app no longer uses doesn't
+ * wake the device forever. The scheduler is process-wide, see {@link #init(Context, GoogleDrive)}.
+ */
+public class BackupScheduler {
+    static final String EXTRA_KEY = "ru.pnapp.googledrive.BACKUP_JOB_KEY";
+    /** Starts of a system job not scheduled by the app in the process, before the job is cancelled */
+    static final int MAX_ORPHAN_STARTS = 5;
+
+    private static final String TAG = "BackupScheduler";
+    private static final int JOB_ID_BASE = 0x7340_0000;
+    private static final int JOB_ID_COUNT = 0x10_0000;
+    /** Job ids given to the keys are kept here, so a key keeps its id across process restarts */
+    private static final String PREFS = "ru.pnapp.googledrive.BackupScheduler";
+    private static final String PREF_NEXT_ID = "nextJobId";
+    private static final String PREF_JOB_ID = "jobId:";
+    private static final String PREF_ORPHAN_STARTS = "orphanStarts:";
+    private static final long BACKOFF_MS = 30 * 1000L;
+    private static final long MAX_BACKOFF_MS = 60 * 60 * 1000L;
+    private static final long RESUME_DELAY_MS = 1000L;
+    private static final long CONSTRAINT_POLL_MS = 60 * 1000L;
+
+    private static BackupScheduler sInstance;
+
+    private final Context mContext;
+    private final GoogleDrive mDrive;
+    private final Map<String, Entry> mJobs = new HashMap<>();
+    private ScheduledExecutorService mExecutor;
+
+    /**
+     * Conditions a job should run under
+     */
+    public static class Constraints {
+        /** No constraints */
+        public static final Constraints NONE = new Constraints(false, false, false);
+
+        final boolean unmetered;
+        final boolean charging;
+        final boolean idle;
+
+        /**
+         * @param unmetered require unmetered network
+         * @param charging require the device to be charging
+         * @param idle require the device to be idle
+         */
+        public Constraints(boolean unmetered, boolean charging, boolean idle) {
+            this.unmetered = unmetered;
+            this.charging = charging;
+            this.idle = idle;
+        }
+    }
+
+    private static class Entry {
+        BackupJob job;
+        Constraints constraints;
+        Thread thread;
+        boolean running;
+        int failures;
+    }
+
+    /**
+     * Create the process-wide scheduler, the previous one is shut down
+     *
+     * @param context context or null outside of Android
+     * @param drive drive passed to the jobs
+     * @return the scheduler
+     */
+    public static synchronized BackupScheduler init(Context context, @NonNull GoogleDrive drive) {
+        if (sInstance != null) sInstance.shutdown();
+        sInstance = new BackupScheduler(context == null ? null : context.getApplicationContext(), drive);
+        return sInstance;
+    }
+
+    /**
+     * @return the process-wide scheduler or null if not initialized
+     */
+    public static synchronized BackupScheduler getInstance() {
+        return sInstance;
+    }
+
+    private BackupScheduler(Context context, GoogleDrive drive) {
+        mContext = context;
+        mDrive = drive;
+    }
+
+    /**
+     * Schedule a job. If a job with the same key is pending, it is replaced with this one
+     *
+     * @param job job to run
+     * @param constraints conditions to run it under
+     */
+    public synchronized void schedule(@NonNull BackupJob job, @NonNull Constraints constraints) {
+        Entry entry = mJobs.get(job.getKey());
+        boolean scheduled = entry != null;
+        if (entry == null) {
+            entry = new Entry();
+            mJobs.put(job.getKey(), entry);
+        }
+        entry.job = job;
+        entry.constraints = constraints;
+
+        // A running job picks up the replacement when it finishes
+        if (scheduled && entry.running) return;
+
+        if (useJobScheduler()) {
+            scheduleSystem(job.getKey(), constraints);
+        } else if (!scheduled) {
+            scheduleLocal(job.getKey(), 0);
+        }
+    }
+
+    /**
+     * Cancel a job. A running job is interrupted
+     *
+     * @param key job key
+     */
+    public synchronized void cancel(@NonNull String key) {
+        Entry entry = mJobs.remove(key);
+        if (entry != null && entry.thread != null) entry.thread.interrupt();
+        if (useJobScheduler()) {
+            int jobId = prefs().getInt(PREF_JOB_ID + key, -1);
+            if (jobId != -1) {
+                ((JobScheduler) mContext.getSystemService(Context.JOB_SCHEDULER_SERVICE)).cancel(jobId);
+                prefs().edit().remove(PREF_JOB_ID + key).remove(PREF_ORPHAN_STARTS + key).apply();
+            }
+        }
+    }
+
+    /**
+     * @return true if a job with the key is scheduled or running
+     */
+    public synchronized boolean isScheduled(@NonNull String key) {
+        return mJobs.containsKey(key);
+    }
+
+    /**
+     * Cancel all jobs and stop the executor
+     */
+    public synchronized void shutdown() {
+        for (String key : mJobs.keySet().toArray(new String[0])) cancel(key);
+        if (mExecutor != null) mExecutor.shutdownNow();
+        mExecutor = null;
+    }
+
+    /**
+     * Run the job with the key in the current thread
+     *
+     * @return true if the job is complete, false if it should be run again, null if there is no such job
+     */
+    Boolean runJob(String key) {
+        Entry entry;
+        BackupJob job;
+        synchronized (this) {
+            entry = mJobs.get(key);
+            if (entry == null) return null;
+            job = entry.job;
+            entry.running = true;
+            if (entry.thread == null) entry.thread = Thread.currentThread();
+        }
+
+        boolean complete = false;
+        try {
+            complete = job.run(mDrive);
+            entry.failures = 0;
+        } catch (IOException | RuntimeException e) {
+            entry.failures++;
+            Log.w(TAG, "Job " + key + " failed", e);
+        }
+
+        synchronized (this) {
+            entry.running = false;
+            entry.thread = null;
+            // Clear interrupt status left by stop() so it doesn't leak into the next job of the thread
+            Thread.interrupted();
+            if (mJobs.get(key) != entry) return true;
+            if (complete && entry.job == job) {
+                mJobs.remove(key);
+                if (useJobScheduler()) prefs().edit().remove(PREF_JOB_ID + key).remove(PREF_ORPHAN_STARTS + key).apply();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Set the thread a job is going to run in, so it may be interrupted by {@link #stop(String)}
+     *
+     * @return false if there is no such job
+     */
+    synchronized boolean attach(String key, Thread thread) {
+        Entry entry = mJobs.get(key);
+        if (entry == null) return false;
+        entry.thread = thread;
+        return true;
+    }
+
+    /**
+     * Interrupt the job because its constraints are no longer met, it stays scheduled
+     */
+    synchronized void stop(String key) {
+        Entry entry = mJobs.get(key);
+        if (entry != null && entry.thread != null) entry.thread.interrupt();
+    }
+
+    private boolean useJobScheduler() {
+        return mContext != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    private SharedPreferences prefs() {
+        return mContext.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Count a start of the system job of a key not scheduled in the process. The job is cancelled on the
+     * {@link #MAX_ORPHAN_STARTS}th start, the count is reset when the app schedules the key again.
+     *
+     * @return true if the job should be started again later, false if it is cancelled
+     */
+    static boolean orphanStarted(Context context, String key, int jobId) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        int starts = prefs.getInt(PREF_ORPHAN_STARTS + key, 0) + 1;
+        if (starts < MAX_ORPHAN_STARTS) {
+            prefs.edit().putInt(PREF_ORPHAN_STARTS + key, starts).apply();
+            return true;
+        }
+        Log.w(TAG, "Job " + key + " is not scheduled by the app, cancelled");
+        ((JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE)).cancel(jobId);
+        SharedPreferences.Editor editor = prefs.edit().remove(PREF_ORPHAN_STARTS + key);
+        if (prefs.getInt(PREF_JOB_ID + key, -1) == jobId) editor.remove(PREF_JOB_ID + key);
+        editor.apply();
+        return false;
+    }
+
+    /**
+     * @return job id of the key, a new one not used by other keys is given to a new key
+     */
+    private synchronized int jobId(String key) {
+        SharedPreferences prefs = prefs();
+        int jobId = prefs.getInt(PREF_JOB_ID + key, -1);
+        if (jobId != -1) return jobId;
+
+        Set<Object> used = new HashSet<>();
+        for (Map.Entry<String, ?> pref : prefs.getAll().entrySet()) {
+            if (pref.getKey().startsWith(PREF_JOB_ID)) used.add(pref.getValue());
+        }
+        int next = prefs.getInt(PREF_NEXT_ID, 0);
+        while (used.contains(JOB_ID_BASE + next)) next = (next + 1) % JOB_ID_COUNT;
+        jobId = JOB_ID_BASE + next;
+        prefs.edit()
+                .putInt(PREF_JOB_ID + key, jobId)
+                .putInt(PREF_NEXT_ID, (next + 1) % JOB_ID_COUNT)
+                .apply();
+        return jobId;
+    }
+
+    /**
+     * Build the system job of the key. Idle jobs get no back-off criteria, the system rejects them, a failed idle job
+     * is retried in the next idle window.
+     */
+    static JobInfo jobInfo(Context context, int jobId, String key, Constraints constraints) {
+        PersistableBundle extras = new PersistableBundle();
+        extras.putString(EXTRA_KEY, key);
+        JobInfo.Builder builder = new JobInfo.Builder(jobId, new ComponentName(context, BackupJobService.class))
+                .setRequiredNetworkType(constraints.unmetered ? JobInfo.NETWORK_TYPE_UNMETERED : JobInfo.NETWORK_TYPE_ANY)
+                .setRequiresCharging(constraints.charging)
+                .setRequiresDeviceIdle(constraints.idle)
+                .setPersisted(true)
+                .setExtras(extras);
+        if (!constraints.idle) builder.setBackoffCriteria(BACKOFF_MS, JobInfo.BACKOFF_POLICY_EXPONENTIAL);
+        return builder.build();
+    }
+
+    private void scheduleSystem(String key, Constraints constraints) {
+        JobInfo jobInfo = jobInfo(mContext, jobId(key), key, constraints);
+        JobScheduler jobScheduler = (JobScheduler) mContext.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (jobScheduler.schedule(jobInfo) != JobScheduler.RESULT_SUCCESS) {
+            Log.w(TAG, "Unable to schedule job " + key);
+            return;
+        }
+        prefs().edit().remove(PREF_ORPHAN_STARTS + key).apply();
+    }
+
+    private synchronized void scheduleLocal(final String key, long delayMs) {
+        if (mExecutor == null) {
+            mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "GoogleDrive.BackupScheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Entry entry;
+                synchronized (BackupScheduler.this) {
+                    entry = mJobs.get(key);
+                }
+                if (entry == null) return;
+
+                if (!constraintsMet(entry.constraints)) {
+                    scheduleLocal(key, CONSTRAINT_POLL_MS);
+                    return;
+                }
+
+                Boolean complete = runJob(key);
+                if (complete == null) return;
+                if (!complete) {
+                    long delay = (entry.failures == 0) ? RESUME_DELAY_MS
+                            : Math.min(MAX_BACKOFF_MS, BACKOFF_MS << Math.min(entry.failures - 1, 16));
+                    scheduleLocal(key, delay);
+                } else if (isScheduled(key)) {
+                    // Replaced while running
+                    scheduleLocal(key, 0);
+                }
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    @SuppressWarnings("deprecation")
+    private boolean constraintsMet(Constraints constraints) {
+        if (mContext == null) return true;
+
+        if (constraints.unmetered) {
+            ConnectivityManager connectivityManager = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+            NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+            if (networkInfo == null || !networkInfo.isConnected()) return false;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN && connectivityManager.isActiveNetworkMetered()) return false;
+        }
+
+        if (constraints.charging) {
+            Intent battery = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            if (battery == null || battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) == 0) return false;
+        }
+
+        if (constraints.idle) {
+            PowerManager powerManager = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+            boolean interactive = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH)
+                    ? powerManager.isInteractive() : powerManager.isScreenOn();
+            if (interactive) return false;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Token bucket limiting the rate of data passing through one or more streams
+ */
+class BandwidthLimiter {
+    /** Bucket holds this share of a second worth of data, so the rate is smooth but short bursts are allowed */
+    private static final long BURST_DIVISOR = 4;
+
+    private long rate;
+    private long available;
+    private long lastRefill;
+
+    /**
+     * @param bytesPerSecond rate limit or 0 for unlimited
+     */
+    BandwidthLimiter(long bytesPerSecond) {
+        setRate(bytesPerSecond);
+    }
+
+    synchronized void setRate(long bytesPerSecond) {
+        rate = Math.max(0, bytesPerSecond);
+        available = rate / BURST_DIVISOR;
+        lastRefill = System.nanoTime();
+    }
+
+    synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * Take the bytes from the bucket, waiting until they are available. Waiting is done under the lock,
+     * so the streams sharing the limiter are served in turn.
+     */
+    synchronized void acquire(int bytes) throws InterruptedIOException {
+        if (rate <= 0 || bytes <= 0) return;
+
+        long now = System.nanoTime();
+        long refill = (now - lastRefill) * rate / 1000000000L;
+        if (refill > 0) {
+            available = Math.min(rate / BURST_DIVISOR, available + refill);
+            lastRefill = now;
+        }
+
+        available -= bytes;
+        if (available >= 0) return;
+
+        // Sleep off the debt, the bucket is refilled by the next call
+        long waitNanos = -available * 1000000000L / rate;
+        try {
+            Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Transfer interrupted");
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Outcome of a bulk operation. Items are reported in the order they were requested
+ */
+public class BulkResult {
+    private final List<String> ids;
+    private final Map<Integer, IOException> errors;
+
+    BulkResult(List<String> ids, Map<Integer, IOException> errors) {
+        this.ids = Collections.unmodifiableList(ids);
+        this.errors = Collections.unmodifiableMap(errors);
+    }
+
+    /**
+     * @return ids of the files transferred, {@code null} for the failed items
+     */
+    @NonNull
+    public List<String> getIds() { return ids; }
+
+    /**
+     * @return last error of each failed item by its index
+     */
+    @NonNull
+    public Map<Integer, IOException> getErrors() { return errors; }
+
+    /**
+     * @return true if all the items were transferred
+     */
+    public boolean isSuccessful() { return errors.isEmpty(); }
+}
@@ -0,0 +1,209 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs {@link GoogleDrive#writeAll}, {@link GoogleDrive#readAll} and {@link GoogleDrive#deleteAll} items on a fixed
+ * pool of threads.
+ * Each item is retried on its own, a failed item doesn't stop the others.
+ */
+class BulkTransfer {
+    private static final long RETRY_DELAY_MS = 1000;
+
+    private final GoogleDrive drive;
+    private final int parallelism;
+    private final int maxRetries;
+    private final GoogleDrive.TransferListener listener;
+
+    private final AtomicLong bytesTotal = new AtomicLong();
+    private long length;
+    private long startTime;
+
+    private interface Item {
+        String transfer(int index, CountingInputStream.Counter counter) throws IOException;
+    }
+
+    BulkTransfer(GoogleDrive drive, int parallelism, int maxRetries, GoogleDrive.TransferListener listener) {
+        this.drive = drive;
+        this.parallelism = Math.max(1, parallelism);
+        this.maxRetries = Math.max(0, maxRetries);
+        this.listener = listener;
+    }
+
+    @WorkerThread @NonNull
+    BulkResult writeAll(final List<UploadSpec> specs) throws IOException {
+        length = 0;
+        for (UploadSpec spec : specs) {
+            if (spec.getLength() < 0) {
+                length = -1;
+                break;
+            }
+            length += spec.getLength();
+        }
+
+        return run(specs.size(), new Item() {
+            @Override
+            public String transfer(int index, CountingInputStream.Counter counter) throws IOException {
+                UploadSpec spec = specs.get(index);
+                if (spec.getFile() != null) {
+                    // Local files take the channel based path, progress is counted as the file is read
+                    return drive.upload(spec.getId(), spec.getTitle(), spec.getMimeType(), spec.getFile(), counter);
+                }
+                InputStream inputStream = new CountingInputStream(spec.getSource().open(), counter);
+                try {
+                    return drive.write(spec.getId(), spec.getTitle(), spec.getMimeType(), inputStream);
+                } finally {
+                    inputStream.close();
+                }
+            }
+        });
+    }
+
+    @WorkerThread @NonNull
+    BulkResult readAll(final List<String> ids, final GoogleDrive.SinkFactory sinkFactory) throws IOException {
+        length = -1;
+
+        return run(ids.size(), new Item() {
+            @Override
+            public String transfer(int index, CountingInputStream.Counter counter) throws IOException {
+                String id = ids.get(index);
+                InputStream inputStream = new CountingInputStream(drive.openInputStream(id), counter);
+                try {
+                    OutputStream outputStream = sinkFactory.open(id);
+                    try {
+                        byte[] buffer = new byte[8192];
+                        int bytesRead;
+                        while ((bytesRead = inputStream.read(buffer)) != -1) {
+                            outputStream.write(buffer, 0, bytesRead);
+                        }
+                    } finally {
+                        outputStream.close();
+                    }
+                } finally {
+                    inputStream.close();
+                }
+                return id;
+            }
+        });
+    }
+
+    @WorkerThread @NonNull
+    BulkResult deleteAll(final List<String> ids, final boolean permanently) throws IOException {
+        length = -1;
+
+        return run(ids.size(), new Item() {
+            @Override
+            public String transfer(int index, CountingInputStream.Counter counter) throws IOException {
+                String id = ids.get(index);
+                drive.delete(id, permanently);
+                return id;
+            }
+        });
+    }
+
+    private BulkResult run(int count, final Item item) throws IOException {
+        final String[] ids = new String[count];
+        final IOException[] errors = new IOException[count];
+
+        startTime = System.currentTimeMillis();
+        bytesTotal.set(0);
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, Math.max(1, count)));
+        try {
+            List<Future<?>> futures = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                final int index = i;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        try {
+                            ids[index] = transfer(index, item);
+                        } catch (IOException e) {
+                            errors[index] = e;
+                        }
+                        if (listener != null) listener.onFileDone(index, ids[index], errors[index]);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw new IOException(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Bulk transfer interrupted");
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Map<Integer, IOException> errorMap = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            if (errors[i] != null) errorMap.put(i, errors[i]);
+        }
+        return new BulkResult(Arrays.asList(ids), errorMap);
+    }
+
+    private String transfer(final int index, Item item) throws IOException, InterruptedException {
+        final long[] fileBytes = new long[1];
+        CountingInputStream.Counter counter = new CountingInputStream.Counter() {
+            @Override
+            public void count(long bytes) {
+                fileBytes[0] += bytes;
+                long total = bytesTotal.addAndGet(bytes);
+                if (listener != null) {
+                    long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+                    listener.onFileProgress(index, fileBytes[0]);
+                    listener.onProgress(total, length, total * 1000 / elapsed);
+                }
+            }
+        };
+
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return item.transfer(index, counter);
+            } catch (IOException e) {
+                // Bytes of the failed attempt are sent again, don't count them twice
+                bytesTotal.addAndGet(-fileBytes[0]);
+                fileBytes[0] = 0;
+                if (attempt >= maxRetries || e instanceof InterruptedIOException) throw e;
+                Thread.sleep(RETRY_DELAY_MS << attempt);
+            }
+        }
+    }
+}
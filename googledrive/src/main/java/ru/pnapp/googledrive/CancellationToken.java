@@ -0,0 +1,73 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cancels the transfers it is passed to with {@link TransferOptions}. A token may be shared by several transfers,
+ * once cancelled it stays cancelled.
+ */
+public class CancellationToken {
+    private final List<Runnable> callbacks = new ArrayList<>();
+    private String reason;
+
+    /** Cancel the transfers: the requests in flight are aborted, data written but not committed is discarded */
+    public void cancel() {
+        cancel("Transfer cancelled");
+    }
+
+    public synchronized boolean isCancelled() {
+        return reason != null;
+    }
+
+    /** @throws InterruptedIOException if cancelled */
+    public void throwIfCancelled() throws InterruptedIOException {
+        String reason;
+        synchronized (this) {
+            reason = this.reason;
+        }
+        if (reason != null) throw new InterruptedIOException(reason);
+    }
+
+    void cancel(String reason) {
+        Runnable[] run;
+        synchronized (this) {
+            if (this.reason != null) return;
+            this.reason = reason;
+            run = callbacks.toArray(new Runnable[callbacks.size()]);
+            callbacks.clear();
+        }
+        for (Runnable callback : run) callback.run();
+    }
+
+    /** Run the callback on cancel, at once if already cancelled */
+    void onCancel(Runnable callback) {
+        synchronized (this) {
+            if (reason == null) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    synchronized void remove(Runnable callback) {
+        callbacks.remove(callback);
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+
+/**
+ * Endpoint receiving the push notifications of Drive API for {@link GoogleDriveREST#watchChanges(ChangeReceiver)}.
+ * <br>
+ * Drive posts notifications to an https address of a verified domain, so a device can't receive them directly:
+ * the usual receiver passes them from the app server to the device, e.g. with a push message, and calls the
+ * callback there. The LocalChangeReceiver of the tests receives them on a local port, for use with FakeDrive.
+ */
+public interface ChangeReceiver {
+    /** Sink of the notifications received */
+    interface Callback {
+        /**
+         * Pass a notification on, any thread may call it. Only the headers matter, the body of change
+         * notifications is empty.
+         *
+         * @param channelId value of X-Goog-Channel-ID
+         * @param token value of X-Goog-Channel-Token
+         * @param resourceState value of X-Goog-Resource-State: "sync" once the channel is created, "change" later
+         */
+        void onNotification(@Nullable String channelId, @Nullable String token, @Nullable String resourceState);
+    }
+
+    /**
+     * Start passing notifications to the callback
+     *
+     * @return address Drive should post the notifications to
+     * @throws IOException if the receiver can't start
+     */
+    @NonNull
+    String open(@NonNull Callback callback) throws IOException;
+
+    /** Stop passing notifications */
+    void close();
+}
@@ -0,0 +1,67 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import com.google.api.client.http.AbstractInputStreamContent;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Upload content computing MD5 of the data as it is sent
+ */
+class ChecksumContent extends AbstractInputStreamContent {
+    private final AbstractInputStreamContent content;
+    private volatile ChecksumInputStream lastStream;
+
+    ChecksumContent(AbstractInputStreamContent content) {
+        super(content.getType());
+        this.content = content;
+    }
+
+    /**
+     * @return MD5 of the data sent by the last attempt or null if it was not sent completely
+     */
+    String getChecksum() throws IOException {
+        ChecksumInputStream stream = lastStream;
+        if (stream == null) return null;
+        // Uploader may stop reading right at the known length without reaching end of stream
+        long length = content.getLength();
+        return (length < 0) ? stream.getChecksum() : stream.getChecksum(length);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        ChecksumInputStream stream = new ChecksumInputStream(content.getInputStream(), null);
+        lastStream = stream;
+        return stream;
+    }
+
+    @Override
+    public long getLength() throws IOException {
+        return content.getLength();
+    }
+
+    @Override
+    public boolean retrySupported() {
+        return content.retrySupported();
+    }
+
+    @Override
+    public ChecksumContent setType(String type) {
+        return (ChecksumContent) super.setType(type);
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import java.io.IOException;
+
+/**
+ * Signals that the data stored on or fetched from the drive doesn't match the checksum reported by the drive
+ */
+public class ChecksumException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public ChecksumException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Input stream computing MD5 of the data passed through it. Bytes read again after {@link #reset()} are not counted
+ * twice, so the stream may be used under an uploader which resends a failed chunk. If an expected checksum is given,
+ * it is checked at the end of the stream.
+ */
+class ChecksumInputStream extends FilterInputStream {
+    private final MessageDigest digest;
+    private final String expected;
+
+    private long position;
+    private long mark;
+    /** Number of bytes passed to the digest */
+    private long digested;
+    private String checksum;
+
+    /**
+     * @param in stream to read
+     * @param expected expected MD5 as hex string or null to compute only
+     */
+    ChecksumInputStream(InputStream in, String expected) {
+        super(in);
+        this.digest = newDigest();
+        this.expected = expected;
+    }
+
+    /**
+     * @return MD5 as lowercase hex string or null if end of stream was not reached yet
+     */
+    String getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Finish the digest without reading end of stream, used if the reader stops at a known length
+     *
+     * @param length expected data length
+     * @return MD5 as lowercase hex string or null if less than {@code length} bytes were read
+     */
+    String getChecksum(long length) throws IOException {
+        if (checksum == null && digested == length) finish();
+        return checksum;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b == -1) {
+            finish();
+        } else {
+            if (position == digested) {
+                digest.update((byte) b);
+                digested++;
+            }
+            position++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int bytesRead = super.read(b, off, len);
+        if (bytesRead == -1) {
+            finish();
+        } else if (bytesRead > 0) {
+            long end = position + bytesRead;
+            if (end > digested) {
+                int skip = (int) (digested - position);
+                digest.update(b, off + skip, bytesRead - skip);
+                digested = end;
+            }
+            position = end;
+        }
+        return bytesRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // Skipped bytes should be digested as well
+        byte[] buffer = new byte[(int) Math.min(8192, Math.max(n, 1))];
+        long skipped = 0;
+        while (skipped < n) {
+            int bytesRead = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (bytesRead == -1) break;
+            skipped += bytesRead;
+        }
+        return skipped;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        super.mark(readLimit);
+        mark = position;
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        super.reset();
+        position = mark;
+    }
+
+    private void finish() throws IOException {
+        if (checksum != null || position != digested) return;
+        checksum = toHex(digest.digest());
+        if (expected != null && !expected.equalsIgnoreCase(checksum)) {
+            throw new ChecksumException("Checksum mismatch: expected " + expected + ", got " + checksum);
+        }
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+            chars[2 * i + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import com.google.api.client.googleapis.media.MediaHttpUploader;
+import com.google.api.client.googleapis.media.MediaHttpUploaderProgressListener;
+
+/**
+ * Chooses the size of upload chunks and download ranges from the observed throughput and round trip time.
+ * A chunk should take long enough for the round trip to be a small overhead, but not so long that
+ * a dropped connection loses much of the work. The size is kept between transfers, so the next one starts
+ * with the size learned on the current network.
+ */
+class ChunkSizer {
+    /** Resumable upload requires chunks to be multiple of this */
+    static final int GRANULARITY = MediaHttpUploader.MINIMUM_CHUNK_SIZE;
+
+    private static final int MIN_CHUNK = GRANULARITY;
+    private static final int MAX_CHUNK = 64 * GRANULARITY;
+    private static final int INITIAL_CHUNK = 4 * GRANULARITY;
+
+    /** A chunk should take this many round trips */
+    private static final int ROUND_TRIPS_PER_CHUNK = 10;
+    private static final long MIN_CHUNK_TIME_MS = 1000L;
+    private static final long MAX_CHUNK_TIME_MS = 10 * 1000L;
+
+    private int chunkSize = INITIAL_CHUNK;
+    /** Smoothed round trip time in ms or -1 if not measured yet */
+    private long roundTrip = -1;
+    /** Smoothed throughput in bytes per ms or 0 if not measured yet */
+    private double throughput;
+
+    synchronized int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Account time taken by a request without payload, or the time to the first byte of a response
+     */
+    synchronized void recordRoundTrip(long ms) {
+        if (ms < 0) return;
+        roundTrip = (roundTrip < 0) ? ms : (roundTrip * 7 + ms) / 8;
+    }
+
+    /**
+     * Account a chunk transferred and adjust the chunk size
+     *
+     * @param bytes chunk size
+     * @param ms time taken by the chunk including the round trip
+     */
+    synchronized void record(long bytes, long ms) {
+        if (bytes <= 0 || ms <= 0) return;
+
+        long transferTime = Math.max(1, ms - Math.max(0, roundTrip));
+        double sample = (double) bytes / transferTime;
+        throughput = (throughput == 0) ? sample : throughput * 0.75 + sample * 0.25;
+
+        long chunkTime = Math.min(MAX_CHUNK_TIME_MS, Math.max(MIN_CHUNK_TIME_MS, ROUND_TRIPS_PER_CHUNK * roundTrip));
+        long size = (long) (throughput * chunkTime);
+        // Change gradually, a single sample may be an outlier
+        size = Math.min(2L * chunkSize, Math.max(chunkSize / 2, size));
+        size = Math.min(MAX_CHUNK, Math.max(MIN_CHUNK, size));
+        chunkSize = (int) (size / GRANULARITY * GRANULARITY);
+    }
+
+    /**
+     * Make a listener measuring a resumable upload and adjusting its chunk size on the fly
+     */
+    MediaHttpUploaderProgressListener newUploadListener() {
+        return new MediaHttpUploaderProgressListener() {
+            private long lastTime;
+            private long lastBytes;
+
+            @Override
+            public void progressChanged(MediaHttpUploader uploader) {
+                long now = System.nanoTime() / 1000000L;
+                switch (uploader.getUploadState()) {
+                    case INITIATION_STARTED:
+                        lastTime = now;
+                        break;
+                    case INITIATION_COMPLETE:
+                        recordRoundTrip(now - lastTime);
+                        lastTime = now;
+                        lastBytes = 0;
+                        break;
+                    case MEDIA_IN_PROGRESS:
+                    case MEDIA_COMPLETE:
+                        long bytes = uploader.getNumBytesUploaded();
+                        record(bytes - lastBytes, now - lastTime);
+                        lastTime = now;
+                        lastBytes = bytes;
+                        if (uploader.getUploadState() == MediaHttpUploader.UploadState.MEDIA_IN_PROGRESS) {
+                            uploader.setChunkSize(getChunkSize());
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decides what to write over a file changed elsewhere, see {@link GoogleDrive#setConflictResolver(ConflictResolver)}
+ */
+public interface ConflictResolver {
+    /**
+     * Merge the content being written with the content on the drive. Both streams are closed by the caller after
+     * the result is written, so it may read them lazily.
+     *
+     * @param id file id
+     * @param remote current content of the file, decrypted
+     * @param local content being written, null if it can't be read again, e.g. written with
+     *              {@link GoogleDrive#openOutputStream(String)} or a stream larger than the multipart threshold
+     * @return content to write over the file, or null to keep the remote content, the write fails with
+     *         {@link ConflictException} then
+     * @throws IOException on error, the write fails with it
+     */
+    @WorkerThread @Nullable
+    InputStream resolve(@NonNull String id, @NonNull InputStream remote, @Nullable InputStream local) throws IOException;
+
+    /** Write the local content over the remote one if it is available, or fail */
+    ConflictResolver LOCAL_WINS = new ConflictResolver() {
+        @Override
+        public InputStream resolve(@NonNull String id, @NonNull InputStream remote, @Nullable InputStream local) {
+            return local;
+        }
+    };
+
+    /** Keep the remote content, the write fails with {@link ConflictException} */
+    ConflictResolver REMOTE_WINS = new ConflictResolver() {
+        @Override
+        public InputStream resolve(@NonNull String id, @NonNull InputStream remote, @Nullable InputStream local) {
+            return null;
+        }
+    };
+}
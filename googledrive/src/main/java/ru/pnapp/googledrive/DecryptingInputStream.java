@@ -0,0 +1,97 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Input stream decrypting the data read from the underlying stream, see {@link FrameCipher}.
+ * Data of a frame is returned only after the frame is authenticated.
+ */
+class DecryptingInputStream extends InputStream {
+    private final InputStream in;
+    private final FrameCipher cipher;
+    private final byte[] frame = new byte[FrameCipher.SEALED_FRAME_SIZE];
+    private final byte[] buffer = new byte[FrameCipher.FRAME_SIZE];
+    private int position;
+    private int limit;
+    private long index = -1;
+    /** Byte read ahead to detect the last frame or -1 */
+    private int next = -1;
+    private boolean done;
+
+    DecryptingInputStream(InputStream in, SecretKey key) throws IOException {
+        this.in = in;
+        cipher = new FrameCipher(key);
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (position == limit) {
+            if (!fill()) return -1;
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        while (position == limit) {
+            if (!fill()) return -1;
+        }
+        int count = Math.min(len, limit - position);
+        System.arraycopy(buffer, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return limit - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private boolean fill() throws IOException {
+        if (done) return false;
+
+        if (index < 0) {
+            byte[] header = new byte[FrameCipher.HEADER_SIZE];
+            if (FrameCipher.readFully(in, header, 0, header.length) < header.length) throw new IOException("Not an encrypted file");
+            cipher.setHeader(header);
+            index = 0;
+        }
+
+        int length = 0;
+        if (next != -1) {
+            frame[length++] = (byte) next;
+            next = -1;
+        }
+        length += FrameCipher.readFully(in, frame, length, frame.length - length);
+        boolean last = length < frame.length || (next = in.read()) == -1;
+
+        limit = cipher.decrypt(index++, last, frame, length, buffer);
+        position = 0;
+        done = last;
+        return true;
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Shares a single download between concurrent readers of the same file.
+ * <br>
+ * The first reader opens the source stream, readers arriving while the first {@link #JOIN_WINDOW} bytes are
+ * downloaded join it and read the same data from the start. Data is kept in memory within the window. If the
+ * download outgrows the window while several readers are attached, it is spooled to a {@link SpoolStore}, a single
+ * reader just goes on reading the source. Any reader pulls more data from the source when it reaches the end of
+ * the data downloaded. A download is never reused after it is complete, so the next reader starts a new one.
+ * If the spool quota is used up, the download fails for all the readers attached.
+ */
+class DownloadFanOut {
+    interface Source {
+        InputStream open() throws IOException;
+    }
+
+    /** Readers may join a download until this many bytes are downloaded */
+    static final int JOIN_WINDOW = 1024 * 1024;
+    private static final int CHUNK = 64 * 1024;
+
+    private final ConcurrentMap<String, Share> shares = new ConcurrentHashMap<>();
+
+    /**
+     * Open a stream of the file joining the download in flight if any
+     *
+     * @param key file key
+     * @param spoolStore store of temporary files
+     * @param source opens the file if there is no download to join
+     */
+    InputStream open(String key, SpoolStore spoolStore, Source source) throws IOException {
+        while (true) {
+            Share share = shares.get(key);
+            if (share != null) {
+                if (share.join()) {
+                    share.awaitOpen();
+                    return new Reader(share);
+                }
+                continue;
+            }
+
+            share = new Share(key, spoolStore);
+            if (shares.putIfAbsent(key, share) != null) continue;
+            try {
+                share.setSource(source.open());
+            } catch (IOException | RuntimeException e) {
+                share.fail(e);
+                throw e;
+            }
+            return new Reader(share);
+        }
+    }
+
+    private class Share {
+        final String key;
+        final SpoolStore spoolStore;
+        final byte[] chunk = new byte[CHUNK];
+        InputStream source;
+        int readers = 1;
+        /** Data downloaded is in {@link #head} or in {@link #spool} */
+        byte[] head = new byte[CHUNK];
+        long length;
+        SpoolStore.Spool spool;
+        boolean pumping;
+        boolean passThrough;
+        boolean complete;
+        boolean released;
+        Exception error;
+
+        Share(String key, SpoolStore spoolStore) {
+            this.key = key;
+            this.spoolStore = spoolStore;
+        }
+
+        synchronized boolean join() {
+            if (released || complete || passThrough || spool != null) return false;
+            readers++;
+            return true;
+        }
+
+        synchronized void setSource(InputStream source) {
+            this.source = source;
+            notifyAll();
+        }
+
+        synchronized void fail(Exception e) {
+            error = e;
+            release();
+            notifyAll();
+        }
+
+        synchronized void awaitOpen() throws IOException {
+            try {
+                while (source == null && error == null) wait();
+            } catch (InterruptedException e) {
+                readers--;
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + key);
+            }
+            if (source == null) {
+                readers--;
+                // The error is shared with the first reader, keep its type for the callers
+                if (error instanceof IOException) throw (IOException) error;
+                if (error instanceof RuntimeException) throw (RuntimeException) error;
+                throw new IOException(error);
+            }
+        }
+
+        /** Read the next chunk of the source, called by a single reader at a time */
+        void pump() {
+            int bytesRead;
+            Exception failure = null;
+            try {
+                bytesRead = source.read(chunk);
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+                bytesRead = -1;
+            }
+
+            synchronized (this) {
+                pumping = false;
+                if (released) return;
+                try {
+                    if (failure != null) {
+                        error = failure;
+                        finish();
+                    } else if (bytesRead == -1) {
+                        complete = true;
+                        finish();
+                    } else {
+                        append(bytesRead);
+                    }
+                } catch (IOException e) {
+                    error = e;
+                    finish();
+                }
+                notifyAll();
+            }
+        }
+
+        private void append(int count) throws IOException {
+            if (spool == null && length + count > JOIN_WINDOW) {
+                // No more readers may join, keep the data only if there are several readers already
+                shares.remove(key, this);
+                if (readers > 1) {
+                    spool = spoolStore.create("download");
+                    spool.write(ByteBuffer.wrap(head, 0, (int) length), 0);
+                    head = null;
+                } else {
+                    passThrough = true;
+                }
+            }
+
+            if (spool != null) {
+                spool.write(ByteBuffer.wrap(chunk, 0, count), length);
+            } else {
+                if (length + count > head.length) head = Arrays.copyOf(head, (int) Math.max(2L * head.length, length + count));
+                System.arraycopy(chunk, 0, head, (int) length, count);
+            }
+            length += count;
+        }
+
+        /** Copy downloaded data at the position */
+        int copy(long position, byte[] b, int off, int len) throws IOException {
+            int count = (int) Math.min(len, length - position);
+            if (spool == null) {
+                System.arraycopy(head, (int) position, b, off, count);
+                return count;
+            }
+            return spool.read(ByteBuffer.wrap(b, off, count), position);
+        }
+
+        /** Stop joining and close the source, the data stays for the readers attached */
+        private void finish() {
+            shares.remove(key, this);
+            closeSource();
+        }
+
+        synchronized void close() {
+            if (--readers == 0) release();
+        }
+
+        /** Free everything, called when no reader is left */
+        private void release() {
+            released = true;
+            finish();
+            if (spool != null) {
+                spool.close();
+                spool = null;
+            }
+            head = null;
+        }
+
+        private void closeSource() {
+            if (source != null) {
+                try { source.close(); } catch (IOException ignore) {}
+            }
+        }
+    }
+
+    private static class Reader extends InputStream {
+        private final Share share;
+        private long position;
+        /** May be set by another thread to abort a read */
+        private volatile boolean closed;
+
+        Reader(Share share) {
+            this.share = share;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int count = read(b, 0, 1);
+            return (count == -1) ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) throw new IOException("Stream closed");
+            if (len == 0) return 0;
+            while (true) {
+                if (closed) throw new IOException("Stream closed");
+                boolean pump = false;
+                synchronized (share) {
+                    while (!pump) {
+                        if (position < share.length) {
+                            int count = share.copy(position, b, off, len);
+                            position += count;
+                            return count;
+                        }
+                        if (share.error != null) throw new IOException("Download failed", share.error);
+                        if (share.complete) return -1;
+                        if (share.passThrough) break;
+                        if (!share.pumping) {
+                            share.pumping = true;
+                            pump = true;
+                        } else {
+                            try {
+                                share.wait();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                throw new InterruptedIOException("Interrupted while waiting for " + share.key);
+                            }
+                        }
+                    }
+                }
+
+                if (pump) {
+                    share.pump();
+                } else {
+                    // The only reader left, the source is all its own
+                    return share.source.read(b, off, len);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            share.close();
+        }
+    }
+}
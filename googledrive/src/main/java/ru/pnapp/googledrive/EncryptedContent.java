@@ -0,0 +1,60 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import com.google.api.client.http.AbstractInputStreamContent;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Upload content encrypted as it is sent, see {@link FrameCipher}. Each stream gets a header with a new nonce
+ * prefix, so a retry that reads the content again never reuses a nonce should the content differ. A resumable
+ * upload reads a single stream and resumes within it, so the bytes it sends stay consistent.
+ */
+class EncryptedContent extends AbstractInputStreamContent {
+    private final AbstractInputStreamContent content;
+    private final SecretKey key;
+
+    EncryptedContent(AbstractInputStreamContent content, SecretKey key) {
+        super(content.getType());
+        this.content = content;
+        this.key = key;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return new EncryptingInputStream(content.getInputStream(), key, new FrameCipher(key).newHeader());
+    }
+
+    @Override
+    public long getLength() throws IOException {
+        long length = content.getLength();
+        return (length < 0) ? -1 : FrameCipher.sealedLength(length);
+    }
+
+    @Override
+    public boolean retrySupported() {
+        return content.retrySupported();
+    }
+
+    @Override
+    public EncryptedContent setType(String type) {
+        return (EncryptedContent) super.setType(type);
+    }
+}
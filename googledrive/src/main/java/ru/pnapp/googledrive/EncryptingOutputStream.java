@@ -0,0 +1,78 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Output stream encrypting the data written, see {@link FrameCipher}. The last frame is written on {@link #close()}.
+ */
+class EncryptingOutputStream extends FilterOutputStream {
+    private final FrameCipher cipher;
+    private final byte[] header;
+    private final byte[] frame = new byte[FrameCipher.FRAME_SIZE];
+    private final byte[] buffer = new byte[FrameCipher.SEALED_FRAME_SIZE];
+    private int length;
+    private long index;
+    private boolean closed;
+
+    EncryptingOutputStream(OutputStream out, SecretKey key) throws IOException {
+        super(out);
+        cipher = new FrameCipher(key);
+        header = cipher.newHeader();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        while (len > 0) {
+            // A full frame is sealed only when more data comes, the last frame is sealed differently
+            if (length == frame.length) seal(false);
+            int count = Math.min(len, frame.length - length);
+            System.arraycopy(b, off, frame, length, count);
+            length += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            seal(true);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void seal(boolean last) throws IOException {
+        if (index == 0) out.write(header);
+        int count = cipher.encrypt(index++, last, frame, length, buffer);
+        out.write(buffer, 0, count);
+        length = 0;
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import com.google.api.client.http.AbstractInputStreamContent;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Upload content backed by a {@link FileChannel}. Length is known up front, so upload chunks are planned exactly.
+ * Large files are memory mapped and read without copying through the kernel, small ones are read with positional
+ * channel reads. The stream supports mark/reset, so a failed chunk is resent without reopening the file.
+ * <br>
+ * Progress is counted as the file is read. Data read again, after a reset or by a repeated upload, is not counted
+ * twice.
+ */
+class FileChannelContent extends AbstractInputStreamContent {
+    /** Files of this size and above are memory mapped */
+    static final long MAP_THRESHOLD = 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final java.io.File file;
+    private final CountingInputStream.Counter counter;
+    /** Furthest position counted by any stream of the content */
+    private long counted;
+
+    FileChannelContent(String type, java.io.File file) {
+        this(type, file, null);
+    }
+
+    /** @param counter counter of the bytes read or null */
+    FileChannelContent(String type, java.io.File file, CountingInputStream.Counter counter) {
+        super(type);
+        this.file = file;
+        this.counter = counter;
+    }
+
+    @Override
+    public long getLength() throws IOException {
+        return file.length();
+    }
+
+    @Override
+    public boolean retrySupported() {
+        return true;
+    }
+
+    @Override
+    public FileChannelContent setType(String type) {
+        return (FileChannelContent) super.setType(type);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        FileChannel channel = randomAccessFile.getChannel();
+        long size = channel.size();
+        InputStream inputStream;
+        if (size >= MAP_THRESHOLD && size <= Integer.MAX_VALUE) {
+            inputStream = new MappedInputStream(randomAccessFile, channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        } else {
+            inputStream = new ChannelInputStream(randomAccessFile, channel);
+        }
+        return (counter == null) ? inputStream : new ProgressInputStream(inputStream);
+    }
+
+    /** Count the bytes from {@link #counted} up to the position reached */
+    private synchronized void reached(long position) {
+        if (position > counted) {
+            counter.count(position - counted);
+            counted = position;
+        }
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        InputStream inputStream = getInputStream();
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) != -1) {
+                out.write(buffer, 0, bytesRead);
+            }
+            out.flush();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /** Reports the positions reached to {@link #reached(long)} */
+    private class ProgressInputStream extends FilterInputStream {
+        private long position;
+        private long mark;
+
+        ProgressInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) reached(++position);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int bytesRead = super.read(b, off, len);
+            if (bytesRead > 0) reached(position += bytesRead);
+            return bytesRead;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            if (skipped > 0) reached(position += skipped);
+            return skipped;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            super.mark(readLimit);
+            mark = position;
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            super.reset();
+            position = mark;
+        }
+    }
+
+    private static class MappedInputStream extends InputStream {
+        private final RandomAccessFile file;
+        private final MappedByteBuffer buffer;
+
+        MappedInputStream(RandomAccessFile file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!buffer.hasRemaining()) return -1;
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return buffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            buffer.mark();
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            buffer.reset();
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    private static class ChannelInputStream extends InputStream {
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private long position;
+        private long mark;
+
+        ChannelInputStream(RandomAccessFile file, FileChannel channel) {
+            this.file = file;
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            int bytesRead = channel.read(ByteBuffer.wrap(b, off, len), position);
+            if (bytesRead > 0) position += bytesRead;
+            return bytesRead;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = Math.max(0, Math.min(n, channel.size() - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(Integer.MAX_VALUE, channel.size() - position);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            mark = position;
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            position = mark;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Files of a folder streamed as they are listed, see {@link GoogleDrive#list()}.
+ * <br>
+ * The listing may be split in parts run concurrently in background, the entries are merged in arrival order and
+ * duplicates are dropped. Parts wait while {@link #QUEUE_SIZE} entries are not consumed, so memory use doesn't
+ * depend on the folder size, except for the ids kept to drop duplicates. The listing should be closed if it is not
+ * read to the end.
+ */
+public class FileListing implements Closeable {
+    /** Part of the listing run in background */
+    interface Source {
+        void run(FileListing listing) throws IOException;
+    }
+
+    /** Number of entries listed ahead of the consumer */
+    public static final int QUEUE_SIZE = 4096;
+
+    private static final MetadataIndex.Entry END = new MetadataIndex.Entry("", null, null, -1, null, 0, 0);
+
+    private final BlockingQueue<MetadataIndex.Entry> queue;
+    private final ExecutorService executor;
+    private final Set<String> seen = new HashSet<>();
+    /** Parts not finished, plus one held by the creator until {@link #release()} */
+    private int pending = 1;
+    private volatile IOException error;
+    private volatile boolean closed;
+
+    private MetadataIndex.Entry next;
+    private boolean done;
+
+    /** @param parallelism number of parts run at once */
+    FileListing(int parallelism) {
+        queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        executor = Executors.newFixedThreadPool(Math.max(1, parallelism), new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                Thread thread = new Thread(r, "GoogleDrive.list");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /** Listing of the entries known already */
+    FileListing(List<MetadataIndex.Entry> entries) {
+        queue = new LinkedBlockingQueue<>(entries);
+        queue.add(END);
+        executor = null;
+    }
+
+    /** Called by the creator once the first parts are submitted, the listing ends when all of them finish */
+    void release() {
+        finish();
+    }
+
+    /** Run the part in background, may be called by a part running */
+    synchronized void submit(final Source source) {
+        if (closed || error != null) return;
+        pending++;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    source.run(FileListing.this);
+                } catch (IOException e) {
+                    fail(e);
+                } catch (RuntimeException e) {
+                    fail(new IOException(e));
+                } finally {
+                    finish();
+                }
+            }
+        });
+    }
+
+    /**
+     * Pass the entry to the consumer unless it was passed already, waits while the consumer is behind
+     *
+     * @throws InterruptedIOException if the listing is closed or failed
+     */
+    void add(MetadataIndex.Entry entry) throws InterruptedIOException {
+        synchronized (seen) {
+            if (!seen.add(entry.getId())) return;
+        }
+        try {
+            queue.put(entry);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Listing stopped");
+        }
+    }
+
+    /** @return true if no more entries are needed */
+    boolean isStopped() {
+        return closed || error != null;
+    }
+
+    private void fail(IOException e) {
+        synchronized (this) {
+            if (error != null || closed) return;
+            error = e;
+        }
+        executor.shutdownNow();
+        // The rest is dropped, the consumer gets the error after the end mark
+        queue.clear();
+        queue.offer(END);
+    }
+
+    private void finish() {
+        synchronized (this) {
+            if (--pending > 0 || closed || error != null) return;
+        }
+        executor.shutdown();
+        try {
+            queue.put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Wait for the next entry
+     *
+     * @return false at the end of the listing
+     * @throws IOException if listing failed
+     */
+    @WorkerThread
+    public boolean hasNext() throws IOException {
+        if (next != null) return true;
+        if (!done) {
+            MetadataIndex.Entry entry;
+            try {
+                entry = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while listing");
+            }
+            if (entry != END) {
+                next = entry;
+                return true;
+            }
+            done = true;
+        }
+        if (error != null) throw error;
+        return false;
+    }
+
+    /**
+     * @return the next entry, its parent is the folder listed
+     * @throws NoSuchElementException at the end of the listing
+     * @throws IOException if listing failed
+     */
+    @WorkerThread @NonNull
+    public MetadataIndex.Entry next() throws IOException {
+        if (!hasNext()) throw new NoSuchElementException();
+        MetadataIndex.Entry entry = next;
+        next = null;
+        return entry;
+    }
+
+    /** Read the rest of the listing and close it */
+    @WorkerThread @NonNull
+    public List<MetadataIndex.Entry> toList() throws IOException {
+        try {
+            List<MetadataIndex.Entry> entries = new ArrayList<>();
+            while (hasNext()) entries.add(next());
+            return entries;
+        } finally {
+            close();
+        }
+    }
+
+    /** Stop the parts running, the entries not read are dropped */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        if (executor != null) executor.shutdownNow();
+        done = true;
+        next = null;
+        queue.clear();
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import android.os.Build;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * AES-GCM encryption of a file split into frames, so any frame may be encrypted and decrypted on its own.
+ * <br>
+ * Encrypted file is a header followed by frames. The header holds a magic, a version and a random 8 byte nonce
+ * prefix chosen per upload. Each frame is up to {@link #FRAME_SIZE} bytes of data followed by {@link #TAG_SIZE}
+ * bytes of the authentication tag. The last frame is always present, it may be empty.
+ * <br>
+ * Frame nonce is the prefix followed by a word of the last frame flag in the top bit and the frame index below it,
+ * so frames can't be reordered, and the file can't be truncated at a frame boundary without failing authentication.
+ * Files of version 1 with a 7 byte prefix and the flag in a byte of its own are still decrypted.
+ * <br>
+ * The object reuses a single {@link Cipher} and is not thread safe.
+ */
+class FrameCipher {
+    static final int FRAME_SIZE = 64 * 1024;
+    static final int TAG_SIZE = 16;
+    static final int HEADER_SIZE = 12;
+    /** Frame size on the drive */
+    static final int SEALED_FRAME_SIZE = FRAME_SIZE + TAG_SIZE;
+
+    private static final byte[] MAGIC = { 'G', 'D', 'E' };
+    private static final byte VERSION = 2;
+    private static final int PREFIX_SIZE = 8;
+    private static final int LAST_FLAG = 0x80000000;
+    /** Version 1 header is the magic "GDEF", the version byte and a 7 byte prefix */
+    private static final byte V1_MAGIC = 'F';
+    private static final byte V1 = 1;
+    private static final int V1_PREFIX_SIZE = 7;
+    private static final SecureRandom random = new SecureRandom();
+
+    private final SecretKey key;
+    private final Cipher cipher;
+    private final byte[] nonce = new byte[12];
+    private int version = VERSION;
+
+    FrameCipher(SecretKey key) throws IOException {
+        this.key = key;
+        try {
+            cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IOException("AES-GCM is not available", e);
+        }
+    }
+
+    /**
+     * Make a header with a new random nonce prefix and set the prefix to this cipher
+     */
+    byte[] newHeader() {
+        byte[] header = new byte[HEADER_SIZE];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        header[MAGIC.length] = VERSION;
+        byte[] prefix = new byte[PREFIX_SIZE];
+        random.nextBytes(prefix);
+        System.arraycopy(prefix, 0, header, MAGIC.length + 1, PREFIX_SIZE);
+        System.arraycopy(prefix, 0, nonce, 0, PREFIX_SIZE);
+        version = VERSION;
+        return header;
+    }
+
+    /**
+     * Take the nonce prefix from the header of an encrypted file
+     */
+    void setHeader(byte[] header) throws IOException {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header[i] != MAGIC[i]) throw new IOException("Not an encrypted file");
+        }
+        if (header[MAGIC.length] == V1_MAGIC && header[MAGIC.length + 1] == V1) {
+            version = V1;
+            System.arraycopy(header, MAGIC.length + 2, nonce, 0, V1_PREFIX_SIZE);
+            return;
+        }
+        if (header[MAGIC.length] != VERSION) throw new IOException("Unsupported encryption version " + header[MAGIC.length]);
+        version = VERSION;
+        System.arraycopy(header, MAGIC.length + 1, nonce, 0, PREFIX_SIZE);
+    }
+
+    /**
+     * @return number of bytes written to {@code output}, it is {@code length + TAG_SIZE}
+     */
+    int encrypt(long index, boolean last, byte[] input, int length, byte[] output) throws IOException {
+        return run(Cipher.ENCRYPT_MODE, index, last, input, length, output);
+    }
+
+    /**
+     * @return number of bytes written to {@code output}, it is {@code length - TAG_SIZE}
+     * @throws IOException if the frame fails authentication
+     */
+    int decrypt(long index, boolean last, byte[] input, int length, byte[] output) throws IOException {
+        if (length < TAG_SIZE) throw new IOException("Truncated frame " + index);
+        return run(Cipher.DECRYPT_MODE, index, last, input, length, output);
+    }
+
+    private int run(int mode, long index, boolean last, byte[] input, int length, byte[] output) throws IOException {
+        if (index < 0 || index > Integer.MAX_VALUE) throw new IOException("Frame index " + index + " out of range");
+        int word = (int) index;
+        if (version == V1) {
+            nonce[V1_PREFIX_SIZE] = (byte) (last ? 1 : 0);
+        } else if (last) {
+            word |= LAST_FLAG;
+        }
+        nonce[8] = (byte) (word >>> 24);
+        nonce[9] = (byte) (word >>> 16);
+        nonce[10] = (byte) (word >>> 8);
+        nonce[11] = (byte) word;
+        try {
+            cipher.init(mode, key, parameters(nonce));
+            return cipher.doFinal(input, 0, length, output, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Frame " + index + (mode == Cipher.ENCRYPT_MODE ? " encryption" : " decryption") + " failed", e);
+        }
+    }
+
+    /** GCMParameterSpec appeared in KitKat, older providers take GCM nonce as IvParameterSpec */
+    private static AlgorithmParameterSpec parameters(byte[] nonce) {
+        return (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+                ? new GCMParameterSpec(TAG_SIZE * 8, nonce) : new IvParameterSpec(nonce);
+    }
+
+    /** Size of encrypted file */
+    static long sealedLength(long length) {
+        long frames = Math.max(1, (length + FRAME_SIZE - 1) / FRAME_SIZE);
+        return HEADER_SIZE + frames * TAG_SIZE + length;
+    }
+
+    /** Number of frames in the encrypted file */
+    static long frameCount(long sealedLength) {
+        return Math.max(1, (sealedLength - HEADER_SIZE + SEALED_FRAME_SIZE - 1) / SEALED_FRAME_SIZE);
+    }
+
+    /** Position of the frame in the encrypted file */
+    static long framePosition(long index) {
+        return HEADER_SIZE + index * SEALED_FRAME_SIZE;
+    }
+
+    /** Read as many bytes as available up to the length */
+    static int readFully(java.io.InputStream inputStream, byte[] buffer, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int bytesRead = inputStream.read(buffer, offset + total, length - total);
+            if (bytesRead == -1) break;
+            total += bytesRead;
+        }
+        return total;
+    }
+}
@@ -21,15 +21,25 @@ import android.content.Intent;
 import android.support.annotation.AnyThread;
 import android.support.annotation.MainThread;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.WorkerThread;
+import android.util.Log;
 
 import com.google.android.gms.common.api.Scope;
 import com.google.android.gms.drive.Drive;
 
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.crypto.SecretKey;
 
 /**
  * Abstract class for simple interaction with files on Google Drive. Its main goal is to simplify and unify backup,
@@ -48,17 +58,209 @@ public abstract class GoogleDrive {
     /** Global enable flag */
     private static boolean enabled;
 
+    /** Bandwidth limit shared by all transfers */
+    private static final BandwidthLimiter bandwidthLimiter = new BandwidthLimiter(0);
+
     /** Drive scope to be used */
     Scope mScope = Drive.SCOPE_APPFOLDER;
 
+    /** Number of simultaneous transfers for bulk operations */
+    private int mParallelism = 4;
+    /** Number of retries of a failed item for bulk operations */
+    private int mMaxRetries = 2;
+
+    /** Check transferred data against checksums reported by the drive */
+    private boolean mVerifyChecksums;
+
+    /** Bandwidth limit of a single transfer, 0 for unlimited */
+    private long mTransferBandwidthLimit;
+
+    /** Key of client side encryption or null */
+    private SecretKey mEncryptionKey;
+
+    /** Local mirror of the metadata or null */
+    private MetadataIndex mMetadataIndex;
+
+    /** Resolver of write conflicts or null for unconditional updates */
+    private ConflictResolver mConflictResolver;
+
+    /** Default of {@link #setIdleTimeout(long)} */
+    public static final long DEFAULT_IDLE_TIMEOUT = 30 * 60 * 1000L;
+
+    /** Time per-file state of an unfinished operation is kept unused */
+    private long mIdleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    /** Cache of {@link #resolve(String)} results */
+    final LookupCache mLookupCache = new LookupCache(60 * 1000L, 10 * 1000L);
+
+    private final List<ChangeListener> mChangeListeners = new CopyOnWriteArrayList<>();
+
     /** If this set to {@code false}, {@link #connect()} function should throw an exception */
     public static void setEnabled(boolean enabled) { GoogleDrive.enabled = enabled; }
     /** Check if enabled */
     public static boolean isEnabled() { return enabled; }
 
+    /**
+     * Limit the total rate of all transfers in the process, so they don't starve interactive traffic of the app.
+     * The limit applies to running transfers at once. Currently supported by {@link GoogleDriveREST} only,
+     * the Android API transfers data in Google Play services.
+     *
+     * @param bytesPerSecond rate limit or 0 for unlimited
+     */
+    public static void setBandwidthLimit(long bytesPerSecond) { bandwidthLimiter.setRate(bytesPerSecond); }
+
     /** Set drive scope */
     public void setScope(Scope scope) { mScope = scope; }
 
+    /**
+     * Set the time a file opened by {@link #review(String, String, String)}, {@link #openOutputStream(String)} or
+     * {@link #openInputStream(String)} may stay unused. State of such a file left without {@link #commit(String)},
+     * {@link #close(String)} or closing the stream is dropped after it, so a missed call doesn't hold memory and
+     * connections forever. The data written is discarded then and streams of the file fail.
+     *
+     * @param idleTimeout timeout in milliseconds or 0 to keep the state until it is released
+     */
+    public void setIdleTimeout(long idleTimeout) { mIdleTimeout = idleTimeout; }
+
+    /** @return see {@link #setIdleTimeout(long)} */
+    public long getIdleTimeout() { return mIdleTimeout; }
+
+    /**
+     * Get told of files changed elsewhere. Changes are tracked while {@link GoogleDriveREST#watchChanges(ChangeReceiver)}
+     * is on, the caches are updated before the listeners are called.
+     */
+    public void addChangeListener(@NonNull ChangeListener listener) { mChangeListeners.add(listener); }
+
+    public void removeChangeListener(@NonNull ChangeListener listener) { mChangeListeners.remove(listener); }
+
+    /**
+     * Forget the cached lookups of a file changed elsewhere and tell the listeners
+     *
+     * @param name file name if known, lookups of the name are dropped too since a file may have got it
+     */
+    void fileChanged(@NonNull String id, @Nullable String name, boolean removed) {
+        mLookupCache.removeId(id);
+        if (name != null) mLookupCache.removeName(name);
+        for (ChangeListener listener : mChangeListeners) listener.onFileChanged(id, removed);
+    }
+
+    /** Set number of simultaneous transfers for {@link #writeAll(List, TransferListener)} and {@link #readAll(List, SinkFactory, TransferListener)} */
+    public void setParallelism(int parallelism) { mParallelism = parallelism; }
+
+    /**
+     * Turn on end-to-end verification of uploads and downloads. MD5 of the data is computed as it passes through the
+     * streams and compared with the checksum reported by the drive. A mismatch is signalled by
+     * {@link ChecksumException}, uploads and {@link #downloadTo(String, java.io.File)} are retried automatically if the
+     * data may be sent again. An upload that can't be verified, e.g. with no checksum reported by the drive, fails
+     * with {@link ChecksumException} too. Currently supported by {@link GoogleDriveREST} only.
+     */
+    public void setVerifyChecksums(boolean verify) { mVerifyChecksums = verify; }
+
+    /** Check if verification of transferred data is on */
+    public boolean isVerifyChecksums() { return mVerifyChecksums; }
+
+    /**
+     * Limit the rate of each single upload or download started after this call, see also
+     * {@link #setBandwidthLimit(long)}. Parts of a parallel download share the limit.
+     *
+     * @param bytesPerSecond rate limit or 0 for unlimited
+     */
+    public void setTransferBandwidthLimit(long bytesPerSecond) { mTransferBandwidthLimit = bytesPerSecond; }
+
+    /**
+     * Turn on client side encryption. Data written with {@link #write(String, String, String, InputStream)},
+     * {@link #openOutputStream(String)} and {@link #upload(String, String, String, java.io.File)} is encrypted with
+     * AES-GCM before it leaves the device, data read is decrypted and authenticated. The data is split in frames
+     * encrypted independently, so resumable upload and parallel download of ranges keep working.
+     * <br>
+     * Files written without encryption can't be read while it is on and vice versa. The stream returned by
+     * {@link #openOutputStream(String)} must be closed before {@link #commit(String)}, its last frame is written
+     * on close.
+     *
+     * @param key AES key or null to turn encryption off
+     */
+    public void setEncryption(SecretKey key) { mEncryptionKey = key; }
+
+    /**
+     * Turn on conflict detection for updates of existing files. The version of each file read or written is
+     * remembered, and an update is sent on condition that the file is still of that version. If the file was changed
+     * elsewhere meanwhile, the resolver is given both contents and its result is written on the same condition, up
+     * to a few times. An update of a file with no version remembered is unconditional: the first update in
+     * the process of a file not read before, or an update after metadata reads only. Read the content first to
+     * get it checked. Currently supported by {@link GoogleDriveREST} only.
+     * <br>
+     * The detection is best effort: the condition is sent as If-Match, which Drive API v3 doesn't document for
+     * file updates. Where it is not honoured the update is unconditional, no extra request is made to check.
+     *
+     * @param resolver resolver of conflicts or null to overwrite files unconditionally, as by default
+     */
+    public void setConflictResolver(@Nullable ConflictResolver resolver) { mConflictResolver = resolver; }
+
+    /** @return see {@link #setConflictResolver(ConflictResolver)} */
+    @Nullable
+    public ConflictResolver getConflictResolver() { return mConflictResolver; }
+
+    /** @return key of client side encryption or null */
+    SecretKey getEncryptionKey() { return mEncryptionKey; }
+
+    /** Encrypt data written to the stream if encryption is on */
+    OutputStream encrypt(OutputStream outputStream) throws IOException {
+        return (mEncryptionKey == null) ? outputStream : new EncryptingOutputStream(outputStream, mEncryptionKey);
+    }
+
+    /** Encrypt data read from the stream if encryption is on */
+    InputStream encrypt(InputStream inputStream) throws IOException {
+        if (mEncryptionKey == null) return inputStream;
+        return new EncryptingInputStream(inputStream, mEncryptionKey, new FrameCipher(mEncryptionKey).newHeader());
+    }
+
+    /** Decrypt data read from the stream if encryption is on */
+    InputStream decrypt(InputStream inputStream) throws IOException {
+        return (mEncryptionKey == null) ? inputStream : new DecryptingInputStream(inputStream, mEncryptionKey);
+    }
+
+    /** Make limiters for a new transfer: the global one and the one of the transfer if set */
+    BandwidthLimiter[] newTransferLimiters() {
+        BandwidthLimiter transferLimiter = (mTransferBandwidthLimit > 0) ? new BandwidthLimiter(mTransferBandwidthLimit) : null;
+        return new BandwidthLimiter[] { bandwidthLimiter, transferLimiter };
+    }
+
+    /** Limit the stream to the bandwidth of a new transfer */
+    InputStream throttle(InputStream inputStream) {
+        return new ThrottledInputStream(inputStream, newTransferLimiters());
+    }
+
+    /**
+     * Set local metadata index. If set, metadata of files written through this object is kept in the index and
+     * queries such as {@link #lastModified(String)} are answered from it while the entries are fresh.
+     * The index should be loaded by the caller, it is saved on {@link #reconcile()} and {@link #destroy()}.
+     *
+     * @param index metadata index or null to turn it off
+     */
+    public void setMetadataIndex(MetadataIndex index) { mMetadataIndex = index; }
+
+    /** @return local metadata index or null */
+    public MetadataIndex getMetadataIndex() { return mMetadataIndex; }
+
+    /** Save the metadata index if any, errors are logged only */
+    void saveMetadataIndex() {
+        if (mMetadataIndex == null) return;
+        try {
+            mMetadataIndex.save();
+        } catch (IOException e) {
+            Log.w("GoogleDrive", "Unable to save metadata index", e);
+        }
+    }
+
+    /** Number of simultaneous transfers for bulk operations and parallel downloads */
+    int getParallelism() { return mParallelism; }
+
+    /** Number of retries of a failed item for bulk operations */
+    int getMaxRetries() { return mMaxRetries; }
+
+    /** Set number of retries of a failed item for {@link #writeAll(List, TransferListener)} and {@link #readAll(List, SinkFactory, TransferListener)} */
+    public void setMaxRetries(int maxRetries) { mMaxRetries = maxRetries; }
+
     /**
      * Make all {@link Context} dependent initializations.
      * This function doesn't check {@link #isEnabled()}
@@ -77,6 +279,22 @@ public abstract class GoogleDrive {
     @WorkerThread
     abstract public void connect() throws IOException;
 
+    /**
+     * Start {@link #connect()} in background, so the first operation doesn't have to wait for the connection,
+     * authorization and token fetching. May be called at application start right after {@link #init(Context)}.
+     * Errors are ignored here, they will be reported again by the first operation.
+     */
+    @AnyThread
+    public void warmUp() {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try { connect(); } catch (Exception ignore) {}
+            }
+        };
+        new Thread(task, "GoogleDrive.warmUp").start();
+    }
+
     /**
      * Clean up the object. This function should be called if the object doesn't needed any more
      */
@@ -97,6 +315,16 @@ public abstract class GoogleDrive {
     @WorkerThread @NonNull
     abstract public String cd(String id, String path) throws IOException;
 
+    /**
+     * Refresh the metadata index with the current content of the working folder and save it.
+     * Does nothing if no index is set, see {@link #setMetadataIndex(MetadataIndex)}.
+     * It is up to the caller to call this periodically or when changes made elsewhere are expected.
+     *
+     * @throws IOException on error
+     */
+    @WorkerThread
+    abstract public void reconcile() throws IOException;
+
     /**
      * @return list of ids in working folder
      * @throws IOException on error
@@ -104,6 +332,67 @@ public abstract class GoogleDrive {
     @WorkerThread @NonNull
     abstract public List<String> ls() throws IOException;
 
+    /**
+     * List the working folder streaming the entries as they arrive. Large folders may be listed in parts running
+     * concurrently, up to {@link #setParallelism(int)} at once, so entries come in no particular order.
+     *
+     * @return listing of the working folder, it should be closed if not read to the end
+     * @throws IOException on error
+     */
+    @WorkerThread @NonNull
+    abstract public FileListing list() throws IOException;
+
+    /**
+     * Find a file by name in the working folder with a single query. Both found and missing names are cached for a
+     * short time, the cache is updated on files created and deleted through this object.
+     *
+     * @param name file name
+     * @return id of the file or null if there is no such file, if there are several of them any one is returned
+     * @throws IOException on error
+     */
+    @WorkerThread @Nullable
+    abstract public String resolve(String name) throws IOException;
+
+    /**
+     * Get an input stream from a file in the working folder, see {@link #resolve(String)} and
+     * {@link #openInputStream(String)}
+     *
+     * @param name file name
+     * @return input stream
+     * @throws FileNotFoundException if there is no such file
+     * @throws IOException on error
+     */
+    @WorkerThread @NonNull
+    public InputStream openInputStreamByName(String name) throws IOException {
+        String id = resolve(name);
+        if (id == null) throw new FileNotFoundException(name);
+        try {
+            return openInputStream(id);
+        } catch (IOException e) {
+            // The cached id may be stale, look it up once again
+            mLookupCache.removeId(id);
+            String newId = resolve(name);
+            if (newId == null) throw new FileNotFoundException(name);
+            if (newId.equals(id)) throw e;
+            return openInputStream(newId);
+        }
+    }
+
+    /**
+     * Write a file in the working folder, it is created if there is no file with this name.
+     * See {@link #resolve(String)} and {@link #write(String, String, String, InputStream)}
+     *
+     * @param name file name
+     * @param mimeType type of file to create
+     * @param inputStream data to be written to the file
+     * @return id of the file that was written
+     * @throws IOException on error
+     */
+    @WorkerThread @NonNull
+    public String writeByName(String name, String mimeType, InputStream inputStream) throws IOException {
+        return write(resolve(name), name, mimeType, inputStream);
+    }
+
     /**
      * Write file pointed by {@code id}. If {@code id == null} or file with given {@code id} doesn't exists it will be
      * created with given {@code title} and {@code mimeType}.
@@ -118,6 +407,177 @@ public abstract class GoogleDrive {
     @WorkerThread @NonNull
     abstract public String write(String id, String title, String mimeType, InputStream inputStream) throws IOException;
 
+    /**
+     * Write a file with progress reporting, cancellation and timeouts, see
+     * {@link #write(String, String, String, InputStream)} and {@link TransferOptions}.
+     * The progress counts the bytes read from {@code inputStream}, the total is unknown.
+     *
+     * @param options transfer options or null
+     * @throws java.io.InterruptedIOException if cancelled or the deadline passed
+     */
+    @WorkerThread @NonNull
+    public String write(String id, String title, String mimeType, InputStream inputStream,
+                        @Nullable TransferOptions options) throws IOException {
+        Transfer transfer = Transfer.begin(options);
+        try {
+            return write(id, title, mimeType, transfer.track(inputStream, -1));
+        } catch (IOException e) {
+            throw transfer.failure(e);
+        } finally {
+            transfer.end();
+        }
+    }
+
+    /**
+     * Write a local file, see {@link #write(String, String, String, InputStream)}. Implementations may take advantage
+     * of the known length and random access to the file.
+     *
+     * @param id file id or null
+     * @param title name of file to create
+     * @param mimeType type of file to create
+     * @param file local file to upload
+     * @return id of the file that was written
+     * @throws IOException on error
+     */
+    @WorkerThread @NonNull
+    public String upload(String id, String title, String mimeType, java.io.File file) throws IOException {
+        return upload(id, title, mimeType, file, null);
+    }
+
+    /**
+     * {@link #upload(String, String, String, java.io.File)} reporting the bytes read from the file
+     *
+     * @param counter counter of the bytes read or null
+     */
+    @WorkerThread @NonNull
+    String upload(String id, String title, String mimeType, java.io.File file,
+                  CountingInputStream.Counter counter) throws IOException {
+        InputStream inputStream = new FileInputStream(file);
+        if (counter != null) inputStream = new CountingInputStream(inputStream, counter);
+        try {
+            return write(id, title, mimeType, inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Store a file from the drive to a local file. The local file is overwritten.
+     * Implementations may download parts of a large file in parallel.
+     *
+     * @param id file id
+     * @param file local file to write
+     * @throws IOException on error
+     */
+    @WorkerThread
+    public void downloadTo(String id, java.io.File file) throws IOException {
+        InputStream inputStream = openInputStream(id);
+        try {
+            OutputStream outputStream = new FileOutputStream(file);
+            try {
+                byte[] buffer = new byte[8192];
+                int bytesRead;
+                while ((bytesRead = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, bytesRead);
+                }
+            } finally {
+                outputStream.close();
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Write a batch of files, see {@link #write(String, String, String, InputStream)}. Up to {@link #setParallelism(int)}
+     * files are transferred at once, all of them go to the working folder. A failed file is retried up to
+     * {@link #setMaxRetries(int)} times and then reported in the result, other files are not affected.
+     *
+     * @param specs files to write
+     * @param listener progress listener or null, it is called from the transfer threads
+     * @return ids of the files written in the order of {@code specs} and errors of the failed ones
+     * @throws IOException if the batch itself was interrupted
+     */
+    @WorkerThread @NonNull
+    public BulkResult writeAll(List<UploadSpec> specs, TransferListener listener) throws IOException {
+        connect();
+        return new BulkTransfer(this, mParallelism, mMaxRetries, listener).writeAll(specs);
+    }
+
+    /**
+     * Read a batch of files, see {@link #openInputStream(String)}. Parallelism and retries are the same as for
+     * {@link #writeAll(List, TransferListener)}.
+     *
+     * @param ids files to read
+     * @param sinkFactory destination of each file, may be called again for the same id on retry
+     * @param listener progress listener or null, it is called from the transfer threads
+     * @return ids of the files read in the order of {@code ids} and errors of the failed ones
+     * @throws IOException if the batch itself was interrupted
+     */
+    @WorkerThread @NonNull
+    public BulkResult readAll(List<String> ids, SinkFactory sinkFactory, TransferListener listener) throws IOException {
+        connect();
+        return new BulkTransfer(this, mParallelism, mMaxRetries, listener).readAll(ids, sinkFactory);
+    }
+
+    /**
+     * Delete a batch of files or folders permanently, see {@link #deleteAll(List, boolean)}
+     */
+    @WorkerThread @NonNull
+    public BulkResult deleteAll(List<String> ids) throws IOException {
+        return deleteAll(ids, true);
+    }
+
+    /**
+     * Delete a batch of files or folders, see {@link #delete(String, boolean)}. Parallelism and retries are the same
+     * as for {@link #writeAll(List, TransferListener)}, implementations may send the requests in batches.
+     *
+     * @param ids files to delete
+     * @param permanently delete permanently or move to trash
+     * @return ids of the files deleted in the order of {@code ids} and errors of the failed ones
+     * @throws IOException if the batch itself was interrupted
+     */
+    @WorkerThread @NonNull
+    public BulkResult deleteAll(List<String> ids, boolean permanently) throws IOException {
+        connect();
+        return new BulkTransfer(this, mParallelism, mMaxRetries, null).deleteAll(ids, permanently);
+    }
+
+    /**
+     * Delete a folder with all its content. Implementations may delete the tree with a single request where the
+     * drive allows it, and list the tree to delete its items only where it doesn't.
+     *
+     * @param id folder or file id
+     * @param permanently delete permanently or move to trash
+     * @return ids of the items deleted and errors of the failed ones
+     * @throws IOException if the folder can't be listed
+     */
+    @WorkerThread @NonNull
+    public BulkResult deleteTree(String id, boolean permanently) throws IOException {
+        delete(id, permanently);
+        return new BulkResult(Collections.singletonList(id), Collections.<Integer, IOException>emptyMap());
+    }
+
+    /**
+     * Move a file or a folder to another folder
+     *
+     * @param id file id
+     * @param folderId id of the new parent folder
+     * @throws IOException on error
+     */
+    @WorkerThread
+    abstract public void move(String id, String folderId) throws IOException;
+
+    /**
+     * Change the name of a file or a folder
+     *
+     * @param id file id
+     * @param title new name
+     * @throws IOException on error
+     */
+    @WorkerThread
+    abstract public void rename(String id, String title) throws IOException;
+
     /**
      * Check if file pointed by {@code id} exists. Create file if {@code id == null} or missed
      *
@@ -131,13 +591,47 @@ public abstract class GoogleDrive {
     abstract public String review(String id, String title, String mimeType) throws IOException;
 
     /**
-     * Finish file modification
+     * Finish file modification.
+     * If it throws, the data written to {@link #openOutputStream(String)} may be lost, an implementation may not
+     * keep a copy to retry with. The file on the drive keeps its previous content then, and the data should be
+     * written again after another {@link #review(String, String, String)}.
      * @param id file id
      * @throws IOException on error
      */
     @WorkerThread
     abstract public void commit(String id) throws IOException;
 
+    /**
+     * Finish file modification with progress reporting, cancellation and timeouts, see {@link TransferOptions}.
+     * On cancel the data written is discarded as by {@link #close(String)}.
+     *
+     * @param id file id
+     * @param options transfer options or null
+     * @throws java.io.InterruptedIOException if cancelled or the deadline passed
+     */
+    @WorkerThread
+    public void commit(final String id, @Nullable TransferOptions options) throws IOException {
+        Transfer transfer = Transfer.begin(options);
+        transfer.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    close(id);
+                } catch (IOException e) {
+                    Log.w("GoogleDrive", "Unable to discard " + id, e);
+                }
+            }
+        });
+        try {
+            commit(id);
+            transfer.check();
+        } catch (IOException e) {
+            throw transfer.failure(e);
+        } finally {
+            transfer.end();
+        }
+    }
+
     abstract public void close(String id) throws IOException;
 
     /**
@@ -151,7 +645,102 @@ public abstract class GoogleDrive {
     abstract public InputStream openInputStream(String id) throws IOException;
 
     /**
-     * Get an output stream to a file on the drive. The stream should be closed by the caller
+     * Get an input stream from a file with progress reporting, cancellation and timeouts, see
+     * {@link #openInputStream(String)} and {@link TransferOptions}. The transfer lasts until the stream is closed,
+     * on cancel a read in progress is aborted and the stream is closed.
+     *
+     * @param id file id
+     * @param options transfer options or null
+     * @return input stream
+     * @throws java.io.InterruptedIOException if cancelled or the deadline passed
+     */
+    @WorkerThread @NonNull
+    public InputStream openInputStream(String id, @Nullable TransferOptions options) throws IOException {
+        final Transfer transfer = Transfer.begin(options);
+        final InputStream inputStream;
+        try {
+            inputStream = openInputStream(id);
+        } catch (IOException e) {
+            transfer.end();
+            throw transfer.failure(e);
+        }
+        transfer.detach();
+
+        // The size on the drive is the size of the data read unless it is encrypted
+        MetadataIndex.Entry entry = (mMetadataIndex == null || mEncryptionKey != null) ? null : mMetadataIndex.get(id);
+        transfer.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    inputStream.close();
+                } catch (IOException ignore) {}
+            }
+        });
+        return new FilterInputStream(transfer.track(inputStream, entry == null ? -1 : entry.getSize())) {
+            @Override
+            public int read() throws IOException {
+                try {
+                    return super.read();
+                } catch (IOException e) {
+                    throw transfer.failure(e);
+                }
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                try {
+                    return super.read(b, off, len);
+                } catch (IOException e) {
+                    throw transfer.failure(e);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    transfer.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Open a file for random access reads. Only the blocks read are downloaded, see {@link RangeReader}.
+     * The reader should be closed by the caller
+     *
+     * @param id file id
+     * @return reader of the file content, decrypted if encryption is on
+     * @throws IOException on error
+     */
+    @WorkerThread @NonNull
+    abstract public RangeReader openReader(String id) throws IOException;
+
+    /**
+     * Read a part of a file without downloading the rest of it
+     *
+     * @param id file id
+     * @param offset position of the first byte
+     * @param length number of bytes to read
+     * @return the bytes read, shorter than {@code length} if the file ends before
+     * @throws IOException on error
+     */
+    @WorkerThread @NonNull
+    public byte[] read(String id, long offset, int length) throws IOException {
+        RangeReader reader = openReader(id);
+        try {
+            return reader.read(offset, length);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Get an output stream to a file on the drive. The stream should be closed by the caller.
+     * The data may be sent while it is written and is not necessarily kept, a failed upload is then reported by
+     * {@link #commit(String)} and the data should be written again. Keep the data until the commit succeeds if it
+     * can't be produced again.
      *
      * @param id file id
      * @return output stream
@@ -161,7 +750,10 @@ public abstract class GoogleDrive {
     abstract public OutputStream openOutputStream(String id) throws IOException;
 
     /**
-     * Returns the time that the file denoted by {@code id} was last modified
+     * Returns the time that the file denoted by {@code id} was last modified.
+     * If a metadata index is set, the time is answered from it while the entry is fresh, so a change made elsewhere
+     * may go unnoticed for up to {@link MetadataIndex#setMaxAge(long)}, {@link MetadataIndex#DEFAULT_MAX_AGE} of
+     * 5 minutes by default. Watch the changes to learn about them sooner.
      *
      * @param id file id
      * @return A long value representing the time the file was last modified, measured in milliseconds
@@ -172,13 +764,25 @@ public abstract class GoogleDrive {
     abstract public long lastModified(String id) throws IOException;
 
     /**
-     * Deletes the file or directory denoted by {@code id}
+     * Deletes the file or directory denoted by {@code id} permanently
+     *
+     * @param id file id
+     * @throws IOException on error
+     */
+    @WorkerThread
+    public void delete(String id) throws IOException {
+        delete(id, true);
+    }
+
+    /**
+     * Deletes the file or directory denoted by {@code id}. Content of a directory is deleted with it
      *
      * @param id file id
+     * @param permanently delete permanently or move to trash
      * @throws IOException on error
      */
     @WorkerThread
-    abstract public void delete(String id) throws IOException;
+    abstract public void delete(String id, boolean permanently) throws IOException;
 
     /**
      * Call this method from {@link Activity#onActivityResult(int, int, Intent)} to process results requested by this
@@ -202,4 +806,63 @@ public abstract class GoogleDrive {
         void googleDriveConnected();
         //void googleDriveError(String message);
     }
+
+    /**
+     * Destination of the files read by {@link #readAll(List, SinkFactory, TransferListener)}
+     */
+    public interface SinkFactory {
+        /**
+         * Open a stream to store the file content. The stream is closed by the caller
+         *
+         * @param id file id
+         * @return output stream, it should start from the beginning if called again for the same id
+         * @throws IOException on error
+         */
+        @NonNull
+        OutputStream open(String id) throws IOException;
+    }
+
+    /**
+     * Listener of the files changed elsewhere, see {@link #addChangeListener(ChangeListener)}
+     */
+    public interface ChangeListener {
+        /**
+         * Called from a background thread for each change in the order they were made
+         *
+         * @param id file id
+         * @param removed true if the file was deleted, trashed or is not accessible any more
+         */
+        void onFileChanged(String id, boolean removed);
+    }
+
+    /**
+     * Progress listener for bulk operations
+     */
+    public interface TransferListener {
+        /**
+         * Called as the data of a single item is transferred. The count starts over on retry
+         *
+         * @param index item index
+         * @param bytes bytes transferred so far
+         */
+        void onFileProgress(int index, long bytes);
+
+        /**
+         * Called once per item when it is done
+         *
+         * @param index item index
+         * @param id file id or null on error
+         * @param error last error or null on success
+         */
+        void onFileDone(int index, String id, IOException error);
+
+        /**
+         * Aggregate progress of the batch
+         *
+         * @param bytes bytes transferred so far
+         * @param total total bytes or -1 if unknown
+         * @param bytesPerSecond average throughput since the batch start
+         */
+        void onProgress(long bytes, long total, long bytesPerSecond);
+    }
 }
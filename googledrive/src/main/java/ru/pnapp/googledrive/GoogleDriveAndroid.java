@@ -22,6 +22,7 @@ import android.content.IntentSender;
 import android.net.Uri;
 import android.support.annotation.NonNull;
 import android.support.annotation.WorkerThread;
+import android.util.Log;
 
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
@@ -42,23 +43,54 @@ import com.google.android.gms.drive.query.Query;
 import com.google.android.gms.drive.query.SearchableField;
 
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
 
 public class GoogleDriveAndroid extends GoogleDrive {
     private static final int REQUEST_RESOLUTION = 0x7301;
+    private static final String TAG = "GoogleDriveAndroid";
 
     private GoogleApiClient mGoogleApiClient;
     private DriveFolder mFolder;
     private Context mContext;
 
-    private Map<String, DriveContents> mDriveContentsMap = Collections.synchronizedMap(new HashMap<String, DriveContents>());
+    private final SingleFlight<DriveFolder> mFolderFlight = new SingleFlight<>();
+    private final SingleFlight<Long> mModifiedFlight = new SingleFlight<>();
+
+    private final IdleMap<OpenContents> mDriveContentsMap = new IdleMap<>(getIdleTimeout());
+
+    /** Discards the contents left without commit() or closing the stream */
+    private final IdleMap.Expirer<OpenContents> mContentsExpirer = new IdleMap.Expirer<OpenContents>() {
+        @Override
+        public void expire(String id, OpenContents open) {
+            Log.w(TAG, "Discarded idle contents of " + id);
+            open.contents.discard(mGoogleApiClient);
+        }
+    };
+
+    /** Contents opened for a stream, the stream reports its use */
+    private static class OpenContents implements IdleMap.Active {
+        final DriveContents contents;
+        volatile long lastActive = System.currentTimeMillis();
+        /** Set while committed, the contents are never idle then */
+        volatile boolean committing;
+
+        OpenContents(DriveContents contents) {
+            this.contents = contents;
+        }
+
+        @Override
+        public long lastActive() {
+            return committing ? System.currentTimeMillis() : lastActive;
+        }
+    }
 
     @Override
     public void init(Context context) {
@@ -70,12 +102,19 @@ public class GoogleDriveAndroid extends GoogleDrive {
                 .build();
     }
 
+    @Override
+    public void setIdleTimeout(long idleTimeout) {
+        super.setIdleTimeout(idleTimeout);
+        mDriveContentsMap.setIdleTimeout(idleTimeout);
+    }
+
     @Override
     public void destroy() {
-        for (DriveContents contents : mDriveContentsMap.values()) {
-            contents.discard(mGoogleApiClient);
+        for (OpenContents open : mDriveContentsMap.values()) {
+            open.contents.discard(mGoogleApiClient);
         }
         if (mGoogleApiClient.isConnected())  mGoogleApiClient.disconnect();
+        saveMetadataIndex();
     }
 
     @WorkerThread
@@ -144,6 +183,26 @@ public class GoogleDriveAndroid extends GoogleDrive {
 
         if (path == null) throw new FileNotFoundException();
 
+        final List<String> segments = Uri.parse(path).getPathSegments();
+        StringBuilder key = new StringBuilder();
+        for (String segment : segments) key.append('/').append(segment);
+
+        // Concurrent calls on the same path share one lookup, so the folders are not created twice
+        DriveFolder folder = mFolderFlight.execute(key.toString(), new Callable<DriveFolder>() {
+            @Override
+            public DriveFolder call() throws Exception {
+                return resolveFolders(segments);
+            }
+        });
+
+        if (folder == null) throw new FileNotFoundException("Unable to initialize " + path);
+
+        mFolder = folder;
+        return getResourceId(folder.getDriveId());
+    }
+
+    @WorkerThread
+    private DriveFolder resolveFolders(List<String> segments) {
         DriveFolder folder;
         if (mScope.equals(Drive.SCOPE_FILE)) {
             folder = Drive.DriveApi.getRootFolder(mGoogleApiClient);
@@ -151,9 +210,8 @@ public class GoogleDriveAndroid extends GoogleDrive {
             folder = Drive.DriveApi.getAppFolder(mGoogleApiClient);
         }
 
-        Uri uri = Uri.parse(path);
         boolean seek = true;
-        for (String segment : uri.getPathSegments()) {
+        for (String segment : segments) {
             if (seek) {
                 DriveFolder found = findFolder(folder, segment);
                 if (found != null) {
@@ -167,11 +225,40 @@ public class GoogleDriveAndroid extends GoogleDrive {
                 break;
             }
         }
+        return folder;
+    }
 
-        if (folder == null) throw new FileNotFoundException("Unable to initialize " + path);
+    @Override
+    public String resolve(String name) throws IOException {
+        connect();
 
-        mFolder = folder;
-        return getResourceId(folder.getDriveId());
+        String key = LookupCache.key(String.valueOf(mFolder.getDriveId()), name);
+        LookupCache.Entry cached = mLookupCache.get(key);
+        if (cached != null) return cached.id;
+
+        Query query = new Query.Builder()
+                .addFilter(Filters.eq(SearchableField.TITLE, name))
+                .addFilter(Filters.eq(SearchableField.TRASHED, false))
+                .build();
+        DriveApi.MetadataBufferResult result = mFolder.queryChildren(mGoogleApiClient, query).await();
+        if (!result.getStatus().isSuccess()) throw new IOException(result.getStatus().getStatusMessage());
+
+        DriveId driveId = null;
+        MetadataBuffer metadataBuffer = result.getMetadataBuffer();
+        try {
+            for (Metadata metadata : metadataBuffer) {
+                if (!metadata.isTrashed()) {
+                    driveId = metadata.getDriveId();
+                    break;
+                }
+            }
+        } finally {
+            metadataBuffer.release();
+        }
+
+        String id = (driveId == null) ? null : getResourceId(driveId);
+        mLookupCache.put(key, id);
+        return id;
     }
 
     @Override @NonNull
@@ -191,6 +278,35 @@ public class GoogleDriveAndroid extends GoogleDrive {
         return resultList;
     }
 
+    /** The folder is listed at once, Drive API for Android has it cached on the device */
+    @Override @NonNull
+    public FileListing list() throws IOException {
+        connect();
+
+        String folderId = getResourceId(mFolder.getDriveId());
+        List<MetadataIndex.Entry> entries = new ArrayList<>();
+        long syncTime = System.currentTimeMillis();
+
+        DriveApi.MetadataBufferResult result = mFolder.listChildren(mGoogleApiClient).await();
+        if (!result.getStatus().isSuccess()) throw new IOException(result.getStatus().getStatusMessage());
+        MetadataBuffer metadataBuffer = result.getMetadataBuffer();
+        try {
+            for (Metadata metadata : metadataBuffer) {
+                entries.add(new MetadataIndex.Entry(
+                        getResourceId(metadata.getDriveId()),
+                        metadata.getTitle(),
+                        folderId,
+                        metadata.getFileSize(),
+                        null,
+                        metadata.getModifiedDate().getTime(),
+                        syncTime));
+            }
+        } finally {
+            metadataBuffer.release();
+        }
+        return new FileListing(entries);
+    }
+
     @Override @NonNull
     public String write(String id, String title, String mimeType, InputStream inputStream) throws IOException {
         connect();
@@ -204,6 +320,8 @@ public class GoogleDriveAndroid extends GoogleDrive {
         while ((bytesRead = inputStream.read(buffer)) != -1) {
             outputStream.write(buffer, 0, bytesRead);
         }
+        // Encryption writes the last frame on close
+        if (getEncryptionKey() != null) outputStream.close();
         commit(id);
 
         return id;
@@ -232,7 +350,9 @@ public class GoogleDriveAndroid extends GoogleDrive {
         if (result.getStatus().isSuccess()) {
             driveId = result.getDriveFile().getDriveId();
 
-            return getResourceId(driveId);
+            id = getResourceId(driveId);
+            mLookupCache.put(LookupCache.key(String.valueOf(mFolder.getDriveId()), title), id);
+            return id;
         }
 
         throw new IOException(result.getStatus().getStatusMessage());
@@ -240,10 +360,11 @@ public class GoogleDriveAndroid extends GoogleDrive {
 
     @Override
     public void commit(String id) throws IOException {
-        DriveContents contents = mDriveContentsMap.get(id);
-        if (contents == null) throw new IOException("Unexpected commit on " + id);
+        OpenContents open = mDriveContentsMap.get(id);
+        if (open == null) throw new IOException("Unexpected commit on " + id);
+        open.committing = true;
         try {
-            Status status = contents.commit(mGoogleApiClient, null).await();
+            Status status = open.contents.commit(mGoogleApiClient, null).await();
             if (!status.isSuccess()) throw new IOException(status.getStatusMessage());
         } finally {
             mDriveContentsMap.remove(id);
@@ -252,17 +373,57 @@ public class GoogleDriveAndroid extends GoogleDrive {
 
     @Override
     public void close(String id) throws IOException {
-        DriveContents contents = mDriveContentsMap.get(id);
-        if (contents == null) throw new IOException("Unexpected commit on " + id);
-        contents.discard(mGoogleApiClient);
+        OpenContents open = mDriveContentsMap.remove(id);
+        if (open == null) throw new IOException("Unexpected close on " + id);
+        open.contents.discard(mGoogleApiClient);
     }
 
     @Override @NonNull
     public InputStream openInputStream(String id) throws IOException {
         connect();
+        return decrypt(openContents(id));
+    }
 
+    /**
+     * The API has no partial reads, the contents are opened and skipped to the start of each range. The file is
+     * downloaded to the device once and further ranges are read from the local copy.
+     */
+    @Override @NonNull
+    public RangeReader openReader(String id) throws IOException {
+        connect();
+
+        DriveResource.MetadataResult result = getDriveId(id).asDriveResource().getMetadata(mGoogleApiClient).await();
+        if (!result.getStatus().isSuccess()) throw new IOException(result.getStatus().getStatusMessage());
+
+        final String fileId = id;
+        return new RangeReader(new RangeReader.Source() {
+            @Override
+            public InputStream open(long start, long end) throws IOException {
+                InputStream inputStream = openContents(fileId);
+                try {
+                    long position = 0;
+                    while (position < start) {
+                        long skipped = inputStream.skip(start - position);
+                        if (skipped <= 0) {
+                            if (inputStream.read() == -1) throw new IOException("Unexpected end of file " + fileId);
+                            skipped = 1;
+                        }
+                        position += skipped;
+                    }
+                } catch (IOException e) {
+                    inputStream.close();
+                    throw e;
+                }
+                return inputStream;
+            }
+        }, result.getMetadata().getFileSize(), getEncryptionKey());
+    }
+
+    /** Open raw contents of the file, they are released when the stream is closed */
+    private InputStream openContents(String id) throws IOException {
         DriveId driveId = getDriveId(id);
 
+        mDriveContentsMap.expire(mContentsExpirer);
         if (mDriveContentsMap.containsKey(id)) throw new IOException("Resource busy");
 
         DriveApi.DriveContentsResult result = driveId.asDriveFile()
@@ -270,12 +431,36 @@ public class GoogleDriveAndroid extends GoogleDrive {
 
 
         if (result.getStatus().isSuccess()) {
-            DriveContents contents = result.getDriveContents();
+            final DriveContents contents = result.getDriveContents();
             if (contents != null) {
                 InputStream inputStream = contents.getInputStream();
                 if (inputStream != null) {
-                    mDriveContentsMap.put(id, contents);
-                    return inputStream;
+                    final String contentsId = id;
+                    final OpenContents open = new OpenContents(contents);
+                    mDriveContentsMap.put(id, open);
+                    // Release the contents with the stream, so the file may be opened again
+                    return new FilterInputStream(inputStream) {
+                        @Override
+                        public int read() throws IOException {
+                            open.lastActive = System.currentTimeMillis();
+                            return super.read();
+                        }
+
+                        @Override
+                        public int read(byte[] b, int off, int len) throws IOException {
+                            open.lastActive = System.currentTimeMillis();
+                            return super.read(b, off, len);
+                        }
+
+                        @Override
+                        public void close() throws IOException {
+                            try {
+                                super.close();
+                            } finally {
+                                if (mDriveContentsMap.remove(contentsId) == open) contents.discard(mGoogleApiClient);
+                            }
+                        }
+                    };
                 }
             }
         }
@@ -289,6 +474,7 @@ public class GoogleDriveAndroid extends GoogleDrive {
 
         DriveId driveId = getDriveId(id);
 
+        mDriveContentsMap.expire(mContentsExpirer);
         if (mDriveContentsMap.containsKey(id)) throw new IOException("Resource busy");
 
         DriveApi.DriveContentsResult result = driveId.asDriveFile()
@@ -299,8 +485,21 @@ public class GoogleDriveAndroid extends GoogleDrive {
             if (contents != null) {
                 OutputStream outputStream = contents.getOutputStream();
                 if (outputStream != null) {
-                    mDriveContentsMap.put(id, contents);
-                    return outputStream;
+                    final OpenContents open = new OpenContents(contents);
+                    mDriveContentsMap.put(id, open);
+                    return encrypt(new FilterOutputStream(outputStream) {
+                        @Override
+                        public void write(int b) throws IOException {
+                            open.lastActive = System.currentTimeMillis();
+                            out.write(b);
+                        }
+
+                        @Override
+                        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+                            open.lastActive = System.currentTimeMillis();
+                            out.write(b, off, len);
+                        }
+                    });
                 }
             }
         }
@@ -310,22 +509,92 @@ public class GoogleDriveAndroid extends GoogleDrive {
 
     @Override
     public long lastModified(String id) throws IOException {
+        MetadataIndex index = getMetadataIndex();
+        MetadataIndex.Entry entry = (index == null) ? null : index.get(id);
+        if (entry != null) return entry.getModifiedTime();
+
         connect();
 
-        DriveId driveId = getDriveId(id);
+        // Concurrent requests for the same file share a single call
+        final DriveId driveId = getDriveId(id);
+        return mModifiedFlight.execute(id, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                DriveResource.MetadataResult result = driveId.asDriveResource().getMetadata(mGoogleApiClient).await();
+                if (result.getStatus().isSuccess()) return result.getMetadata().getModifiedDate().getTime();
 
-        DriveResource.MetadataResult result = driveId.asDriveResource().getMetadata(mGoogleApiClient).await();
-        if (result.getStatus().isSuccess()) return result.getMetadata().getModifiedDate().getTime();
+                throw new IOException(result.getStatus().getStatusMessage());
+            }
+        });
+    }
 
-        throw new IOException(result.getStatus().getStatusMessage());
+    @Override
+    public void delete(String id, boolean permanently) throws IOException {
+        connect();
+        DriveResource resource = getDriveId(id).asDriveResource();
+        Status status = (permanently ? resource.delete(mGoogleApiClient) : resource.trash(mGoogleApiClient)).await();
+        if (!status.isSuccess()) throw new IOException(status.getStatusMessage());
+        MetadataIndex index = getMetadataIndex();
+        if (index != null) index.remove(id);
+        mLookupCache.removeId(id);
     }
 
     @Override
-    public void delete(String id) throws IOException {
+    public void move(String id, String folderId) throws IOException {
         connect();
-        DriveId driveId = getDriveId(id);
-        Status status = driveId.asDriveResource().delete(mGoogleApiClient).await();
+        DriveId folderDriveId = getDriveId(folderId);
+        Status status = getDriveId(id).asDriveResource()
+                .setParents(mGoogleApiClient, Collections.singleton(folderDriveId)).await();
         if (!status.isSuccess()) throw new IOException(status.getStatusMessage());
+        MetadataIndex index = getMetadataIndex();
+        if (index != null) index.remove(id);
+        mLookupCache.removeId(id);
+    }
+
+    @Override
+    public void rename(String id, String title) throws IOException {
+        connect();
+        MetadataChangeSet changeSet = new MetadataChangeSet.Builder().setTitle(title).build();
+        DriveResource.MetadataResult result = getDriveId(id).asDriveResource()
+                .updateMetadata(mGoogleApiClient, changeSet).await();
+        if (!result.getStatus().isSuccess()) throw new IOException(result.getStatus().getStatusMessage());
+        MetadataIndex index = getMetadataIndex();
+        if (index != null) index.remove(id);
+        mLookupCache.removeId(id);
+    }
+
+    @Override
+    public void reconcile() throws IOException {
+        MetadataIndex index = getMetadataIndex();
+        if (index == null) return;
+
+        connect();
+
+        String folderId = getResourceId(mFolder.getDriveId());
+        List<MetadataIndex.Entry> entries = new ArrayList<>();
+        long syncTime = System.currentTimeMillis();
+
+        DriveApi.MetadataBufferResult result = mFolder.listChildren(mGoogleApiClient).await();
+        if (!result.getStatus().isSuccess()) throw new IOException(result.getStatus().getStatusMessage());
+        MetadataBuffer metadataBuffer = result.getMetadataBuffer();
+        try {
+            for (Metadata metadata : metadataBuffer) {
+                if (metadata.isTrashed()) continue;
+                entries.add(new MetadataIndex.Entry(
+                        getResourceId(metadata.getDriveId()),
+                        metadata.getTitle(),
+                        folderId,
+                        metadata.getFileSize(),
+                        null,
+                        metadata.getModifiedDate().getTime(),
+                        syncTime));
+            }
+        } finally {
+            metadataBuffer.release();
+        }
+
+        index.replaceChildren(folderId, entries);
+        index.save();
     }
 
     @Override
@@ -0,0 +1,668 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.android.gms.common.api.Scope;
+import com.google.android.gms.drive.Drive;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.SecretKey;
+
+/**
+ * {@link GoogleDrive} on top of both {@link GoogleDriveAndroid} and {@link GoogleDriveREST}, so an app doesn't have
+ * to pick one. Use it the same way as either of them.
+ * <br>
+ * REST is the primary backend, it supports every scope and carries the media: content, folders and changes go
+ * through it. The Android API keeps metadata cached on the device, so metadata reads ({@link #ls()},
+ * {@link #resolve(String)}, {@link #lastModified(String)}) go to whichever backend answers them faster on average,
+ * with an occasional call to the other one to keep its estimate fresh. The Android API is used only with
+ * {@link Drive#SCOPE_APPFOLDER} scope, it is connected in background on first use and is not used until connected.
+ * <br>
+ * If an operation fails on a backend, it is repeated on the other one, unless that could do it twice: a file created
+ * or a folder path resolved is repeated only if the first backend failed to connect. A backend failing with an error
+ * not related to a particular file is not used for {@link #COOL_DOWN_MS}. Files opened by
+ * {@link #review(String, String, String)} stay with the backend that opened them till commit.
+ * <br>
+ * The backends see changes made through each other only after the Android API syncs with the drive, so metadata is
+ * read through the backend of the last change for {@link #SYNC_WINDOW_MS}.
+ */
+public class GoogleDriveComposite extends GoogleDrive {
+    private static final String TAG = "GoogleDriveComposite";
+
+    /** A backend failed is not used for this long */
+    public static final long COOL_DOWN_MS = 60 * 1000L;
+    /** Metadata is read through the backend of the last change for this long */
+    public static final long SYNC_WINDOW_MS = 5 * 60 * 1000L;
+    /** Every this many metadata reads one goes to the slower backend */
+    private static final int EXPLORE_INTERVAL = 32;
+
+    /** Operation kinds */
+    private static final int METADATA = 0;
+    private static final int READ = 1;
+    private static final int WRITE = 2;
+    /** Operation on a file opened by review(), it is never moved to another backend */
+    private static final int OPENED = 3;
+
+    private final Backend android;
+    private final Backend rest;
+
+    /** Backend that opened the file by review() */
+    private final IdleMap<Backend> owners = new IdleMap<>(getIdleTimeout());
+    private final IdleMap.Expirer<Backend> ownerExpirer = new IdleMap.Expirer<Backend>() {
+        @Override
+        public void expire(String id, Backend backend) {}
+    };
+
+    private ExecutorService probeExecutor;
+    private Future<?> probe;
+
+    /** Working folder, the backends are moved to it on their next call */
+    private String folderId;
+    private int folderVersion;
+
+    private volatile Backend lastWriter;
+    private volatile long lastWriteTime;
+    private final AtomicInteger metadataCalls = new AtomicInteger();
+
+    private static class Backend {
+        final GoogleDrive drive;
+        final String name;
+        volatile boolean connected;
+        volatile long failedAt;
+        /** Average metadata read time in microseconds, 0 if not measured yet */
+        volatile long latency;
+        /** Version of the working folder the backend is in */
+        int folderVersion;
+
+        Backend(GoogleDrive drive, String name) {
+            this.drive = drive;
+            this.name = name;
+        }
+
+        boolean coolingDown() {
+            return failedAt != 0 && System.currentTimeMillis() - failedAt < COOL_DOWN_MS;
+        }
+
+        synchronized void record(long micros) {
+            latency = (latency == 0) ? micros : (7 * latency + micros) / 8;
+        }
+
+        void fail(IOException e) {
+            failedAt = System.currentTimeMillis();
+            Log.w(TAG, name + " failed, not used for " + COOL_DOWN_MS + " ms", e);
+        }
+    }
+
+    private interface Operation<V> {
+        V run(GoogleDrive drive) throws IOException;
+    }
+
+    public GoogleDriveComposite() {
+        this(new GoogleDriveAndroid(), new GoogleDriveREST());
+    }
+
+    public GoogleDriveComposite(GoogleDriveAndroid android, GoogleDriveREST rest) {
+        this((GoogleDrive) android, rest);
+    }
+
+    /** Backends of any type, the first one takes the role of the Android API */
+    GoogleDriveComposite(GoogleDrive android, GoogleDrive rest) {
+        this.android = new Backend(android, "Android API");
+        this.rest = new Backend(rest, "REST API");
+    }
+
+    @Override
+    public void setScope(Scope scope) {
+        super.setScope(scope);
+        android.drive.setScope(scope);
+        rest.drive.setScope(scope);
+    }
+
+    @Override
+    public void setIdleTimeout(long idleTimeout) {
+        super.setIdleTimeout(idleTimeout);
+        owners.setIdleTimeout(idleTimeout);
+        android.drive.setIdleTimeout(idleTimeout);
+        rest.drive.setIdleTimeout(idleTimeout);
+    }
+
+    /** The listener is called by the backend watching changes, see {@link GoogleDriveREST#watchChanges(ChangeReceiver)} */
+    @Override
+    public void addChangeListener(@NonNull ChangeListener listener) {
+        android.drive.addChangeListener(listener);
+        rest.drive.addChangeListener(listener);
+    }
+
+    @Override
+    public void removeChangeListener(@NonNull ChangeListener listener) {
+        android.drive.removeChangeListener(listener);
+        rest.drive.removeChangeListener(listener);
+    }
+
+    @Override
+    public void setConflictResolver(@Nullable ConflictResolver resolver) {
+        super.setConflictResolver(resolver);
+        android.drive.setConflictResolver(resolver);
+        rest.drive.setConflictResolver(resolver);
+    }
+
+    @Override
+    public void setParallelism(int parallelism) {
+        super.setParallelism(parallelism);
+        android.drive.setParallelism(parallelism);
+        rest.drive.setParallelism(parallelism);
+    }
+
+    @Override
+    public void setVerifyChecksums(boolean verify) {
+        super.setVerifyChecksums(verify);
+        android.drive.setVerifyChecksums(verify);
+        rest.drive.setVerifyChecksums(verify);
+    }
+
+    @Override
+    public void setTransferBandwidthLimit(long bytesPerSecond) {
+        super.setTransferBandwidthLimit(bytesPerSecond);
+        android.drive.setTransferBandwidthLimit(bytesPerSecond);
+        rest.drive.setTransferBandwidthLimit(bytesPerSecond);
+    }
+
+    @Override
+    public void setEncryption(SecretKey key) {
+        super.setEncryption(key);
+        android.drive.setEncryption(key);
+        rest.drive.setEncryption(key);
+    }
+
+    @Override
+    public void setMetadataIndex(MetadataIndex index) {
+        super.setMetadataIndex(index);
+        android.drive.setMetadataIndex(index);
+        rest.drive.setMetadataIndex(index);
+    }
+
+    @Override
+    public void setMaxRetries(int maxRetries) {
+        super.setMaxRetries(maxRetries);
+        android.drive.setMaxRetries(maxRetries);
+        rest.drive.setMaxRetries(maxRetries);
+    }
+
+    @Override
+    public void init(Context context) {
+        android.drive.init(context);
+        rest.drive.init(context);
+    }
+
+    /**
+     * Connects the REST backend and starts connecting the Android one in background. Succeeds if any of them is
+     * connected.
+     */
+    @Override
+    public void connect() throws IOException {
+        if (!isEnabled()) throw new IOException(ERROR_NOT_ENABLED);
+        Future<?> androidProbe = probe();
+        try {
+            rest.drive.connect();
+            rest.connected = true;
+        } catch (IOException e) {
+            if (androidProbe != null) {
+                try {
+                    androidProbe.get();
+                } catch (Exception ignore) {}
+            }
+            if (!available(android)) throw e;
+            rest.fail(e);
+            // A backend clears the flag waiting for the user, the other one goes on meanwhile
+            setEnabled(true);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        synchronized (this) {
+            if (probeExecutor != null) probeExecutor.shutdownNow();
+        }
+        android.drive.destroy();
+        rest.drive.destroy();
+    }
+
+    @Override @NonNull
+    public String cd(final String id, final String path) throws IOException {
+        // The folders are created by one backend, the other one is moved to them by id
+        return execute(WRITE, id != null, new Operation<String>() {
+            @Override
+            public String run(GoogleDrive drive) throws IOException {
+                String folder = drive.cd(id, path);
+                synchronized (GoogleDriveComposite.this) {
+                    folderId = folder;
+                    backend(drive).folderVersion = ++folderVersion;
+                }
+                return folder;
+            }
+        });
+    }
+
+    @Override
+    public void reconcile() throws IOException {
+        execute(METADATA, true, new Operation<Void>() {
+            @Override
+            public Void run(GoogleDrive drive) throws IOException {
+                drive.reconcile();
+                return null;
+            }
+        });
+    }
+
+    @Override @NonNull
+    public List<String> ls() throws IOException {
+        return execute(METADATA, true, new Operation<List<String>>() {
+            @Override
+            public List<String> run(GoogleDrive drive) throws IOException {
+                return drive.ls();
+            }
+        });
+    }
+
+    @Override @NonNull
+    public FileListing list() throws IOException {
+        return execute(METADATA, true, new Operation<FileListing>() {
+            @Override
+            public FileListing run(GoogleDrive drive) throws IOException {
+                return drive.list();
+            }
+        });
+    }
+
+    @Override @Nullable
+    public String resolve(final String name) throws IOException {
+        return execute(METADATA, true, new Operation<String>() {
+            @Override
+            public String run(GoogleDrive drive) throws IOException {
+                return drive.resolve(name);
+            }
+        });
+    }
+
+    @Override
+    public long lastModified(final String id) throws IOException {
+        return execute(METADATA, true, new Operation<Long>() {
+            @Override
+            public Long run(GoogleDrive drive) throws IOException {
+                return drive.lastModified(id);
+            }
+        });
+    }
+
+    @Override @NonNull
+    public String write(final String id, final String title, final String mimeType, final InputStream inputStream) throws IOException {
+        // The stream is consumed by the first attempt, so it is never repeated
+        return execute(id == null ? null : owners.get(id), WRITE, false, new Operation<String>() {
+            @Override
+            public String run(GoogleDrive drive) throws IOException {
+                String fileId = drive.write(id, title, mimeType, inputStream);
+                owners.remove(fileId);
+                return fileId;
+            }
+        });
+    }
+
+    @Override @NonNull
+    public String upload(final String id, final String title, final String mimeType, final java.io.File file) throws IOException {
+        return execute(id == null ? null : owners.get(id), WRITE, id != null, new Operation<String>() {
+            @Override
+            public String run(GoogleDrive drive) throws IOException {
+                String fileId = drive.upload(id, title, mimeType, file);
+                owners.remove(fileId);
+                return fileId;
+            }
+        });
+    }
+
+    @Override
+    public void downloadTo(final String id, final java.io.File file) throws IOException {
+        execute(READ, true, new Operation<Void>() {
+            @Override
+            public Void run(GoogleDrive drive) throws IOException {
+                drive.downloadTo(id, file);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public BulkResult deleteAll(final List<String> ids, final boolean permanently) throws IOException {
+        return execute(WRITE, true, new Operation<BulkResult>() {
+            @Override
+            public BulkResult run(GoogleDrive drive) throws IOException {
+                return drive.deleteAll(ids, permanently);
+            }
+        });
+    }
+
+    @Override
+    public BulkResult deleteTree(final String id, final boolean permanently) throws IOException {
+        return execute(WRITE, true, new Operation<BulkResult>() {
+            @Override
+            public BulkResult run(GoogleDrive drive) throws IOException {
+                return drive.deleteTree(id, permanently);
+            }
+        });
+    }
+
+    @Override
+    public void move(final String id, final String folderId) throws IOException {
+        execute(WRITE, true, new Operation<Void>() {
+            @Override
+            public Void run(GoogleDrive drive) throws IOException {
+                drive.move(id, folderId);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void rename(final String id, final String title) throws IOException {
+        execute(WRITE, true, new Operation<Void>() {
+            @Override
+            public Void run(GoogleDrive drive) throws IOException {
+                drive.rename(id, title);
+                return null;
+            }
+        });
+    }
+
+    @Override @NonNull
+    public String review(final String id, final String title, final String mimeType) throws IOException {
+        owners.expire(ownerExpirer);
+        Backend owner = (id == null) ? null : owners.get(id);
+        return execute(owner, WRITE, id != null && owner == null, new Operation<String>() {
+            @Override
+            public String run(GoogleDrive drive) throws IOException {
+                String fileId = drive.review(id, title, mimeType);
+                owners.put(fileId, backend(drive));
+                return fileId;
+            }
+        });
+    }
+
+    @Override
+    public void commit(final String id) throws IOException {
+        execute(owner(id), OPENED, false, new Operation<Void>() {
+            @Override
+            public Void run(GoogleDrive drive) throws IOException {
+                drive.commit(id);
+                owners.remove(id);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void commit(final String id, @Nullable final TransferOptions options) throws IOException {
+        execute(owner(id), OPENED, false, new Operation<Void>() {
+            @Override
+            public Void run(GoogleDrive drive) throws IOException {
+                drive.commit(id, options);
+                owners.remove(id);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void close(final String id) throws IOException {
+        execute(owner(id), OPENED, false, new Operation<Void>() {
+            @Override
+            public Void run(GoogleDrive drive) throws IOException {
+                try {
+                    drive.close(id);
+                } finally {
+                    owners.remove(id);
+                }
+                return null;
+            }
+        });
+    }
+
+    @Override @NonNull
+    public InputStream openInputStream(final String id) throws IOException {
+        return execute(READ, true, new Operation<InputStream>() {
+            @Override
+            public InputStream run(GoogleDrive drive) throws IOException {
+                return drive.openInputStream(id);
+            }
+        });
+    }
+
+    @Override @NonNull
+    public RangeReader openReader(final String id) throws IOException {
+        return execute(READ, true, new Operation<RangeReader>() {
+            @Override
+            public RangeReader run(GoogleDrive drive) throws IOException {
+                return drive.openReader(id);
+            }
+        });
+    }
+
+    @Override @NonNull
+    public OutputStream openOutputStream(final String id) throws IOException {
+        return execute(owner(id), OPENED, false, new Operation<OutputStream>() {
+            @Override
+            public OutputStream run(GoogleDrive drive) throws IOException {
+                return drive.openOutputStream(id);
+            }
+        });
+    }
+
+    @Override
+    public void delete(final String id, final boolean permanently) throws IOException {
+        execute(WRITE, true, new Operation<Void>() {
+            @Override
+            public Void run(GoogleDrive drive) throws IOException {
+                drive.delete(id, permanently);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public boolean activityResultCallback(Activity activity, int requestCode, int resultCode, Intent data) {
+        if (android.drive.activityResultCallback(activity, requestCode, resultCode, data)) {
+            // The user may have resolved the failure, try again at once
+            android.failedAt = 0;
+            return true;
+        }
+        if (rest.drive.activityResultCallback(activity, requestCode, resultCode, data)) {
+            rest.failedAt = 0;
+            return true;
+        }
+        return false;
+    }
+
+    /** Start connecting the Android backend in background unless connected, failed recently or not capable */
+    private synchronized Future<?> probe() {
+        if (android.connected || !androidCapable() || android.coolingDown()) return null;
+        if (probe != null && !probe.isDone()) return probe;
+        if (probeExecutor == null) {
+            probeExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    Thread thread = new Thread(r, "GoogleDrive.probe");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        probe = probeExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                boolean enabled = isEnabled();
+                long start = System.nanoTime();
+                try {
+                    android.drive.connect();
+                    android.connected = true;
+                    Log.i(TAG, android.name + " connected in " + (System.nanoTime() - start) / 1000000L + " ms");
+                } catch (IOException e) {
+                    android.fail(e);
+                    // The Android API clears the flag waiting for the user, REST goes on meanwhile
+                    if (enabled && !isEnabled() && !rest.coolingDown()) setEnabled(true);
+                }
+            }
+        });
+        return probe;
+    }
+
+    /** The Android API doesn't support scopes other than the app folder as REST does */
+    private boolean androidCapable() {
+        return Drive.SCOPE_APPFOLDER.equals(mScope);
+    }
+
+    /** Check if the backend may be used, it is a last resort while cooling down */
+    private boolean available(Backend backend) {
+        return backend != android || (android.connected && androidCapable());
+    }
+
+    private boolean usable(Backend backend) {
+        return available(backend) && !backend.coolingDown();
+    }
+
+    private Backend backend(GoogleDrive drive) {
+        return (drive == android.drive) ? android : rest;
+    }
+
+    private Backend owner(String id) {
+        Backend owner = owners.get(id);
+        return (owner == null) ? rest : owner;
+    }
+
+    /** Backend to send the operation to first */
+    private Backend route(int kind) {
+        if (!usable(android)) return rest;
+        if (kind != METADATA || !usable(rest)) return usable(rest) ? rest : android;
+
+        // The other backend may not see the last change yet
+        Backend writer = lastWriter;
+        if (writer != null && System.currentTimeMillis() - lastWriteTime < SYNC_WINDOW_MS) return writer;
+
+        Backend fast = android;
+        Backend slow = rest;
+        if (android.latency > 0 && rest.latency > 0 && rest.latency < android.latency) {
+            fast = rest;
+            slow = android;
+        }
+        if (slow.latency == 0 || metadataCalls.incrementAndGet() % EXPLORE_INTERVAL == 0) return slow;
+        return fast;
+    }
+
+    private <V> V execute(int kind, boolean idempotent, Operation<V> operation) throws IOException {
+        return execute(null, kind, idempotent, operation);
+    }
+
+    /**
+     * Run the operation on a backend and on the other one if it fails
+     *
+     * @param first backend to run on first or null to route by kind
+     * @param idempotent the operation may be repeated on the other backend after it was started
+     */
+    private <V> V execute(Backend first, int kind, boolean idempotent, Operation<V> operation) throws IOException {
+        probe();
+        if (first == null) first = route(kind);
+        long start = System.nanoTime();
+        boolean prepared = false;
+        try {
+            first.drive.connect();
+            moveToFolder(first);
+            prepared = true;
+            V result = operation.run(first.drive);
+            done(first, kind, start);
+            return result;
+        } catch (IOException e) {
+            if (e instanceof InterruptedIOException || e instanceof ChecksumException) throw e;
+            if (!prepared || isBackendFailure(e)) first.fail(e);
+            Backend second = (first == rest) ? android : rest;
+            if (kind == OPENED || (prepared && !idempotent) || !available(second)) throw e;
+
+            Log.w(TAG, first.name + " failed, trying " + second.name, e);
+            start = System.nanoTime();
+            try {
+                second.drive.connect();
+                moveToFolder(second);
+                V result = operation.run(second.drive);
+                second.failedAt = 0;
+                done(second, kind, start);
+                return result;
+            } catch (IOException e2) {
+                Log.w(TAG, second.name + " failed too", e2);
+                throw e;
+            }
+        }
+    }
+
+    private void done(Backend backend, int kind, long start) {
+        if (kind == METADATA) {
+            backend.record((System.nanoTime() - start) / 1000L);
+        } else if (kind == WRITE || kind == OPENED) {
+            lastWriter = backend;
+            lastWriteTime = System.currentTimeMillis();
+        }
+    }
+
+    /** Move the backend to the working folder if it is not there yet */
+    private void moveToFolder(Backend backend) throws IOException {
+        String folder;
+        int version;
+        synchronized (this) {
+            folder = folderId;
+            version = folderVersion;
+        }
+        if (folder == null) return;
+        synchronized (backend) {
+            if (backend.folderVersion == version) return;
+            backend.drive.cd(folder, null);
+            backend.folderVersion = version;
+        }
+    }
+
+    /** Check if the error is of the backend rather than of the file */
+    private static boolean isBackendFailure(IOException e) {
+        if (e instanceof FileNotFoundException) return false;
+        if (e instanceof GoogleJsonResponseException) {
+            int status = ((GoogleJsonResponseException) e).getStatusCode();
+            return status >= 500 || status == 401 || status == 403 || status == 429;
+        }
+        return true;
+    }
+}
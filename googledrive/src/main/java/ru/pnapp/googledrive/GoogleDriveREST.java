@@ -27,34 +27,80 @@ import android.net.Uri;
 import android.os.Build;
 import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.WorkerThread;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
 
 import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.auth.UserRecoverableAuthException;
 import com.google.android.gms.common.GoogleApiAvailability;
 import com.google.api.client.extensions.android.http.AndroidHttp;
 import com.google.api.client.googleapis.extensions.android.gms.auth.GoogleAccountCredential;
 import com.google.api.client.googleapis.extensions.android.gms.auth.UserRecoverableAuthIOException;
-import com.google.api.client.http.FileContent;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+import com.google.api.client.googleapis.media.MediaHttpUploader;
+import com.google.api.client.http.AbstractInputStreamContent;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpMethods;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseInterceptor;
+import com.google.api.client.http.HttpStatusCodes;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.InputStreamContent;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.util.DateTime;
 import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.DriveScopes;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
+import com.google.api.services.drive.model.Channel;
 import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
 
+import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Date;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.crypto.SecretKey;
 
 public class GoogleDriveREST extends GoogleDrive {
     private static final String PREF_ACCOUNT_NAME = "accountName";
@@ -62,10 +108,57 @@ public class GoogleDriveREST extends GoogleDrive {
     private static final int REQUEST_AUTHORIZE = 0x7320;
     private static final int REQUEST_GOOGLE_PLAY_SERVICES = 0x7327;
 
-    @SuppressWarnings("FieldCanBeLocal")
-    private static boolean DELETE_PERMANENTLY = true;
+    /** Alias of the root folder accepted by Drive API anywhere a folder id is expected */
+    private static final String ROOT = "root";
+
+    private static final String TAG = "GoogleDriveREST";
+
+    /** Number of attempts to transfer a file if checksum doesn't match */
+    private static final int MAX_VERIFY_ATTEMPTS = 3;
+    /** Number of attempts to write the resolved content of a file changed elsewhere */
+    private static final int MAX_CONFLICT_ATTEMPTS = 3;
+    private static final int STATUS_CODE_PRECONDITION_FAILED = 412;
+    private static final int STATUS_CODE_PARTIAL_CONTENT = 206;
+    /** Number of file versions remembered for conditional updates */
+    private static final int ETAG_CACHE_SIZE = 1024;
+
+    private static final String FOLDER_MIME = "application/vnd.google-apps.folder";
+
+    /** Number of ids to generate in advance for {@link #review(String, String, String)} */
+    private static final int ID_POOL_SIZE = 50;
+    /** Drive API accepts up to this many calls in a batch */
+    private static final int BATCH_SIZE = 100;
+    private static final long BATCH_RETRY_DELAY_MS = 1000L;
+
+    /** Metadata fields requested for the files written, kept in {@link MetadataIndex} */
+    private static final String FILE_FIELDS = "id, name, parents, size, md5Checksum, modifiedTime";
+
+    /** Files are downloaded in parallel parts of at least this size */
+    private static final long MIN_DOWNLOAD_PART = 4 * 1024 * 1024;
+
+    /** Page size used by {@link #list()}, the largest one Drive API accepts */
+    private static final int LIST_PAGE_SIZE = 1000;
+    /** Parts of {@link #list()} started at once per thread, the dense parts are split further while running */
+    private static final int LIST_PARTS_PER_THREAD = 2;
 
-    private final HttpTransport httpTransport = AndroidHttp.newCompatibleTransport();
+    /** Lifetime asked for a notification channel, Drive may cut it down */
+    private static final long CHANNEL_TTL_MS = 24 * 60 * 60 * 1000L;
+    /** A channel is replaced this long before it expires */
+    private static final long CHANNEL_RENEW_MS = 10 * 60 * 1000L;
+    private static final long CHANNEL_RETRY_MS = 60 * 1000L;
+    private static final String CHANGE_FIELDS =
+            "nextPageToken, newStartPageToken, changes(fileId, removed, file(" + FILE_FIELDS + ", trashed))";
+
+    /** Initial buffer size for the content of write(), doubled up to the multipart threshold */
+    private static final int MEDIA_BUFFER_SIZE = 8 * 1024;
+
+    /** Default for {@link #setMultipartThreshold(int)} */
+    public static final int DEFAULT_MULTIPART_THRESHOLD = 256 * 1024;
+
+    /** Created on the first {@link #connect()} unless set by {@link #setTransport(HttpTransport, HttpRequestInitializer)} */
+    private HttpTransport httpTransport;
+    /** Set by {@link #setTransport(HttpTransport, HttpRequestInitializer)}, account setup is skipped then */
+    private HttpRequestInitializer transportInitializer;
     private final JsonFactory jsonFactory = GsonFactory.getDefaultInstance();
 
     private String accountName;
@@ -74,25 +167,145 @@ public class GoogleDriveREST extends GoogleDrive {
     private Context mContext;
 
     private String mFolder;
+    /** Shared drive to work in, see {@link #setSharedDrive(String)} */
+    private String sharedDrive;
+    /** Real id of the "root" alias, the metadata index is keyed by real folder ids only */
+    private volatile String rootId;
+
+    private int multipartThreshold = DEFAULT_MULTIPART_THRESHOLD;
+
+    private final ChunkSizer uploadChunkSizer = new ChunkSizer();
+    private final ChunkSizer downloadChunkSizer = new ChunkSizer();
+
+    private final SingleFlight<String> folderFlight = new SingleFlight<>();
+    private final SingleFlight<MetadataIndex.Entry> metadataFlight = new SingleFlight<>();
+    private final DownloadFanOut downloadFanOut = new DownloadFanOut();
+
+    /** Temporary files of shared downloads and upload replays, see {@link #spoolStore()} */
+    private volatile SpoolStore spoolStore;
+    private long spoolQuota = SpoolStore.DEFAULT_QUOTA;
+    /** Orphans of the spool are deleted on the first {@link #connect()} */
+    private boolean spoolSwept;
+
+    private final IdPool idPool = new IdPool(new IdPool.Generator() {
+        @Override
+        public List<String> generate(int count) throws IOException {
+            connect();
+            return drive.files().generateIds().setCount(count).setSpace(space()).setFields("ids").execute().getIds();
+        }
+    }, ID_POOL_SIZE, ID_POOL_SIZE / 5);
+
+    /** Queries on the working folder, built once per folder */
+    private static class FolderQueries {
+        final String folder;
+        final String children;
+        final String liveChildren;
+        /** Tail of the name lookup, the quoted name is put in front of it */
+        final String nameSuffix;
+
+        FolderQueries(String folder) {
+            this.folder = folder;
+            children = "'" + folder + "' in parents";
+            liveChildren = children + " and trashed=false";
+            nameSuffix = " and " + liveChildren;
+        }
+    }
+
+    private volatile FolderQueries folderQueries;
+
+    /** ETags of the file versions last read or written, see {@link #setConflictResolver(ConflictResolver)} */
+    private final Map<String, String> etags = Collections.synchronizedMap(new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > ETAG_CACHE_SIZE;
+        }
+    });
+
+    /** ETag of the last response received by the thread, for the responses not naming the file in the url */
+    private final ThreadLocal<String> lastETag = new ThreadLocal<>();
+
+    /** Changes watched with push notifications, see {@link #watchChanges(ChangeReceiver)} */
+    private static class Watch {
+        final ChangeReceiver receiver;
+        /** Secret sent back with each notification of the channels of this watch */
+        final String token = UUID.randomUUID().toString();
+        /** Runs the fetches and channel renewals one at a time */
+        final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                Thread thread = new Thread(r, "GoogleDrive.watch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        /** A fetch is queued and not started yet, notifications coming meanwhile are served by it */
+        final AtomicBoolean queued = new AtomicBoolean();
+        volatile String address;
+        volatile Channel channel;
+        volatile String pageToken;
+        volatile boolean stopped;
+
+        Watch(ChangeReceiver receiver) {
+            this.receiver = receiver;
+        }
+    }
+
+    private Watch watch;
 
-    private Map<String, Content> contentMap = new HashMap<>();
+    private final IdleMap<Content> contentMap = new IdleMap<>(getIdleTimeout());
 
-    private class Content {
+    /** Drops the content left without commit() or close() */
+    private final IdleMap.Expirer<Content> contentExpirer = new IdleMap.Expirer<Content>() {
+        @Override
+        public void expire(String id, Content content) {
+            Log.w(TAG, "Dropped idle content of " + id + (content.pending ? ", the file is not created" : ""));
+            StreamingUpload<File> stream = content.stream;
+            if (stream != null) stream.abort();
+        }
+    };
+
+    private class Content implements IdleMap.Active {
         String mime;
         String name;
-        java.io.File tempFile;
+        /** Upload started by {@link #openOutputStream(String)} */
+        volatile StreamingUpload<File> stream;
+        /** Set while committed, the content is never idle then */
+        volatile boolean committing;
+        /** Folder to create the file in */
+        String folder;
+        /** Id is taken from {@link #idPool}, the file is not created on the drive yet */
+        boolean pending;
 
         Content(String name, String mime) {
             this.mime = mime;
             this.name = name;
         }
+
+        @Override
+        public long lastActive() {
+            if (committing) return System.currentTimeMillis();
+            StreamingUpload<File> stream = this.stream;
+            return (stream == null) ? 0 : stream.getLastWrite();
+        }
     }
 
     @WorkerThread
     synchronized public void connect() throws IOException {
         if (!isEnabled()) throw new IOException(ERROR_NOT_ENABLED);
+        if (!spoolSwept) {
+            spoolSwept = true;
+            spoolStore().sweep();
+        }
         if (drive != null) return;
 
+        if (transportInitializer != null) {
+            drive = new Drive.Builder(httpTransport, jsonFactory, withSharedDrive(withETags(withTransferOptions(transportInitializer))))
+                    .setApplicationName(BuildConfig.APPLICATION_ID)
+                    .build();
+            if (mFolder == null) mFolder = root();
+            return;
+        }
+
         if (!checkGooglePlayServices()) {
             setEnabled(false);
             throw new IOException("Google Play Services not available");
@@ -125,45 +338,238 @@ public class GoogleDriveREST extends GoogleDrive {
 
             credential.setSelectedAccountName(accountName);
 
-            drive = new Drive.Builder(httpTransport, jsonFactory, credential)
+            // Fetch the token now, so it is cached by Play Services before the first real request
+            credential.getToken();
+
+            if (httpTransport == null) httpTransport = AndroidHttp.newCompatibleTransport();
+            drive = new Drive.Builder(httpTransport, jsonFactory, withSharedDrive(withETags(withTransferOptions(credential))))
                     .setApplicationName(BuildConfig.APPLICATION_ID)
                     .build();
 
-            File file;
-            if (mFolder == null)
-                file = drive.files().get("root").execute();
-            else
-                file = drive.files().get(mFolder).execute();
-            mFolder = file.getId();
+            // The folder is not verified here, the first request on it will fail if it is gone
+            if (mFolder == null) mFolder = root();
+        } catch (UserRecoverableAuthException e) {
+            requestAuthorization(e.getIntent());
+            throw new IOException("Not authorized");
         } catch (UserRecoverableAuthIOException e) {
-            final Intent intent = e.getIntent();
-            if (mContext instanceof Activity) {
-                ((Activity) mContext).runOnUiThread(new Runnable() {
+            requestAuthorization(e.getIntent());
+            throw new IOException("Not authorized");
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Connect fails: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends all requests through the given transport instead of the network, e.g. the FakeDrive of the tests.
+     * No account is selected and no token is fetched then, the initializer may add own headers.
+     * Must be called before the first {@link #connect()}
+     * @param transport transport to use
+     * @param initializer request initializer, may be null
+     */
+    synchronized public void setTransport(@NonNull HttpTransport transport, @Nullable HttpRequestInitializer initializer) {
+        httpTransport = transport;
+        transportInitializer = initializer != null ? initializer : new HttpRequestInitializer() {
+            @Override
+            public void initialize(HttpRequest request) {
+            }
+        };
+        drive = null;
+        idPool.clear();
+    }
+
+    /**
+     * Apply the timeouts of the transfer running in the thread to each request, and don't send requests of
+     * a cancelled transfer, see {@link TransferOptions}. Requests reused later get their default timeouts back.
+     * The response of the transfer last received is disconnected on cancel, so a download or a response blocked
+     * on the network is aborted. A request still sending its body stops on the next read of the content.
+     */
+    private static HttpRequestInitializer withTransferOptions(final HttpRequestInitializer initializer) {
+        return new HttpRequestInitializer() {
+            @Override
+            public void initialize(HttpRequest request) throws IOException {
+                initializer.initialize(request);
+                final HttpExecuteInterceptor interceptor = request.getInterceptor();
+                final int connectTimeout = request.getConnectTimeout();
+                final int readTimeout = request.getReadTimeout();
+                request.setInterceptor(new HttpExecuteInterceptor() {
+                    @Override
+                    public void intercept(HttpRequest request) throws IOException {
+                        if (interceptor != null) interceptor.intercept(request);
+                        Transfer transfer = Transfer.current();
+                        TransferOptions options = (transfer == null) ? null : transfer.options;
+                        if (transfer != null) transfer.check();
+                        request.setConnectTimeout(options != null && options.getConnectTimeout() > 0 ? options.getConnectTimeout() : connectTimeout);
+                        request.setReadTimeout(options != null && options.getReadTimeout() > 0 ? options.getReadTimeout() : readTimeout);
+                    }
+                });
+                final HttpResponseInterceptor responseInterceptor = request.getResponseInterceptor();
+                request.setResponseInterceptor(new HttpResponseInterceptor() {
                     @Override
-                    public void run() {
-                        ((Activity) mContext).startActivityForResult(intent, REQUEST_AUTHORIZE);
+                    public void interceptResponse(final HttpResponse response) throws IOException {
+                        if (responseInterceptor != null) responseInterceptor.interceptResponse(response);
+                        Transfer transfer = Transfer.current();
+                        if (transfer == null) return;
+                        transfer.abortOnCancel(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    response.disconnect();
+                                } catch (IOException ignore) {}
+                            }
+                        });
                     }
                 });
             }
-        } catch (Exception e) {
-            throw new IOException("Connect fails: " + e.getMessage());
-        }
+        };
+    }
+
+    /**
+     * Remember the ETag of the file content read or written, so an update of the file can be sent on condition of
+     * its version. Metadata reads are skipped, they don't bring the content of the version they see.
+     */
+    private HttpRequestInitializer withETags(final HttpRequestInitializer initializer) {
+        return new HttpRequestInitializer() {
+            @Override
+            public void initialize(HttpRequest request) throws IOException {
+                initializer.initialize(request);
+                final HttpResponseInterceptor interceptor = request.getResponseInterceptor();
+                request.setResponseInterceptor(new HttpResponseInterceptor() {
+                    @Override
+                    public void interceptResponse(HttpResponse response) throws IOException {
+                        if (interceptor != null) interceptor.interceptResponse(response);
+                        String etag = response.getHeaders().getETag();
+                        if (etag == null || !response.isSuccessStatusCode()) return;
+                        lastETag.set(etag);
+                        GenericUrl url = response.getRequest().getUrl();
+                        if (!"media".equals(url.getFirst("alt")) && !url.getRawPath().startsWith("/upload/")) return;
+                        String id = fileId(url);
+                        if (id != null) etags.put(id, etag);
+                    }
+                });
+            }
+        };
+    }
+
+    /** @return id of the file named by the url or null */
+    private static String fileId(GenericUrl url) {
+        String path = url.getRawPath();
+        int start = (path == null) ? -1 : path.lastIndexOf("/files/");
+        if (start < 0) return null;
+        String id = path.substring(start + "/files/".length());
+        return (id.isEmpty() || id.indexOf('/') >= 0 || "generateIds".equals(id)) ? null : id;
+    }
+
+    /**
+     * Add the shared drive parameters to each request. The url is set after the initializer runs, so it is done by
+     * the interceptor, which is also called for each request of a batch.
+     */
+    private HttpRequestInitializer withSharedDrive(final HttpRequestInitializer initializer) {
+        final String driveId = sharedDrive;
+        if (driveId == null) return initializer;
+        return new HttpRequestInitializer() {
+            @Override
+            public void initialize(HttpRequest request) throws IOException {
+                initializer.initialize(request);
+                final HttpExecuteInterceptor interceptor = request.getInterceptor();
+                request.setInterceptor(new HttpExecuteInterceptor() {
+                    @Override
+                    public void intercept(HttpRequest request) throws IOException {
+                        if (interceptor != null) interceptor.intercept(request);
+                        GenericUrl url = request.getUrl();
+                        String path = url.getRawPath();
+                        // Batch envelopes and upload sessions carry no parameters of their own
+                        if (path == null || path.startsWith("/batch") || url.containsKey("upload_id")) return;
+                        url.set("supportsAllDrives", true);
+                        if (HttpMethods.GET.equals(request.getRequestMethod()) && path.endsWith("/files")) {
+                            url.set("includeItemsFromAllDrives", true);
+                            url.set("corpora", "drive");
+                            url.set("driveId", driveId);
+                        } else if (path.endsWith("/changes") || path.endsWith("/changes/watch")) {
+                            url.set("includeItemsFromAllDrives", true);
+                            url.set("driveId", driveId);
+                        } else if (path.endsWith("/changes/startPageToken")) {
+                            url.set("driveId", driveId);
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Work in a shared drive instead of My Drive: paths of {@link #cd(String, String)} start at its root and listings
+     * are done within it. Must be called before the first {@link #connect()}
+     *
+     * @param driveId shared drive id or null for My Drive
+     */
+    synchronized public void setSharedDrive(@Nullable String driveId) {
+        sharedDrive = driveId;
+        drive = null;
+        mFolder = null;
+        rootId = null;
+        idPool.clear();
+    }
+
+    /** @return shared drive id or null, see {@link #setSharedDrive(String)} */
+    @Nullable
+    public String getSharedDrive() {
+        return sharedDrive;
+    }
+
+    /** Root folder of the drive worked in */
+    private String root() {
+        return (sharedDrive != null) ? sharedDrive : ROOT;
+    }
+
+    /**
+     * Folder id to key the metadata index with. The "root" alias is replaced with the real id, fetched once, since
+     * the parents of files reported by the drive are real ids.
+     */
+    private String indexKey(String folder) throws IOException {
+        if (!ROOT.equals(folder) || getMetadataIndex() == null) return folder;
+        if (rootId == null) rootId = drive.files().get(ROOT).setFields("id").execute().getId();
+        return rootId;
+    }
+
+    @Override
+    public void warmUp() {
+        if (drive == null) super.warmUp();
     }
 
     @Override
     public void init(Context context) {
         mContext = context;
         drive = null;
+        rootId = null;
+        idPool.clear();
+        spoolStore = null;
+        spoolSwept = false;
+    }
+
+    /**
+     * @return store of temporary files in the cache directory of the context, or in the system temporary directory
+     * without a context. It is made on first use, so the drive works without {@link #init(Context)}.
+     */
+    synchronized private SpoolStore spoolStore() {
+        if (spoolStore == null) {
+            java.io.File cacheDir = (mContext == null)
+                    ? new java.io.File(System.getProperty("java.io.tmpdir")) : mContext.getCacheDir();
+            spoolStore = SpoolStore.forDirectory(new java.io.File(cacheDir, "googledrive-spool"));
+            spoolStore.setQuota(spoolQuota);
+        }
+        return spoolStore;
     }
 
     @Override
     public void destroy() {
-        for(Content content : contentMap.values()) {
-            if (content.tempFile != null) {
-                //noinspection ResultOfMethodCallIgnored
-                content.tempFile.delete();
-            }
+        stopWatching();
+        for (Content content : contentMap.values()) {
+            if (content.stream != null) content.stream.abort();
         }
+        idPool.shutdown();
+        saveMetadataIndex();
     }
 
     @Override @NonNull
@@ -177,105 +583,877 @@ public class GoogleDriveREST extends GoogleDrive {
 
         if (path == null) throw new FileNotFoundException();
 
-        File file = drive.files().get("root").setFields("id").execute();
-        Uri uri = Uri.parse(path);
-        boolean seek = true;
-        for (String segment : uri.getPathSegments()) {
-            if (seek) {
-                List<File> fileList = drive.files().list()
-                        .setFields("files(id)")
-                        .setQ("name='" + segment + "' and mimeType='application/vnd.google-apps.folder' and '" + file.getId() + "' in parents")
-                        .execute().getFiles();
-                if (fileList != null && fileList.size() > 0) {
-                    file = fileList.get(0);
-                    continue;
-                }
-                seek = false;
-            }
+        final List<String> segments = Uri.parse(path).getPathSegments();
+        StringBuilder key = new StringBuilder();
+        for (String segment : segments) key.append('/').append(segment);
 
-            File newFile = new File();
-            newFile
-                    .setName(segment)
-                    .setParents(Collections.singletonList(file.getId()))
-                    .setMimeType("application/vnd.google-apps.folder");
+        // Concurrent calls on the same path share one lookup, so the folders are not created twice
+        mFolder = folderFlight.execute(key.toString(), new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return resolveFolders(root(), segments);
+            }
+        });
+        return mFolder;
+    }
 
-            file = drive.files().create(newFile).setFields("id").execute();
+    /**
+     * Walk the path from the parent folder creating missing segments
+     *
+     * @return id of the last segment
+     */
+    private String resolveFolders(String parentId, List<String> segments) throws IOException {
+        String folderId = parentId;
+        int i = 0;
+        for (; i < segments.size(); i++) {
+            String found = findFolder(folderId, segments.get(i));
+            if (found == null) break;
+            folderId = found;
         }
+        if (i == segments.size()) return folderId;
 
-        mFolder = file.getId();
-        return mFolder;
+        List<String> ids = createFolders(folderId, segments.subList(i, segments.size()));
+
+        String winner = dedupFolder(folderId, segments.get(i), ids.get(0));
+        if (!winner.equals(ids.get(0))) {
+            // Another client created the same folder meanwhile, continue in its folder
+            return resolveFolders(winner, segments.subList(i + 1, segments.size()));
+        }
+        return ids.get(ids.size() - 1);
     }
 
+    /**
+     * @return id of the oldest folder with the name in the parent folder or null
+     */
+    private String findFolder(String parentId, String name) throws IOException {
+        String key = LookupCache.key(parentId, name) + '/';
+        LookupCache.Entry cached = mLookupCache.get(key);
+        if (cached != null && cached.id != null) return cached.id;
 
-    @Override @NonNull
-    public List<String> ls() throws IOException {
-        connect();
+        List<File> fileList = listFolders(parentId, name, 1);
+        if (fileList.isEmpty()) return null;
+
+        String id = fileList.get(0).getId();
+        mLookupCache.put(key, id);
+        return id;
+    }
+
+    private List<File> listFolders(String parentId, String name, int limit) throws IOException {
         List<File> fileList = drive.files().list()
                 .setFields("files(id)")
-                .setQ("'" + mFolder + "' in parents")
+                .setQ("name=" + quote(name) + " and mimeType='" + FOLDER_MIME + "' and '" + parentId + "' in parents and trashed=false")
+                .setOrderBy("createdTime")
+                .setPageSize(limit)
                 .execute().getFiles();
+        return (fileList == null) ? Collections.<File>emptyList() : fileList;
+    }
+
+    /**
+     * Create a chain of nested folders. Ids are generated up front, so all the folders are sent in one batch.
+     * Batch parts are executed in arbitrary order, a folder whose parent is not created yet is sent again.
+     *
+     * @return ids of the folders created
+     */
+    private List<String> createFolders(String parentId, final List<String> names) throws IOException {
+        final List<String> ids = drive.files().generateIds()
+                .setCount(names.size())
+                .setSpace(space())
+                .setFields("ids")
+                .execute().getIds();
+
+        final Set<Integer> pending = new TreeSet<>();
+        for (int i = 0; i < names.size(); i++) pending.add(i);
+
+        while (!pending.isEmpty()) {
+            final IOException[] error = new IOException[1];
+            final Set<Integer> done = new HashSet<>();
+            BatchRequest batch = newBatch();
+            for (final int i : pending) {
+                File folder = new File()
+                        .setId(ids.get(i))
+                        .setName(names.get(i))
+                        .setParents(Collections.singletonList(i == 0 ? parentId : ids.get(i - 1)))
+                        .setMimeType(FOLDER_MIME);
+                drive.files().create(folder).setFields("id").queue(batch, new JsonBatchCallback<File>() {
+                    @Override
+                    public void onSuccess(File file, HttpHeaders responseHeaders) {
+                        done.add(i);
+                    }
+
+                    @Override
+                    public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+                        if (e.getCode() == HttpStatusCodes.STATUS_CODE_NOT_FOUND) return; // Parent is not there yet
+                        if (e.getCode() == 409) {
+                            done.add(i); // Created by the previous round
+                            return;
+                        }
+                        error[0] = new IOException("Unable to create folder " + names.get(i) + ": " + e.getMessage());
+                    }
+                });
+            }
+            batch.execute();
+            if (error[0] != null) throw error[0];
+            if (done.isEmpty()) throw new IOException("Unable to create folders " + names);
+            pending.removeAll(done);
+        }
+
+        for (int i = 0; i < names.size(); i++) {
+            mLookupCache.put(LookupCache.key(i == 0 ? parentId : ids.get(i - 1), names.get(i)) + '/', ids.get(i));
+        }
+        return ids;
+    }
+
+    /**
+     * Check the folder just created is the only one with this name. If another client created one at the same
+     * time, the oldest folder wins and the other one is deleted with its contents.
+     *
+     * @return id of the folder to use
+     */
+    private String dedupFolder(String parentId, String name, String folderId) throws IOException {
+        List<File> fileList = listFolders(parentId, name, 10);
+        if (fileList.isEmpty() || folderId.equals(fileList.get(0).getId())) return folderId;
+
+        String winner = fileList.get(0).getId();
+        try {
+            drive.files().delete(folderId).execute();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to delete duplicate folder " + name, e);
+        }
+        mLookupCache.put(LookupCache.key(parentId, name) + '/', winner);
+        return winner;
+    }
+
+    /** Batch request on the Drive API batch endpoint */
+    private BatchRequest newBatch() {
+        return drive.batch().setBatchUrl(new GenericUrl(drive.getRootUrl() + "batch/drive/v3"));
+    }
 
-        ArrayList<String> result = new ArrayList<>(fileList.size());
-        for (File file : fileList) result.add(file.getId());
 
+    @Override
+    public String resolve(String name) throws IOException {
+        connect();
+
+        String key = LookupCache.key(mFolder, name);
+        LookupCache.Entry cached = mLookupCache.get(key);
+        if (cached != null) return cached.id;
+
+        final String folder = mFolder;
+        final String indexKey = indexKey(folder);
+        MetadataIndex index = getMetadataIndex();
+        MetadataIndex.Entry entry = (index == null) ? null : index.find(indexKey, name);
+        if (entry != null) return entry.getId();
+
+        final String[] found = new String[1];
+        listFiles("files(" + FILE_FIELDS + ")", "name=" + quote(name) + folderQueries(folder).nameSuffix, null, null,
+                new MetadataReader.Visitor() {
+                    @Override
+                    public void visit(MetadataReader file) {
+                        if (found[0] != null) return;
+                        found[0] = file.id;
+                        index(file, indexKey);
+                    }
+                });
+        mLookupCache.put(key, found[0]);
+        return found[0];
+    }
+
+    @Override @NonNull
+    public List<String> ls() throws IOException {
+        ArrayList<String> result = new ArrayList<>();
+        for (MetadataIndex.Entry entry : list().toList()) result.add(entry.getId());
         return result;
     }
 
+    /**
+     * The first page is read at once in modifiedTime order. If there are more, the rest of the time span up to
+     * the newest file is cut in ranges listed concurrently, a range which has more than a page splits the rest of
+     * itself in two and goes on with the lower half. Drive API has no range queries on names, while modifiedTime
+     * compares both ways, so it is used to shard. Files modified during the listing may be missed or come twice,
+     * the duplicates are dropped.
+     */
+    @Override @NonNull
+    public FileListing list() throws IOException {
+        connect();
+        final String folder = mFolder;
+        final String query = folderQueries(folder).children;
+        // Entries are keyed by the folder id, not by the "root" alias
+        final String parent = indexKey(folder);
+        final long syncTime = System.currentTimeMillis();
+        final FileListing listing = new FileListing(getParallelism());
+        try {
+            final long[] last = new long[1];
+            String pageToken = listPage(query, "modifiedTime", null, LIST_PAGE_SIZE, new MetadataReader.Visitor() {
+                @Override
+                public void visit(MetadataReader file) throws IOException {
+                    listing.add(file.toEntry(parent, syncTime));
+                    last[0] = file.modifiedTime;
+                }
+            });
+            if (pageToken != null) {
+                final long[] newest = new long[1];
+                listPage(query, "modifiedTime desc", null, 1, new MetadataReader.Visitor() {
+                    @Override
+                    public void visit(MetadataReader file) {
+                        newest[0] = file.modifiedTime;
+                    }
+                });
+                int parts = Math.max(1, getParallelism() * LIST_PARTS_PER_THREAD);
+                long step = Math.max(1, (newest[0] - last[0]) / parts);
+                for (long from = last[0]; from < newest[0]; from += step) {
+                    listRange(listing, parent, query, syncTime, from, Math.min(from + step, newest[0]));
+                }
+                // Files modified since the newest one was seen
+                listRange(listing, parent, query, syncTime, newest[0], Long.MAX_VALUE);
+            }
+        } catch (IOException e) {
+            listing.close();
+            throw e;
+        }
+        listing.release();
+        return listing;
+    }
+
+    /** Submit listing of the files with from <= modifiedTime < to, Long.MAX_VALUE has no upper bound */
+    private void listRange(FileListing listing, final String parent, final String query, final long syncTime,
+                           final long from, final long to) {
+        listing.submit(new FileListing.Source() {
+            @Override
+            public void run(final FileListing listing) throws IOException {
+                String rangeQuery = query + " and modifiedTime >= '" + rfc3339(from) + "'";
+                if (to != Long.MAX_VALUE) rangeQuery += " and modifiedTime < '" + rfc3339(to) + "'";
+                final long[] last = new long[1];
+                MetadataReader.Visitor visitor = new MetadataReader.Visitor() {
+                    @Override
+                    public void visit(MetadataReader file) throws IOException {
+                        listing.add(file.toEntry(parent, syncTime));
+                        last[0] = file.modifiedTime;
+                    }
+                };
+                String pageToken = null;
+                do {
+                    if (listing.isStopped()) return;
+                    pageToken = listPage(rangeQuery, "modifiedTime", pageToken, LIST_PAGE_SIZE, visitor);
+                    // Too much for one page, leave the upper half of the rest to another thread
+                    if (pageToken != null && to != Long.MAX_VALUE && to - last[0] > 1) {
+                        long middle = last[0] + (to - last[0]) / 2;
+                        listRange(listing, parent, query, syncTime, last[0], middle);
+                        listRange(listing, parent, query, syncTime, middle, to);
+                        return;
+                    }
+                } while (pageToken != null);
+            }
+        });
+    }
+
+    private static String rfc3339(long time) {
+        return new DateTime(false, time, 0).toStringRfc3339();
+    }
+
+    /**
+     * Track the changes made to the drive elsewhere with push notifications instead of polling. Drive posts a
+     * notification to the receiver on each change, the changes are fetched then, the metadata index and lookup
+     * cache are updated and the change listeners are called, see {@link #addChangeListener(ChangeListener)}.
+     * Files new to a folder go to the index if the folder was listed by {@link #reconcile()}.
+     * Notifications coming while a fetch is queued are served by it. The channel is renewed before it expires,
+     * changes made meanwhile are fetched then. Watching stops on {@link #stopWatching()} or {@link #destroy()}.
+     *
+     * @param receiver endpoint receiving the notifications, it is opened here and closed on stop
+     * @throws IOException if the receiver or the channel can't be opened
+     */
+    @WorkerThread
+    synchronized public void watchChanges(@NonNull ChangeReceiver receiver) throws IOException {
+        connect();
+        stopWatching();
+        final Watch watch = new Watch(receiver);
+        watch.pageToken = drive.changes().getStartPageToken().execute().getStartPageToken();
+        watch.address = receiver.open(new ChangeReceiver.Callback() {
+            @Override
+            public void onNotification(String channelId, String token, String resourceState) {
+                if (!watch.token.equals(token)) {
+                    Log.w(TAG, "Notification of unknown channel " + channelId);
+                    return;
+                }
+                if (!"sync".equals(resourceState)) fetchChanges(watch);
+            }
+        });
+        try {
+            openChannel(watch);
+        } catch (IOException e) {
+            watch.executor.shutdownNow();
+            receiver.close();
+            throw e;
+        }
+        this.watch = watch;
+    }
+
+    /**
+     * Stop watching the changes, see {@link #watchChanges(ChangeReceiver)}. The channel is closed in background.
+     */
+    synchronized public void stopWatching() {
+        final Watch watch = this.watch;
+        if (watch == null) return;
+        this.watch = null;
+        watch.stopped = true;
+        watch.receiver.close();
+        watch.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (watch.channel != null) stopChannel(watch.channel);
+            }
+        });
+        watch.executor.shutdown();
+    }
+
+    /** Open a channel at the watch address, the one opened before is stopped then */
+    private void openChannel(final Watch watch) throws IOException {
+        long now = System.currentTimeMillis();
+        Channel channel = drive.changes().watch(watch.pageToken, new Channel()
+                .setId(UUID.randomUUID().toString())
+                .setType("web_hook")
+                .setAddress(watch.address)
+                .setToken(watch.token)
+                .setExpiration(now + CHANNEL_TTL_MS))
+                .setSpaces(space())
+                .execute();
+        Channel old = watch.channel;
+        watch.channel = channel;
+        if (old != null) stopChannel(old);
+        long expiration = (channel.getExpiration() != null) ? channel.getExpiration() : now + CHANNEL_TTL_MS;
+        scheduleRenewal(watch, Math.max(0, expiration - now - CHANNEL_RENEW_MS));
+    }
+
+    private void scheduleRenewal(final Watch watch, long delay) {
+        watch.executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (watch.stopped) return;
+                try {
+                    openChannel(watch);
+                } catch (IOException e) {
+                    Log.w(TAG, "Renewing notification channel fails", e);
+                    scheduleRenewal(watch, CHANNEL_RETRY_MS);
+                }
+                // Nothing is lost if notifications were missed
+                fetchChanges(watch);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void stopChannel(Channel channel) {
+        try {
+            drive.channels().stop(new Channel().setId(channel.getId()).setResourceId(channel.getResourceId())).execute();
+        } catch (IOException e) {
+            Log.w(TAG, "Stopping notification channel fails", e);
+        }
+    }
+
+    /** Queue a fetch of the changes unless one is queued already */
+    private void fetchChanges(final Watch watch) {
+        if (watch.stopped || !watch.queued.compareAndSet(false, true)) return;
+        try {
+            watch.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    watch.queued.set(false);
+                    if (watch.stopped) return;
+                    try {
+                        pullChanges(watch);
+                    } catch (IOException e) {
+                        // The page token is kept, the changes are fetched on the next notification
+                        Log.w(TAG, "Fetching changes fails", e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Stopped meanwhile
+        }
+    }
+
+    /** Read the changes since the page token of the watch and apply them */
+    private void pullChanges(Watch watch) throws IOException {
+        connect();
+        String pageToken = watch.pageToken;
+        while (pageToken != null && !watch.stopped) {
+            ChangeList list = drive.changes().list(pageToken)
+                    .setFields(CHANGE_FIELDS)
+                    .setPageSize(LIST_PAGE_SIZE)
+                    .setSpaces(space())
+                    .execute();
+            if (list.getChanges() != null) {
+                for (Change change : list.getChanges()) applyChange(change);
+            }
+            if (list.getNewStartPageToken() != null) {
+                watch.pageToken = list.getNewStartPageToken();
+                return;
+            }
+            pageToken = list.getNextPageToken();
+            if (pageToken != null) watch.pageToken = pageToken;
+        }
+    }
+
+    /** Update the index with a change made elsewhere and tell the listeners */
+    private void applyChange(Change change) {
+        String id = change.getFileId();
+        if (id == null) return;
+        File file = change.getFile();
+        boolean removed = Boolean.TRUE.equals(change.getRemoved()) || file == null || Boolean.TRUE.equals(file.getTrashed());
+        MetadataIndex index = getMetadataIndex();
+        if (index != null) {
+            if (removed) {
+                index.remove(id);
+            } else if (index.get(id) != null || isIndexed(index, file)) {
+                index(file, null);
+            }
+        }
+        fileChanged(id, (file == null) ? null : file.getName(), removed);
+    }
+
+    /** @return true if a parent of the file is mirrored by the index, so a new file there goes to it too */
+    private static boolean isIndexed(MetadataIndex index, File file) {
+        if (file.getParents() == null) return false;
+        for (String parent : file.getParents()) {
+            if (index.isMirrored(parent)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Set the size limit for uploads done with a single multipart request. Larger content is sent with
+     * resumable upload, which costs an extra round trip but survives connection drops.
+     *
+     * @param bytes content size limit, default is {@link #DEFAULT_MULTIPART_THRESHOLD}
+     */
+    public void setMultipartThreshold(int bytes) { multipartThreshold = bytes; }
+
+    /**
+     * Limit the disk space taken by temporary files. A download read by several streams at once is spooled
+     * to the cache directory, it fails if the spool grows past the quota. The quota is shared by all the drives
+     * of the process spooling to the same directory, the last one set applies.
+     *
+     * @param bytes quota, default is 64 MB
+     */
+    public void setSpoolQuota(long bytes) {
+        spoolQuota = bytes;
+        SpoolStore store = spoolStore;
+        if (store != null) store.setQuota(bytes);
+    }
+
+    @Override
+    public void setIdleTimeout(long idleTimeout) {
+        super.setIdleTimeout(idleTimeout);
+        contentMap.setIdleTimeout(idleTimeout);
+    }
+
+    /**
+     * Unlike the base implementation this doesn't call {@link #review(String, String, String)}. The content is
+     * sent along with the update request, and if the file is missing, along with the create request. So a small
+     * file takes a single round trip.
+     */
     @Override @NonNull
     public String write(String id, String title, String mimeType, InputStream inputStream) throws IOException {
-        //connect(); -- Connect called in review()
-        id = review(id, title, mimeType);
-        Content content = contentMap.get(id);
-        drive.files().update(id, null, new InputStreamContent(content.mime, inputStream)).execute();
-        contentMap.remove(id);
-        return id;
+        connect();
+
+        Content content = (id == null) ? null : contentMap.get(id);
+        if (content != null) {
+            if (content.stream != null) throw new IOException("Resource busy");
+            if (mimeType == null) mimeType = content.mime;
+            if (title == null) title = content.name;
+        }
+
+        if (id == null || getConflictResolver() == null) {
+            return upload(id, title, mimeType, mediaContent(mimeType, encrypt(inputStream)));
+        }
+
+        // Small data is kept in memory anyway, so the resolver gets it
+        AbstractInputStreamContent plain = mediaContent(mimeType, inputStream);
+        try {
+            return upload(id, title, mimeType, (getEncryptionKey() == null) ? plain : mediaContent(mimeType, encrypt(plain.getInputStream())));
+        } catch (ConflictException e) {
+            return resolveConflict(id, mimeType, plain.retrySupported() ? plain : null, e);
+        }
+    }
+
+    @Override @NonNull
+    String upload(String id, String title, String mimeType, java.io.File file,
+                  CountingInputStream.Counter counter) throws IOException {
+        connect();
+
+        Content content = (id == null) ? null : contentMap.get(id);
+        if (content != null) {
+            if (content.stream != null) throw new IOException("Resource busy");
+            if (mimeType == null) mimeType = content.mime;
+            if (title == null) title = content.name;
+        }
+
+        AbstractInputStreamContent mediaContent = new FileChannelContent(mimeType, file, counter);
+        if (getEncryptionKey() != null) mediaContent = new EncryptedContent(mediaContent, getEncryptionKey());
+        try {
+            return upload(id, title, mimeType, mediaContent);
+        } catch (ConflictException e) {
+            return resolveConflict(id, mimeType, new FileChannelContent(mimeType, file), e);
+        }
+    }
+
+    /**
+     * Write what the resolver makes of the file changed elsewhere, on condition that the file is still of the version
+     * the resolver was given
+     *
+     * @param local plain content being written or null if it can't be read again
+     * @throws ConflictException if the resolver keeps the remote content or the file goes on changing
+     */
+    private String resolveConflict(String id, String mimeType, AbstractInputStreamContent local,
+                                   ConflictException conflict) throws IOException {
+        ConflictResolver resolver = getConflictResolver();
+        for (int attempt = 1; resolver != null && attempt <= MAX_CONFLICT_ATTEMPTS; attempt++) {
+            Log.i(TAG, conflict.getMessage() + ", resolving");
+            // The ETag of the remote content read is remembered, the merged content is written on it
+            InputStream remote = openInputStream(id);
+            InputStream localStream = null;
+            try {
+                localStream = (local == null) ? null : local.getInputStream();
+                InputStream merged = resolver.resolve(id, remote, localStream);
+                if (merged == null) break;
+                try {
+                    return upload(id, null, mimeType, mediaContent(mimeType, encrypt(merged)));
+                } catch (ConflictException e) {
+                    conflict = e;
+                }
+            } finally {
+                remote.close();
+                if (localStream != null) localStream.close();
+            }
+        }
+        throw conflict;
+    }
+
+    @Override
+    public void downloadTo(String id, java.io.File file) throws IOException {
+        connect();
+        ensureCreated(id);
+
+        MetadataIndex.Entry metadata = getMetadata(id);
+        long size = metadata.getSize();
+        String md5 = isVerifyChecksums() ? metadata.getMd5() : null;
+        int parts = (size < 0) ? 1 : (int) Math.min(getParallelism(), size / MIN_DOWNLOAD_PART);
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                downloadTo(id, file, Math.max(0, size), parts, md5);
+                return;
+            } catch (ChecksumException e) {
+                if (attempt >= MAX_VERIFY_ATTEMPTS) throw e;
+                Log.w(TAG, "Download of " + id + " failed, retrying", e);
+            }
+        }
+    }
+
+    private void downloadTo(String id, java.io.File file, final long size, int parts, String md5) throws IOException {
+        final BandwidthLimiter[] limiters = newTransferLimiters();
+        final SecretKey key = getEncryptionKey();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            final FileChannel channel = randomAccessFile.getChannel();
+            channel.truncate(0);
+            if (parts <= 1) {
+                downloadRange(id, channel, 0, -1, md5, limiters);
+                return;
+            }
+
+            // Encrypted ranges are made of whole frames, so each range is decrypted on its own
+            final byte[] header = (key == null) ? null : downloadHeader(id, limiters);
+
+            ExecutorService executor = Executors.newFixedThreadPool(parts);
+            try {
+                // Workers take ranges sized to the observed throughput until the file is done
+                final String fileId = id;
+                final long[] next = { header == null ? 0 : header.length };
+                List<Future<Void>> futures = new ArrayList<>(parts);
+                for (int i = 0; i < parts; i++) {
+                    futures.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            while (true) {
+                                long start;
+                                long end;
+                                synchronized (next) {
+                                    if (next[0] >= size) return null;
+                                    start = next[0];
+                                    long chunk = downloadChunkSizer.getChunkSize();
+                                    if (key != null) chunk = Math.max(1, chunk / FrameCipher.SEALED_FRAME_SIZE) * FrameCipher.SEALED_FRAME_SIZE;
+                                    end = Math.min(start + chunk, size) - 1;
+                                    next[0] = end + 1;
+                                }
+                                if (key == null) {
+                                    downloadRange(fileId, channel, start, end, null, limiters);
+                                } else {
+                                    downloadFrames(fileId, channel, start, end, size, header, key, limiters);
+                                }
+                            }
+                        }
+                    }));
+                }
+                for (Future<Void> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof IOException) throw (IOException) cause;
+                        throw new IOException(cause);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Download interrupted");
+            } finally {
+                executor.shutdownNow();
+            }
+
+            // Parts can't be digested in order while they arrive, so check the file once it is complete.
+            // Encrypted file holds decrypted data, but its frames are authenticated already
+            if (md5 != null && key == null) {
+                InputStream inputStream = new ChecksumInputStream(new FileChannelContent(null, file).getInputStream(), md5);
+                try {
+                    byte[] buffer = new byte[64 * 1024];
+                    //noinspection StatementWithEmptyBody
+                    while (inputStream.read(buffer) != -1);
+                } finally {
+                    inputStream.close();
+                }
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Send the content with the update request, and if the file is missing, with the create request
+     */
+    private String upload(final String id, final String title, final String mimeType, AbstractInputStreamContent mediaContent) throws IOException {
+        final Content reserved = (id == null) ? null : contentMap.get(id);
+        return verifiedUpload(mediaContent, new UploadRequest() {
+            private String fileId = id;
+
+            @Override
+            public File execute(AbstractInputStreamContent content) throws IOException {
+                if (reserved != null) {
+                    synchronized (reserved) {
+                        if (reserved.pending) {
+                            // Creation of the file reserved by review() is folded into the upload
+                            File file = create(id, reserved.folder, title, mimeType, content);
+                            reserved.pending = false;
+                            contentMap.remove(id);
+                            return file;
+                        }
+                    }
+                }
+
+                if (fileId != null) {
+                    try {
+                        File file = updateContent(fileId, content);
+                        contentMap.remove(fileId);
+                        return file;
+                    } catch (GoogleJsonResponseException e) {
+                        // Resumable upload fails on initiation, so the stream is still untouched here
+                        if (e.getStatusCode() != HttpStatusCodes.STATUS_CODE_NOT_FOUND) throw e;
+                        contentMap.remove(fileId);
+                    }
+                }
+
+                File file = create(null, mFolder, title, mimeType, content);
+                // Repeated attempt should overwrite this file rather than create another one
+                fileId = file.getId();
+                return file;
+            }
+        }).getId();
+    }
+
+    /**
+     * Create a file in the folder
+     *
+     * @param id id from {@link #idPool} or null to let the drive assign one
+     * @param content file content or null to create an empty file
+     */
+    private File create(String id, String folder, String title, String mimeType, AbstractInputStreamContent content) throws IOException {
+        File metadata = new File()
+                .setId(id)
+                .setName(title)
+                .setMimeType(mimeType)
+                .setParents(Collections.singletonList(folder));
+        Drive.Files.Create create;
+        if (content == null) {
+            create = drive.files().create(metadata);
+        } else {
+            create = drive.files().create(metadata, content);
+            setUploadMode(create, content);
+        }
+        lastETag.set(null);
+        File file = create.setFields(FILE_FIELDS).execute();
+        if (lastETag.get() != null) etags.put(file.getId(), lastETag.get());
+        index(file, indexKey(folder));
+        mLookupCache.put(LookupCache.key(folder, title), file.getId());
+        return file;
+    }
+
+    /**
+     * Create the file reserved by {@link #review(String, String, String)} if it is not created yet
+     */
+    private void ensureCreated(String id) throws IOException {
+        Content content = (id == null) ? null : contentMap.get(id);
+        if (content == null) return;
+        synchronized (content) {
+            if (content.pending) {
+                create(id, content.folder, content.name, content.mime, null);
+                content.pending = false;
+            }
+        }
+    }
+
+    /** Space the files are created in */
+    private String space() {
+        return DriveScopes.DRIVE_APPDATA.equals(mScope.toString()) ? "appDataFolder" : "drive";
+    }
+
+    /**
+     * Upload the content to an existing file, on condition of the version last seen if conflicts are resolved.
+     * <br>
+     * The condition is sent as If-Match with the ETag of the content last read or written, taken from the responses
+     * received anyway, no request is added. Drive v3 documents no precondition for file updates, so where If-Match
+     * is ignored the update goes through unconditionally. A file without a remembered ETag, e.g. one not read or
+     * written in this process or known from metadata reads only, is updated unconditionally too.
+     *
+     * @throws ConflictException if the file was changed elsewhere since
+     */
+    private File updateContent(String id, AbstractInputStreamContent content) throws IOException {
+        Drive.Files.Update update = drive.files().update(id, null, content);
+        setUploadMode(update, content);
+        boolean conditional = getConflictResolver() != null;
+        String etag = conditional ? etags.get(id) : null;
+        if (etag != null) update.getRequestHeaders().setIfMatch(etag);
+        File file;
+        try {
+            file = update.setFields(FILE_FIELDS).execute();
+        } catch (GoogleJsonResponseException e) {
+            if (etag == null || e.getStatusCode() != STATUS_CODE_PRECONDITION_FAILED) throw e;
+            throw new ConflictException("File " + id + " was changed elsewhere");
+        }
+        index(file, null);
+        return file;
+    }
+
+    private interface UploadRequest {
+        File execute(AbstractInputStreamContent content) throws IOException;
+    }
+
+    /**
+     * Run the upload request and if verification is on compare the checksum of the data sent with the one
+     * reported by the drive. The upload is repeated on mismatch if the content may be sent again. An upload that
+     * can't be compared, with the content not read to its end or no checksum in the response, fails.
+     */
+    private File verifiedUpload(AbstractInputStreamContent mediaContent, UploadRequest request) throws IOException {
+        mediaContent = new ThrottledContent(mediaContent, newTransferLimiters());
+        if (!isVerifyChecksums()) return request.execute(mediaContent);
+
+        ChecksumContent content = new ChecksumContent(mediaContent);
+        for (int attempt = 1; ; attempt++) {
+            File file = request.execute(content);
+            String sent = content.getChecksum();
+            String stored = file.getMd5Checksum();
+            if (sent == null || stored == null) {
+                throw new ChecksumException("Upload of " + file.getId() + " can't be verified, "
+                        + ((sent == null) ? "the content was not sent to its end" : "the drive reported no checksum"));
+            }
+            if (sent.equalsIgnoreCase(stored)) return file;
+
+            String message = "Checksum mismatch on upload of " + file.getId() + ": sent " + sent + ", stored " + stored;
+            if (attempt >= MAX_VERIFY_ATTEMPTS || !mediaContent.retrySupported()) throw new ChecksumException(message);
+            Log.w(TAG, message + ", retrying");
+        }
     }
 
 
     @Override @NonNull
     public String review(String id, String title, String mimeType) throws IOException {
         connect();
+        contentMap.expire(contentExpirer);
 
-        if (contentMap.containsKey(id)) {
-            if (contentMap.get(id).tempFile != null) throw new IOException("Resource busy");
+        Content existing = (id == null) ? null : contentMap.get(id);
+        if (existing != null) {
+            if (existing.stream != null) throw new IOException("Resource busy");
             return id;
         }
 
         if (id != null) {
+            MetadataReader file = null;
             try {
-                File file = drive.files().get(id).setFields("id, mimeType, name").execute();
+                file = readFile(id, "id, mimeType, name");
+            } catch (IOException ignore) {}
+            if (file != null) {
                 Content content = new Content(
-                        (title == null) ? file.getName() : title,
-                        (mimeType == null) ? file.getMimeType() : mimeType
+                        (title == null) ? file.name : title,
+                        (mimeType == null) ? file.mimeType : mimeType
                 );
-                contentMap.put(id, content);
+                // A concurrent review() of the same id may have got here first, its content is kept
+                existing = contentMap.putIfAbsent(id, content);
+                if (existing != null && existing.stream != null) throw new IOException("Resource busy");
                 return id;
-            } catch (IOException ignore) {}
+            }
         }
 
-        File mediaContent = new File()
-                .setName(title)
-                .setMimeType(mimeType)
-                .setParents(Collections.singletonList(mFolder));
-        File file = drive.files().create(mediaContent).execute();
+        Content content = new Content(title, mimeType);
+        content.folder = mFolder;
+
+        // With a pooled id the file is created later along with its content. The pool is filled on the first take,
+        // so apps that never create files don't generate ids
+        String pooledId = idPool.take();
+        if (pooledId != null) {
+            content.pending = true;
+            contentMap.put(pooledId, content);
+            return pooledId;
+        }
 
-        id = file.getId();
-        contentMap.put(id, new Content(title, mimeType));
+        id = create(null, mFolder, title, mimeType, null).getId();
+        contentMap.put(id, content);
 
         return id;
     }
 
     @Override
     public void commit(String id) throws IOException {
-        Content content = contentMap.get(id);
-        if (content != null) {
-            if (content.tempFile != null) {
-                FileContent fileContent = new FileContent(content.mime, content.tempFile);
-                drive.files().update(id, null, fileContent).execute();
-                //noinspection ResultOfMethodCallIgnored
-                content.tempFile.delete();
+        commit(id, null);
+    }
+
+    /**
+     * Unlike the base implementation the upload streaming in background is failed at once on cancel,
+     * and the content is dropped without further requests. A file not created on the drive yet is not created,
+     * though a request already sent may still complete on the drive.
+     */
+    @Override
+    public void commit(String id, TransferOptions options) throws IOException {
+        Transfer transfer = Transfer.begin(options);
+        try {
+            Content content = contentMap.get(id);
+            if (content != null) {
+                if (content.stream != null) {
+                    content.committing = true;
+                    try {
+                        content.stream.commit(transfer);
+                    } catch (ConflictException e) {
+                        // The data streamed is gone, the resolver may still provide the content
+                        resolveConflict(id, content.mime, null, e);
+                    } finally {
+                        // The data is gone with a failed upload, it may be written again
+                        content.stream = null;
+                    }
+                } else {
+                    ensureCreated(id);
+                }
+                contentMap.remove(id);
             }
-            contentMap.remove(id);
+        } catch (IOException e) {
+            if (transfer.isCancelled()) contentMap.remove(id);
+            throw transfer.failure(e);
+        } finally {
+            transfer.end();
         }
     }
 
@@ -283,47 +1461,472 @@ public class GoogleDriveREST extends GoogleDrive {
     public void close(String id) throws IOException {
         Content content = contentMap.get(id);
         if (content != null) {
-            if (content.tempFile != null) {
-                //noinspection ResultOfMethodCallIgnored
-                content.tempFile.delete();
+            if (content.stream != null) content.stream.abort();
+            // The id returned by review() should stay valid even if nothing was written
+            try {
+                ensureCreated(id);
+            } finally {
+                contentMap.remove(id);
             }
-            contentMap.remove(id);
         }
     }
 
     @Override @NonNull
     public InputStream openInputStream(String id) throws IOException {
         connect();
-        return  drive.files().get(id).executeMediaAsInputStream();
+        ensureCreated(id);
+        String md5 = isVerifyChecksums() ? getMetadata(id).getMd5() : null;
+        // Concurrent readers of the file share a single download
+        final String fileId = id;
+        InputStream inputStream = downloadFanOut.open(id, spoolStore(), new DownloadFanOut.Source() {
+            @Override
+            public InputStream open() throws IOException {
+                return throttle(drive.files().get(fileId).executeMediaAsInputStream());
+            }
+        });
+        if (md5 != null) inputStream = new ChecksumInputStream(inputStream, md5);
+        return decrypt(inputStream);
+    }
+
+    /**
+     * Blocks are fetched with Range requests. Checksums are not verified, the whole file is never downloaded.
+     */
+    @Override @NonNull
+    public RangeReader openReader(String id) throws IOException {
+        connect();
+        ensureCreated(id);
+        long size = getMetadata(id).getSize();
+        // Files without content on the drive, such as Google Docs, report no size
+        if (size < 0) throw new IOException("Size of " + id + " is unknown, it can't be read by ranges");
+        final String fileId = id;
+        return new RangeReader(new RangeReader.Source() {
+            @Override
+            public InputStream open(long start, long end) throws IOException {
+                return throttle(executeRange(drive.files().get(fileId), start, end));
+            }
+        }, size, getEncryptionKey());
     }
 
 
+    /**
+     * Small content is kept in memory and sent on {@link #commit(String)}, larger content is uploaded while it is
+     * being written. The data passed to the upload is also kept in the spool within its quota, see
+     * {@link #setSpoolQuota(long)}, so an upload failed by a transient error or a checksum mismatch is sent again
+     * from it on {@link #commit(String)}. Past the quota a failed upload is not repeated, {@link #commit(String)}
+     * throws and the data should be written again.
+     */
     @Override @NonNull
     public OutputStream openOutputStream(String id) throws IOException {
         connect();
+        contentMap.expire(contentExpirer);
         Content content = contentMap.get(id);
         if (content == null) throw new IOException("Call review(id, name, mimeType) first!");
-        if (content.tempFile != null) throw new IOException("Resource busy");
-        content.tempFile = java.io.File.createTempFile(
-                Long.toHexString(new Date().getTime()), null, mContext == null ? null : mContext.getCacheDir());
-        return new FileOutputStream(content.tempFile);
+        if (content.stream != null) throw new IOException("Resource busy");
+
+        // The upload starts while the data is being written, the end of the data is sent on commit()
+        final Content reserved = content;
+        final String fileId = id;
+        content.stream = new StreamingUpload<>(content.mime, multipartThreshold, 2 * uploadChunkSizer.getChunkSize(),
+                spoolStore(), new StreamingUpload.Task<File>() {
+                    @Override
+                    public File execute(AbstractInputStreamContent mediaContent) throws IOException {
+                        return verifiedUpload(mediaContent, new UploadRequest() {
+                            @Override
+                            public File execute(AbstractInputStreamContent content) throws IOException {
+                                synchronized (reserved) {
+                                    if (reserved.pending) {
+                                        File file = create(fileId, reserved.folder, reserved.name, reserved.mime, content);
+                                        reserved.pending = false;
+                                        return file;
+                                    }
+                                }
+                                return updateContent(fileId, content);
+                            }
+                        });
+                    }
+                });
+        return encrypt(content.stream);
     }
 
     @Override
     public long lastModified(String id) throws IOException {
         connect();
-        File file = drive.files().get(id).setFields("modifiedTime").execute();
-        return file.getModifiedTime().getValue();
+
+        MetadataIndex index = getMetadataIndex();
+        MetadataIndex.Entry entry = (index == null) ? null : index.get(id);
+        if (entry != null) return entry.getModifiedTime();
+
+        ensureCreated(id);
+        return getMetadata(id).getModifiedTime();
     }
 
     @Override
-    public void delete(String id) throws IOException {
+    public void delete(String id, boolean permanently) throws IOException {
         connect();
-        if (DELETE_PERMANENTLY) {
+
+        Content content = contentMap.get(id);
+        if (content != null) {
+            // The upload in progress holds the content while it waits for data
+            if (content.stream != null) content.stream.abort();
+            synchronized (content) {
+                if (content.pending) {
+                    // Nothing to delete on the drive yet
+                    content.pending = false;
+                    close(id);
+                    return;
+                }
+            }
+        }
+
+        if (permanently) {
             drive.files().delete(id).execute();
         } else {
             drive.files().update(id, new File().setTrashed(true)).setFields("trashed").execute();
         }
+        forget(id);
+    }
+
+    /**
+     * Requests are sent in batches, up to {@link #setParallelism(int)} batches at once. Items failed with
+     * a transient error are sent again, items already missing on the drive are reported as deleted.
+     */
+    @Override @NonNull
+    public BulkResult deleteAll(List<String> ids, boolean permanently) throws IOException {
+        connect();
+
+        String[] deleted = new String[ids.size()];
+        IOException[] errors = new IOException[ids.size()];
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            if (contentMap.containsKey(ids.get(i))) {
+                // Files reserved by review() may be not created yet
+                try {
+                    delete(ids.get(i), permanently);
+                    deleted[i] = ids.get(i);
+                } catch (IOException e) {
+                    errors[i] = e;
+                }
+            } else {
+                pending.add(i);
+            }
+        }
+
+        for (int attempt = 0; !pending.isEmpty(); attempt++) {
+            if (attempt > 0) {
+                try {
+                    Thread.sleep(BATCH_RETRY_DELAY_MS << (attempt - 1));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Delete interrupted");
+                }
+            }
+            List<Integer> retry = deleteBatches(ids, pending, permanently, deleted, errors);
+            if (attempt >= getMaxRetries()) break;
+            pending = retry;
+        }
+
+        Map<Integer, IOException> errorMap = new TreeMap<>();
+        for (int i = 0; i < errors.length; i++) {
+            if (errors[i] != null) errorMap.put(i, errors[i]);
+        }
+        return new BulkResult(Arrays.asList(deleted), errorMap);
+    }
+
+    /**
+     * Send delete requests for the items in parallel batches
+     *
+     * @return items failed with a transient error
+     */
+    private List<Integer> deleteBatches(final List<String> ids, List<Integer> items, final boolean permanently,
+                                        final String[] deleted, final IOException[] errors) throws IOException {
+        final List<Integer> retry = Collections.synchronizedList(new ArrayList<Integer>());
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int from = 0; from < items.size(); from += BATCH_SIZE) {
+            final List<Integer> part = items.subList(from, Math.min(from + BATCH_SIZE, items.size()));
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    BatchRequest batch = newBatch();
+                    for (int i : part) {
+                        if (permanently) {
+                            drive.files().delete(ids.get(i))
+                                    .queue(batch, new DeleteCallback<Void>(ids.get(i), i, deleted, errors, retry));
+                        } else {
+                            drive.files().update(ids.get(i), new File().setTrashed(true)).setFields("trashed")
+                                    .queue(batch, new DeleteCallback<File>(ids.get(i), i, deleted, errors, retry));
+                        }
+                    }
+                    try {
+                        batch.execute();
+                    } catch (IOException e) {
+                        for (int i : part) {
+                            if (deleted[i] == null && !retry.contains(i)) {
+                                errors[i] = e;
+                                retry.add(i);
+                            }
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        runParallel(tasks);
+        Collections.sort(retry);
+        return retry;
+    }
+
+    /** Outcome of a delete request in a batch */
+    private class DeleteCallback<T> extends JsonBatchCallback<T> {
+        private final String id;
+        private final int index;
+        private final String[] deleted;
+        private final IOException[] errors;
+        private final List<Integer> retry;
+
+        DeleteCallback(String id, int index, String[] deleted, IOException[] errors, List<Integer> retry) {
+            this.id = id;
+            this.index = index;
+            this.deleted = deleted;
+            this.errors = errors;
+            this.retry = retry;
+        }
+
+        @Override
+        public void onSuccess(T result, HttpHeaders responseHeaders) {
+            done();
+        }
+
+        @Override
+        public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+            if (e.getCode() == HttpStatusCodes.STATUS_CODE_NOT_FOUND) {
+                done();
+                return;
+            }
+            errors[index] = new IOException("Unable to delete " + id + ": " + e.getMessage());
+            if (isTransient(e)) retry.add(index);
+        }
+
+        private void done() {
+            deleted[index] = id;
+            errors[index] = null;
+            forget(id);
+        }
+    }
+
+    /** Rate limit and server errors are worth another attempt */
+    private static boolean isTransient(GoogleJsonError e) {
+        if (e.getCode() == 429 || e.getCode() >= HttpStatusCodes.STATUS_CODE_SERVER_ERROR) return true;
+        if (e.getCode() != HttpStatusCodes.STATUS_CODE_FORBIDDEN || e.getErrors() == null) return false;
+        for (GoogleJsonError.ErrorInfo info : e.getErrors()) {
+            if ("rateLimitExceeded".equals(info.getReason()) || "userRateLimitExceeded".equals(info.getReason())) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Both trash and permanent delete are recursive on the drive and take a single request. Permanent delete
+     * removes the descendants the user owns, the ones owned by others only lose the folder. If the user may not
+     * delete the folder itself, its children are listed and deleted with {@link #deleteAll(List, boolean)}, each
+     * with its subtree, and the child folders failed to delete are opened in turn.
+     */
+    @Override @NonNull
+    public BulkResult deleteTree(String id, boolean permanently) throws IOException {
+        connect();
+        if (!permanently || contentMap.containsKey(id)) {
+            BulkResult result = super.deleteTree(id, permanently);
+            forgetDescendants(id);
+            return result;
+        }
+
+        List<String> ids = new ArrayList<>();
+        Map<Integer, IOException> errors = new TreeMap<>();
+        try {
+            delete(id, true);
+            ids.add(id);
+            forgetDescendants(id);
+        } catch (GoogleJsonResponseException e) {
+            if (e.getStatusCode() != HttpStatusCodes.STATUS_CODE_FORBIDDEN
+                    || (e.getDetails() != null && isTransient(e.getDetails()))) throw e;
+            ids.add(null);
+            errors.put(0, e);
+            deleteChildren(Collections.singletonList(id), ids, errors);
+        }
+        return new BulkResult(ids, errors);
+    }
+
+    /** Forget the descendants of the folder known to the index, they went with the folder */
+    private void forgetDescendants(String folderId) {
+        MetadataIndex index = getMetadataIndex();
+        if (index == null) return;
+        for (MetadataIndex.Entry entry : index.children(folderId)) {
+            forgetDescendants(entry.getId());
+            forget(entry.getId());
+        }
+    }
+
+    /**
+     * Delete the children of the folders permanently, level by level while child folders fail to delete
+     *
+     * @param ids ids deleted, null for the failed ones, children are added here
+     * @param errors errors by index in {@code ids}
+     */
+    private void deleteChildren(List<String> folders, List<String> ids, Map<Integer, IOException> errors) throws IOException {
+        while (!folders.isEmpty()) {
+            List<String> children = new ArrayList<>();
+            Set<String> childFolders = new HashSet<>();
+            for (File file : listChildren(folders)) {
+                children.add(file.getId());
+                if (FOLDER_MIME.equals(file.getMimeType())) childFolders.add(file.getId());
+            }
+            BulkResult result = deleteAll(children, true);
+            List<String> failed = new ArrayList<>();
+            for (int i = 0; i < children.size(); i++) {
+                IOException error = result.getErrors().get(i);
+                if (error != null) {
+                    errors.put(ids.size(), error);
+                    if (childFolders.contains(children.get(i))) failed.add(children.get(i));
+                }
+                ids.add(result.getIds().get(i));
+            }
+            folders = failed;
+        }
+    }
+
+    /** List the children of the folders, the folders are listed in parallel */
+    private List<File> listChildren(List<String> folderIds) throws IOException {
+        List<Callable<List<File>>> tasks = new ArrayList<>();
+        for (final String folderId : folderIds) {
+            tasks.add(new Callable<List<File>>() {
+                @Override
+                public List<File> call() throws Exception {
+                    List<File> children = new ArrayList<>();
+                    String pageToken = null;
+                    do {
+                        FileList fileList = drive.files().list()
+                                .setFields("nextPageToken, files(id, mimeType)")
+                                .setQ("'" + folderId + "' in parents and trashed=false")
+                                .setPageSize(1000)
+                                .setPageToken(pageToken)
+                                .execute();
+                        if (fileList.getFiles() != null) children.addAll(fileList.getFiles());
+                        pageToken = fileList.getNextPageToken();
+                    } while (pageToken != null);
+                    return children;
+                }
+            });
+        }
+        List<File> children = new ArrayList<>();
+        for (List<File> list : runParallel(tasks)) children.addAll(list);
+        return children;
+    }
+
+    /** Run the tasks with up to {@link #setParallelism(int)} threads, the first error is thrown */
+    private <T> List<T> runParallel(List<Callable<T>> tasks) throws IOException {
+        if (tasks.isEmpty()) return Collections.emptyList();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(getParallelism(), tasks.size())));
+        try {
+            List<Future<T>> futures = executor.invokeAll(tasks);
+            List<T> results = new ArrayList<>(futures.size());
+            for (Future<T> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) throw (IOException) cause;
+                    throw new IOException(cause);
+                }
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public void move(String id, String folderId) throws IOException {
+        connect();
+
+        Content content = contentMap.get(id);
+        if (content != null) {
+            synchronized (content) {
+                if (content.pending) {
+                    // The file will be created in the new folder
+                    content.folder = folderId;
+                    return;
+                }
+            }
+        }
+
+        List<String> parents = drive.files().get(id).setFields("parents").execute().getParents();
+        StringBuilder removeParents = new StringBuilder();
+        if (parents != null) {
+            for (String parent : parents) {
+                if (removeParents.length() > 0) removeParents.append(',');
+                removeParents.append(parent);
+            }
+        }
+        File file = drive.files().update(id, new File())
+                .setAddParents(folderId)
+                .setRemoveParents(removeParents.toString())
+                .setFields(FILE_FIELDS)
+                .execute();
+        forget(id);
+        index(file, indexKey(folderId));
+        mLookupCache.put(LookupCache.key(folderId, file.getName()), id);
+    }
+
+    @Override
+    public void rename(String id, String title) throws IOException {
+        connect();
+
+        Content content = contentMap.get(id);
+        if (content != null) {
+            synchronized (content) {
+                content.name = title;
+                if (content.pending) return;
+            }
+        }
+
+        File file = drive.files().update(id, new File().setName(title)).setFields(FILE_FIELDS).execute();
+        mLookupCache.removeId(id);
+        index(file, null);
+    }
+
+    /** Drop the file from the index and the lookup cache */
+    private void forget(String id) {
+        MetadataIndex index = getMetadataIndex();
+        if (index != null) index.remove(id);
+        mLookupCache.removeId(id);
+        etags.remove(id);
+    }
+
+    @Override
+    public void reconcile() throws IOException {
+        MetadataIndex index = getMetadataIndex();
+        if (index == null) return;
+
+        connect();
+        final List<MetadataIndex.Entry> entries = new ArrayList<>();
+        final long syncTime = System.currentTimeMillis();
+        final String folder = mFolder;
+        final String indexKey = indexKey(folder);
+        String query = folderQueries(folder).liveChildren;
+        MetadataReader.Visitor visitor = new MetadataReader.Visitor() {
+            @Override
+            public void visit(MetadataReader file) {
+                entries.add(file.toEntry(indexKey, syncTime));
+            }
+        };
+        String pageToken = null;
+        do {
+            pageToken = listPage(query, null, pageToken, LIST_PAGE_SIZE, visitor);
+        } while (pageToken != null);
+
+        index.replaceChildren(indexKey, entries);
+        index.save();
     }
 
     @Override
@@ -359,6 +1962,282 @@ public class GoogleDriveREST extends GoogleDrive {
         return false;
     }
 
+    /**
+     * Wrap the stream so small content is held in memory with known length and may be sent with multipart upload
+     */
+    private AbstractInputStreamContent mediaContent(String mimeType, InputStream inputStream) throws IOException {
+        // The buffer grows as data comes, so a small file doesn't take the whole threshold
+        int limit = multipartThreshold + 1;
+        byte[] buffer = new byte[Math.min(limit, MEDIA_BUFFER_SIZE)];
+        int length = 0;
+        int bytesRead;
+        while (length < limit) {
+            if (length == buffer.length) buffer = Arrays.copyOf(buffer, Math.min(limit, buffer.length * 2));
+            if ((bytesRead = inputStream.read(buffer, length, buffer.length - length)) == -1) break;
+            length += bytesRead;
+        }
+        if (length <= multipartThreshold) return new ByteArrayContent(mimeType, buffer, 0, length);
+
+        InputStream head = new ByteArrayInputStream(buffer, 0, length);
+        return new InputStreamContent(mimeType, new SequenceInputStream(head, inputStream));
+    }
+
+    /**
+     * Download bytes {@code start..end} of the file into the channel at the same position
+     *
+     * @param end last byte position inclusive or -1 to download and decrypt the whole file
+     * @param md5 expected checksum of the whole file or null
+     * @param limiters bandwidth limiters of the transfer
+     */
+    private void downloadRange(String id, FileChannel channel, long start, long end, String md5, BandwidthLimiter[] limiters) throws IOException {
+        Drive.Files.Get get = drive.files().get(id);
+
+        long startTime = System.nanoTime();
+        InputStream inputStream = new ThrottledInputStream(
+                (end >= 0) ? executeRange(get, start, end) : get.executeMediaAsInputStream(), limiters);
+        if (end >= 0) downloadChunkSizer.recordRoundTrip((System.nanoTime() - startTime) / 1000000L);
+        if (md5 != null) inputStream = new ChecksumInputStream(inputStream, md5);
+        if (end < 0) inputStream = decrypt(inputStream);
+        try {
+            byte[] bytes = new byte[64 * 1024];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            long position = start;
+            int bytesRead;
+            while ((bytesRead = inputStream.read(bytes)) != -1) {
+                buffer.clear().limit(bytesRead);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            }
+            if (end >= 0 && position != end + 1) throw new IOException("Unexpected end of range " + start + "-" + end);
+            if (end >= 0) downloadChunkSizer.record(position - start, (System.nanoTime() - startTime) / 1000000L);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Get metadata of the file and put it to the index, concurrent requests for the same file share a single call
+     */
+    private MetadataIndex.Entry getMetadata(final String id) throws IOException {
+        return metadataFlight.execute(id, new Callable<MetadataIndex.Entry>() {
+            @Override
+            public MetadataIndex.Entry call() throws Exception {
+                MetadataReader file = readFile(id, FILE_FIELDS);
+                index(file, null);
+                return file.toEntry(null, System.currentTimeMillis());
+            }
+        });
+    }
+
+    /**
+     * Read file metadata, the response is streamed into the reader rather than parsed into the File model
+     * @return the reader holding the metadata
+     */
+    private MetadataReader readFile(String id, String fields) throws IOException {
+        HttpResponse response = drive.files().get(id).setFields(fields).executeUnparsed();
+        MetadataReader reader = new MetadataReader(jsonFactory);
+        try {
+            reader.readFile(response.getContent(), response.getContentCharset());
+        } finally {
+            response.disconnect();
+        }
+        return reader;
+    }
+
+    /**
+     * List files streaming them to the visitor, the response is not parsed into the FileList model
+     * @return next page token or null
+     */
+    private String listFiles(String fields, String query, String pageToken, Integer pageSize,
+                             MetadataReader.Visitor visitor) throws IOException {
+        return listFiles(fields, query, null, pageToken, pageSize, visitor);
+    }
+
+    /** List files of {@link #FILE_FIELDS} in the given order */
+    private String listPage(String query, String orderBy, String pageToken, Integer pageSize,
+                            MetadataReader.Visitor visitor) throws IOException {
+        return listFiles("nextPageToken, files(" + FILE_FIELDS + ")", query, orderBy, pageToken, pageSize, visitor);
+    }
+
+    private String listFiles(String fields, String query, String orderBy, String pageToken, Integer pageSize,
+                             MetadataReader.Visitor visitor) throws IOException {
+        HttpResponse response = drive.files().list()
+                .setFields(fields)
+                .setQ(query)
+                .setOrderBy(orderBy)
+                .setPageToken(pageToken)
+                .setPageSize(pageSize)
+                .executeUnparsed();
+        try {
+            return new MetadataReader(jsonFactory).readList(response.getContent(), response.getContentCharset(), visitor);
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    private FolderQueries folderQueries(String folder) {
+        FolderQueries queries = folderQueries;
+        if (queries == null || !queries.folder.equals(folder)) folderQueries = queries = new FolderQueries(folder);
+        return queries;
+    }
+
+    /**
+     * Download bytes {@code start..end} of the file. The response should be 206 with the Content-Range asked for,
+     * a server or proxy ignoring the Range header would send the file from its start instead.
+     *
+     * @param end last byte position inclusive, the response may end earlier at the end of the file
+     */
+    private static InputStream executeRange(Drive.Files.Get get, long start, long end) throws IOException {
+        get.getRequestHeaders().setRange("bytes=" + start + "-" + end);
+        HttpResponse response = get.executeMedia();
+        String contentRange = response.getHeaders().getContentRange();
+        if (response.getStatusCode() != STATUS_CODE_PARTIAL_CONTENT || !isRange(contentRange, start, end)) {
+            response.disconnect();
+            throw new IOException("Range " + start + "-" + end + " not served, status " + response.getStatusCode()
+                    + ", Content-Range " + contentRange);
+        }
+        return response.getContent();
+    }
+
+    /** @return true if the Content-Range "bytes first-last/length" starts at {@code start} and ends within range */
+    private static boolean isRange(String contentRange, long start, long end) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) return false;
+        int dash = contentRange.indexOf('-');
+        int slash = contentRange.indexOf('/');
+        if (dash < 0 || slash < dash) return false;
+        try {
+            long first = Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+            long last = Long.parseLong(contentRange.substring(dash + 1, slash).trim());
+            String total = contentRange.substring(slash + 1).trim();
+            // The range is cut short only at the end of the file
+            return first == start && (last == end || (last < end && !"*".equals(total) && last == Long.parseLong(total) - 1));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /** Download the header of an encrypted file */
+    private byte[] downloadHeader(String id, BandwidthLimiter[] limiters) throws IOException {
+        InputStream inputStream = new ThrottledInputStream(
+                executeRange(drive.files().get(id), 0, FrameCipher.HEADER_SIZE - 1), limiters);
+        try {
+            byte[] header = new byte[FrameCipher.HEADER_SIZE];
+            if (FrameCipher.readFully(inputStream, header, 0, header.length) < header.length) throw new IOException("Not an encrypted file");
+            return header;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Download encrypted frames in bytes {@code start..end} of the file and write the decrypted data
+     * into the channel at the position of the data
+     *
+     * @param start position of a frame
+     * @param end last byte position of a frame inclusive
+     * @param size size of the encrypted file
+     */
+    private void downloadFrames(String id, FileChannel channel, long start, long end, long size, byte[] header,
+                                SecretKey key, BandwidthLimiter[] limiters) throws IOException {
+        FrameCipher cipher = new FrameCipher(key);
+        cipher.setHeader(header);
+        long lastFrame = FrameCipher.frameCount(size) - 1;
+
+        long startTime = System.nanoTime();
+        InputStream inputStream = new ThrottledInputStream(executeRange(drive.files().get(id), start, end), limiters);
+        downloadChunkSizer.recordRoundTrip((System.nanoTime() - startTime) / 1000000L);
+        try {
+            byte[] frame = new byte[FrameCipher.SEALED_FRAME_SIZE];
+            byte[] bytes = new byte[FrameCipher.FRAME_SIZE];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            long index = (start - FrameCipher.HEADER_SIZE) / FrameCipher.SEALED_FRAME_SIZE;
+            for (long position = start; position <= end; index++) {
+                int length = (int) Math.min(FrameCipher.SEALED_FRAME_SIZE, end + 1 - position);
+                if (FrameCipher.readFully(inputStream, frame, 0, length) < length) {
+                    throw new IOException("Unexpected end of range " + start + "-" + end);
+                }
+                position += length;
+
+                buffer.clear().limit(cipher.decrypt(index, index == lastFrame, frame, length, bytes));
+                long target = index * FrameCipher.FRAME_SIZE;
+                while (buffer.hasRemaining()) {
+                    target += channel.write(buffer, target);
+                }
+            }
+        } finally {
+            inputStream.close();
+        }
+        downloadChunkSizer.record(end + 1 - start, (System.nanoTime() - startTime) / 1000000L);
+    }
+
+    /** Make a string literal for a query */
+    private static String quote(String value) {
+        return "'" + value.replace("\\", "\\\\").replace("'", "\\'") + "'";
+    }
+
+    /** Put the file metadata just read to the index if any */
+    private void index(MetadataReader file, String parent) {
+        MetadataIndex index = getMetadataIndex();
+        if (index == null) return;
+        if (parent == null) {
+            MetadataIndex.Entry entry = index.get(file.id);
+            if (entry != null) parent = entry.getParent();
+        }
+        index.put(file.toEntry(parent, System.currentTimeMillis()));
+    }
+
+    /** Put the file metadata to the index if any */
+    private void index(File file, String parent) {
+        MetadataIndex index = getMetadataIndex();
+        if (index == null) return;
+        if (parent == null) {
+            // Keep the folder the file was indexed under rather than the first of its parents
+            MetadataIndex.Entry entry = index.get(file.getId());
+            if (entry != null) parent = entry.getParent();
+        }
+        index.put(entry(file, parent, System.currentTimeMillis()));
+    }
+
+    private static MetadataIndex.Entry entry(File file, String parent, long syncTime) {
+        if (parent == null && file.getParents() != null && !file.getParents().isEmpty()) parent = file.getParents().get(0);
+        return new MetadataIndex.Entry(
+                file.getId(),
+                file.getName(),
+                parent,
+                file.getSize() == null ? -1 : file.getSize(),
+                file.getMd5Checksum(),
+                file.getModifiedTime() == null ? 0 : file.getModifiedTime().getValue(),
+                syncTime);
+    }
+
+    /**
+     * Choose between multipart and resumable upload depending on the content length.
+     * Chunks of resumable upload are sized to the observed throughput.
+     */
+    private void setUploadMode(AbstractGoogleClientRequest<?> request, AbstractInputStreamContent content) throws IOException {
+        long length = content.getLength();
+        boolean direct = length >= 0 && length <= multipartThreshold;
+        MediaHttpUploader uploader = request.getMediaHttpUploader();
+        uploader.setDirectUploadEnabled(direct);
+        if (!direct) {
+            uploader.setChunkSize(uploadChunkSizer.getChunkSize());
+            uploader.setProgressListener(uploadChunkSizer.newUploadListener());
+        }
+    }
+
+    private void requestAuthorization(final Intent intent) {
+        setEnabled(false);
+        if (mContext instanceof Activity) {
+            ((Activity) mContext).runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    ((Activity) mContext).startActivityForResult(intent, REQUEST_AUTHORIZE);
+                }
+            });
+        }
+    }
+
     private void startConnect() {
         setEnabled(true);
         Runnable task = new Runnable() {
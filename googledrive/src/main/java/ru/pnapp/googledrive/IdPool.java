@@ -0,0 +1,130 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Pool of file ids generated by the drive in advance. The pool is filled in background on the first {@link #take()}
+ * and refilled when it runs low, so take never waits for the network.
+ */
+class IdPool {
+    interface Generator {
+        List<String> generate(int count) throws IOException;
+    }
+
+    private final Generator generator;
+    private final int batchSize;
+    private final int lowWatermark;
+    private final Deque<String> ids = new ArrayDeque<>();
+
+    private ExecutorService executor;
+    private boolean refilling;
+    /** Changed by {@link #clear()}, ids of a refill started before are dropped */
+    private int generation;
+    /** Set while refill fails, so a failure is logged once rather than on each take() of an empty pool */
+    private boolean failing;
+
+    /**
+     * @param generator source of ids
+     * @param batchSize number of ids to request at once
+     * @param lowWatermark pool size to start refill at
+     */
+    IdPool(Generator generator, int batchSize, int lowWatermark) {
+        this.generator = generator;
+        this.batchSize = batchSize;
+        this.lowWatermark = lowWatermark;
+    }
+
+    /**
+     * @return an id or null if the pool is empty, in this case it is being refilled
+     */
+    synchronized String take() {
+        String id = ids.pollFirst();
+        if (ids.size() <= lowWatermark) refill();
+        return id;
+    }
+
+    /**
+     * Start refill in background unless already running
+     */
+    synchronized void refill() {
+        if (refilling) return;
+        refilling = true;
+        final int refillGeneration = generation;
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "GoogleDrive.IdPool");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    List<String> generated = generator.generate(batchSize);
+                    synchronized (IdPool.this) {
+                        if (refillGeneration != generation) return;
+                        ids.addAll(generated);
+                        if (failing) Log.i("GoogleDrive", "Generating ids again");
+                        failing = false;
+                    }
+                } catch (Exception e) {
+                    boolean first;
+                    synchronized (IdPool.this) {
+                        first = !failing;
+                        failing = true;
+                    }
+                    if (first) Log.w("GoogleDrive", "Unable to generate ids", e);
+                } finally {
+                    synchronized (IdPool.this) {
+                        if (refillGeneration == generation) refilling = false;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Drop the ids, they may belong to another account or space
+     */
+    synchronized void clear() {
+        ids.clear();
+        generation++;
+        refilling = false;
+    }
+
+    synchronized void shutdown() {
+        ids.clear();
+        generation++;
+        if (executor != null) executor.shutdownNow();
+        executor = null;
+        refilling = false;
+        failing = false;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-file state kept between calls, such as content opened by {@code review()} and not committed yet. Entries not
+ * used for the idle timeout are dropped by {@link #expire(Expirer)}, so state left by a missed {@code commit()} or
+ * {@code close()} doesn't pile up in a long running process. Access to an entry through {@link #get(String)} or
+ * {@link #touch(String)} resets its idle time, as well as use reported by a value implementing {@link Active}.
+ *
+ * @param <V> value type
+ */
+class IdleMap<V> {
+    /** Value that may be in use without access through the map, such as a file with a stream open */
+    interface Active {
+        /** @return time of the last use in milliseconds */
+        long lastActive();
+    }
+
+    /** Releases resources of an expired entry */
+    interface Expirer<V> {
+        void expire(String key, V value);
+    }
+
+    /** Expired entries are looked for at most this often */
+    static final long SWEEP_INTERVAL_MS = 60 * 1000L;
+
+    private final Map<String, Entry<V>> map = new HashMap<>();
+    private long idleTimeout;
+    private long nextSweep;
+
+    private static class Entry<V> {
+        final V value;
+        long lastUsed;
+
+        Entry(V value, long lastUsed) {
+            this.value = value;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    /** @param idleTimeout time in milliseconds an entry may stay unused, 0 to keep entries forever */
+    IdleMap(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    synchronized void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    synchronized V get(String key) {
+        Entry<V> entry = map.get(key);
+        if (entry == null) return null;
+        entry.lastUsed = System.currentTimeMillis();
+        return entry.value;
+    }
+
+    synchronized boolean containsKey(String key) {
+        return map.containsKey(key);
+    }
+
+    /** Reset idle time of the entry */
+    synchronized void touch(String key) {
+        Entry<V> entry = map.get(key);
+        if (entry != null) entry.lastUsed = System.currentTimeMillis();
+    }
+
+    synchronized V put(String key, V value) {
+        Entry<V> previous = map.put(key, new Entry<>(value, System.currentTimeMillis()));
+        return (previous == null) ? null : previous.value;
+    }
+
+    /** @return the value already there, or null if the value was put */
+    synchronized V putIfAbsent(String key, V value) {
+        Entry<V> entry = map.get(key);
+        if (entry != null) {
+            entry.lastUsed = System.currentTimeMillis();
+            return entry.value;
+        }
+        map.put(key, new Entry<>(value, System.currentTimeMillis()));
+        return null;
+    }
+
+    synchronized V remove(String key) {
+        Entry<V> entry = map.remove(key);
+        return (entry == null) ? null : entry.value;
+    }
+
+    /** @return snapshot of the values */
+    synchronized List<V> values() {
+        List<V> values = new ArrayList<>(map.size());
+        for (Entry<V> entry : map.values()) {
+            values.add(entry.value);
+        }
+        return values;
+    }
+
+    synchronized int size() {
+        return map.size();
+    }
+
+    /**
+     * Remove entries idle longer than the timeout and pass them to the expirer outside of the lock. Does nothing if
+     * called again within {@link #SWEEP_INTERVAL_MS}, so it is cheap to call on every operation.
+     */
+    void expire(Expirer<V> expirer) {
+        List<String> keys = null;
+        List<V> values = null;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (idleTimeout <= 0 || now < nextSweep) return;
+            nextSweep = now + Math.min(SWEEP_INTERVAL_MS, idleTimeout);
+            for (Iterator<Map.Entry<String, Entry<V>>> it = map.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Entry<V>> entry = it.next();
+                long lastUsed = entry.getValue().lastUsed;
+                V value = entry.getValue().value;
+                if (value instanceof Active) lastUsed = Math.max(lastUsed, ((Active) value).lastActive());
+                if (now - lastUsed < idleTimeout) continue;
+                if (keys == null) {
+                    keys = new ArrayList<>();
+                    values = new ArrayList<>();
+                }
+                keys.add(entry.getKey());
+                values.add(value);
+                it.remove();
+            }
+        }
+        if (keys == null) return;
+        for (int i = 0; i < keys.size(); i++) {
+            expirer.expire(keys.get(i), values.get(i));
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of name to id lookups. Both found and missing names are cached, the latter for a shorter time
+ * since a missing file is more likely to appear.
+ */
+class LookupCache {
+    private static final int MAX_ENTRIES = 1024;
+
+    private final long positiveTtl;
+    private final long negativeTtl;
+
+    private final Map<String, Entry> map = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, LookupCache.Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * Cached lookup result
+     */
+    static class Entry {
+        /** Id found or null if the name is missing */
+        final String id;
+        final long expires;
+
+        Entry(String id, long expires) {
+            this.id = id;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * @param positiveTtl time to keep found ids in milliseconds
+     * @param negativeTtl time to keep missing names in milliseconds
+     */
+    LookupCache(long positiveTtl, long negativeTtl) {
+        this.positiveTtl = positiveTtl;
+        this.negativeTtl = negativeTtl;
+    }
+
+    static String key(String folder, String name) {
+        return folder + '/' + name;
+    }
+
+    /**
+     * @return cached result or null if unknown
+     */
+    synchronized Entry get(String key) {
+        Entry entry = map.get(key);
+        if (entry != null && entry.expires < System.currentTimeMillis()) {
+            map.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * @param id id found or null if the name is missing
+     */
+    synchronized void put(String key, String id) {
+        long ttl = (id == null) ? negativeTtl : positiveTtl;
+        map.put(key, new Entry(id, System.currentTimeMillis() + ttl));
+    }
+
+    synchronized void remove(String key) {
+        map.remove(key);
+    }
+
+    /** Forget all names pointing to the id */
+    synchronized void removeId(String id) {
+        Iterator<Entry> iterator = map.values().iterator();
+        while (iterator.hasNext()) {
+            if (id.equals(iterator.next().id)) iterator.remove();
+        }
+    }
+
+    /** Forget the name in all folders */
+    synchronized void removeName(String name) {
+        String suffix = '/' + name;
+        Iterator<String> iterator = map.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().endsWith(suffix)) iterator.remove();
+        }
+    }
+
+    synchronized void clear() {
+        map.clear();
+    }
+}
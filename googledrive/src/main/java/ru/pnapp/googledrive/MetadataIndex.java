@@ -0,0 +1,299 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Local mirror of the metadata of files in the folders the app works with. Lookups by id or by name are answered
+ * from memory, the index is kept in a compact binary file between sessions.
+ * <br>
+ * The index is updated by {@link GoogleDrive} after each write or delete made through it and by
+ * {@link GoogleDrive#reconcile()} with the drive state. Entries older than {@link #setMaxAge(long)} are treated as
+ * missing, so changes made elsewhere are picked up eventually.
+ */
+public class MetadataIndex {
+    private static final int MAGIC = 0x474D4458;
+    /** Version 2 adds the mirrored folders, version 1 files are still read */
+    private static final int VERSION = 2;
+
+    /** Default for {@link #setMaxAge(long)} */
+    public static final long DEFAULT_MAX_AGE = 5 * 60 * 1000L;
+
+    private final java.io.File file;
+    private final Map<String, Entry> byId = new HashMap<>();
+    private final Map<String, Map<String, Entry>> byParent = new HashMap<>();
+    /** Folders listed in full by {@link #replaceChildren(String, Collection)} */
+    private final Set<String> mirrored = new HashSet<>();
+    private long maxAge = DEFAULT_MAX_AGE;
+    private boolean dirty;
+
+    /**
+     * Metadata of a single file or folder
+     */
+    public static class Entry {
+        private final String id;
+        private final String name;
+        private final String parent;
+        private final long size;
+        private final String md5;
+        private final long modifiedTime;
+        private final long syncTime;
+
+        /**
+         * @param id file id
+         * @param name file name
+         * @param parent parent folder id or null
+         * @param size file size or -1 if unknown
+         * @param md5 MD5 of the content or null
+         * @param modifiedTime modification time in milliseconds since the epoch
+         * @param syncTime local time the metadata was obtained from the drive
+         */
+        public Entry(@NonNull String id, String name, String parent, long size, String md5, long modifiedTime, long syncTime) {
+            this.id = id;
+            this.name = name;
+            this.parent = parent;
+            this.size = size;
+            this.md5 = md5;
+            this.modifiedTime = modifiedTime;
+            this.syncTime = syncTime;
+        }
+
+        @NonNull
+        public String getId() { return id; }
+
+        public String getName() { return name; }
+
+        public String getParent() { return parent; }
+
+        public long getSize() { return size; }
+
+        public String getMd5() { return md5; }
+
+        public long getModifiedTime() { return modifiedTime; }
+
+        public long getSyncTime() { return syncTime; }
+    }
+
+    /**
+     * @param file file to keep the index in, it is read by {@link #load()} and written by {@link #save()}
+     */
+    public MetadataIndex(java.io.File file) {
+        this.file = file;
+    }
+
+    /**
+     * Set time after which an entry should be confirmed with the drive
+     *
+     * @param maxAge age in milliseconds
+     */
+    public synchronized void setMaxAge(long maxAge) { this.maxAge = maxAge; }
+
+    /**
+     * @return fresh entry by id or null
+     */
+    @Nullable
+    public synchronized Entry get(String id) {
+        return fresh(byId.get(id));
+    }
+
+    /**
+     * @return fresh entry by name in the folder or null, if there are several of them any one is returned
+     */
+    @Nullable
+    public synchronized Entry find(String parent, String name) {
+        Map<String, Entry> children = byParent.get(parent);
+        return (children == null) ? null : fresh(children.get(name));
+    }
+
+    /**
+     * @return entries known in the folder regardless of their age
+     */
+    @NonNull
+    public synchronized List<Entry> children(String parent) {
+        Map<String, Entry> children = byParent.get(parent);
+        return (children == null) ? new ArrayList<Entry>() : new ArrayList<>(children.values());
+    }
+
+    /**
+     * @return true if all the children of the folder were put by {@link #replaceChildren(String, Collection)}, so
+     * a file new to the folder belongs to the index too, even if the folder was empty
+     */
+    public synchronized boolean isMirrored(String parent) {
+        return mirrored.contains(parent);
+    }
+
+    /**
+     * Add or replace an entry
+     */
+    public synchronized void put(@NonNull Entry entry) {
+        unlink(byId.put(entry.getId(), entry));
+        if (entry.getParent() != null && entry.getName() != null) {
+            Map<String, Entry> children = byParent.get(entry.getParent());
+            if (children == null) {
+                children = new HashMap<>();
+                byParent.put(entry.getParent(), children);
+            }
+            children.put(entry.getName(), entry);
+        }
+        dirty = true;
+    }
+
+    /**
+     * Remove an entry
+     */
+    public synchronized void remove(String id) {
+        Entry entry = byId.remove(id);
+        if (entry != null) {
+            unlink(entry);
+            dirty = true;
+        }
+    }
+
+    /**
+     * Replace all entries of the folder with the ones just listed on the drive
+     */
+    public synchronized void replaceChildren(String parent, @NonNull Collection<Entry> entries) {
+        Map<String, Entry> children = byParent.remove(parent);
+        if (children != null) {
+            for (Entry entry : children.values()) byId.remove(entry.getId());
+        }
+        for (Entry entry : entries) put(entry);
+        mirrored.add(parent);
+        dirty = true;
+    }
+
+    /**
+     * Forget all entries
+     */
+    public synchronized void clear() {
+        byId.clear();
+        byParent.clear();
+        mirrored.clear();
+        dirty = true;
+    }
+
+    /**
+     * Read the index file. A missing or unreadable file results in an empty index
+     */
+    public synchronized void load() throws IOException {
+        byId.clear();
+        byParent.clear();
+        mirrored.clear();
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        try {
+            if (in.readInt() != MAGIC) return;
+            int version = in.readInt();
+            if (version != 1 && version != VERSION) return;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String id = in.readUTF();
+                String name = readString(in);
+                String parent = readString(in);
+                long size = in.readLong();
+                String md5 = readString(in);
+                long modifiedTime = in.readLong();
+                long syncTime = in.readLong();
+                put(new Entry(id, name, parent, size, md5, modifiedTime, syncTime));
+            }
+            if (version > 1) {
+                count = in.readInt();
+                for (int i = 0; i < count; i++) mirrored.add(in.readUTF());
+            }
+        } catch (IOException e) {
+            byId.clear();
+            byParent.clear();
+            mirrored.clear();
+        } finally {
+            in.close();
+            dirty = false;
+        }
+    }
+
+    /**
+     * Write the index file if there are changes since the last {@link #load()} or {@link #save()}
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty) return;
+        java.io.File tempFile = new java.io.File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(byId.size());
+            for (Entry entry : byId.values()) {
+                out.writeUTF(entry.getId());
+                writeString(out, entry.getName());
+                writeString(out, entry.getParent());
+                out.writeLong(entry.getSize());
+                writeString(out, entry.getMd5());
+                out.writeLong(entry.getModifiedTime());
+                out.writeLong(entry.getSyncTime());
+            }
+            out.writeInt(mirrored.size());
+            for (String parent : mirrored) out.writeUTF(parent);
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(file)) throw new IOException("Unable to write " + file);
+        dirty = false;
+    }
+
+    private Entry fresh(Entry entry) {
+        if (entry == null || System.currentTimeMillis() - entry.getSyncTime() > maxAge) return null;
+        return entry;
+    }
+
+    private void unlink(Entry entry) {
+        if (entry == null || entry.getParent() == null) return;
+        Map<String, Entry> children = byParent.get(entry.getParent());
+        if (children != null && children.get(entry.getName()) == entry) {
+            children.remove(entry.getName());
+            if (children.isEmpty()) byParent.remove(entry.getParent());
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+}
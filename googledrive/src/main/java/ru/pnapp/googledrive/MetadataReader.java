@@ -0,0 +1,182 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonParser;
+import com.google.api.client.json.JsonToken;
+import com.google.api.client.util.DateTime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Streaming reader of Drive file metadata on the {@link JsonParser} of the client {@link JsonFactory}. The fields are
+ * taken into this reusable object as the parser meets them, without the map backed model of
+ * {@link com.google.api.services.drive.model.File} and the lists of parents.
+ * <br>
+ * Only the fields of {@link GoogleDriveREST} FILE_FIELDS, mimeType and trashed are kept, others are skipped.
+ * An instance is used by one thread at a time.
+ */
+class MetadataReader {
+    private final JsonFactory jsonFactory;
+
+    String id;
+    String name;
+    String mimeType;
+    /** The first parent */
+    String parent;
+    long size;
+    String md5;
+    long modifiedTime;
+    boolean trashed;
+
+    /** Called for each file of a list, the reader is reused for the next file */
+    interface Visitor {
+        void visit(MetadataReader file) throws IOException;
+    }
+
+    MetadataReader(JsonFactory jsonFactory) {
+        this.jsonFactory = jsonFactory;
+    }
+
+    void reset() {
+        id = null;
+        name = null;
+        mimeType = null;
+        parent = null;
+        size = -1;
+        md5 = null;
+        modifiedTime = 0;
+        trashed = false;
+    }
+
+    /** Read a file resource from the stream, the stream is closed */
+    void readFile(InputStream inputStream, Charset charset) throws IOException {
+        JsonParser parser = jsonFactory.createJsonParser(inputStream, charset);
+        try {
+            expect(parser.nextToken(), JsonToken.START_OBJECT);
+            readFile(parser);
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * Read a file list from the stream calling the visitor for each file, the stream is closed
+     * @return next page token or null
+     */
+    String readList(InputStream inputStream, Charset charset, Visitor visitor) throws IOException {
+        JsonParser parser = jsonFactory.createJsonParser(inputStream, charset);
+        try {
+            String pageToken = null;
+            expect(parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String key = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("files".equals(key) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        readFile(parser);
+                        visitor.visit(this);
+                    }
+                    expect(parser.getCurrentToken(), JsonToken.END_ARRAY);
+                } else if ("nextPageToken".equals(key) && value == JsonToken.VALUE_STRING) {
+                    pageToken = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            expect(parser.getCurrentToken(), JsonToken.END_OBJECT);
+            return pageToken;
+        } finally {
+            parser.close();
+        }
+    }
+
+    /** Build an index entry of the file last read */
+    MetadataIndex.Entry toEntry(String parent, long syncTime) {
+        return new MetadataIndex.Entry(id, name, parent != null ? parent : this.parent, size, md5, modifiedTime, syncTime);
+    }
+
+    /** Read the fields of the object the parser is at */
+    private void readFile(JsonParser parser) throws IOException {
+        reset();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String key = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (value == JsonToken.VALUE_NULL) continue;
+            switch (key) {
+                case "id":
+                    id = parser.getText();
+                    break;
+                case "name":
+                    name = parser.getText();
+                    break;
+                case "mimeType":
+                    mimeType = parser.getText();
+                    break;
+                case "md5Checksum":
+                    md5 = parser.getText();
+                    break;
+                case "size":
+                    // int64 values are sent as strings
+                    size = parseLong(parser.getText());
+                    break;
+                case "modifiedTime":
+                    modifiedTime = parseTime(parser.getText());
+                    break;
+                case "trashed":
+                    trashed = value == JsonToken.VALUE_TRUE;
+                    break;
+                case "parents":
+                    expect(value, JsonToken.START_ARRAY);
+                    while (parser.nextToken() == JsonToken.VALUE_STRING) {
+                        if (parent == null) parent = parser.getText();
+                    }
+                    expect(parser.getCurrentToken(), JsonToken.END_ARRAY);
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        expect(parser.getCurrentToken(), JsonToken.END_OBJECT);
+    }
+
+    private static void expect(JsonToken token, JsonToken expected) throws IOException {
+        if (token != expected) throw new IOException("Malformed metadata, " + expected + " expected at " + token);
+    }
+
+    private static long parseLong(String text) throws IOException {
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid number " + text);
+        }
+    }
+
+    /**
+     * Parse RFC 3339 time like 2016-10-19T10:11:12.345Z or with an offset
+     * @return milliseconds since the epoch
+     */
+    static long parseTime(String text) throws IOException {
+        try {
+            return DateTime.parseRfc3339(text).getValue();
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid time " + text);
+        }
+    }
+}
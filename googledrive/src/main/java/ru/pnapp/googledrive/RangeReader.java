@@ -0,0 +1,245 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Random access to the content of a file on the drive, see {@link GoogleDrive#openReader(String)}.
+ * <br>
+ * The file is read in blocks of {@link #BLOCK_SIZE} bytes, or in frames if it is encrypted, fetched with HTTP
+ * Range requests and kept in a small LRU cache. Missing blocks adjacent to each other are fetched with a single
+ * request. Reads following each other sequentially turn on read-ahead, doubled on every such read up to
+ * {@link #MAX_READ_AHEAD} bytes, a random read turns it off. So reading a small footer of a large file downloads
+ * a single block, while scanning the file streams it in growing ranges.
+ * <br>
+ * The size of the file is taken on open, the file should not be modified while the reader is in use.
+ * Methods are synchronized, positioned reads from several threads are allowed.
+ */
+public class RangeReader implements Closeable {
+    /** Source of the bytes of the file on the drive */
+    interface Source {
+        /**
+         * Open bytes {@code start..end} of the file
+         *
+         * @param end last byte position inclusive
+         */
+        InputStream open(long start, long end) throws IOException;
+    }
+
+    /** Block size of a file that is not encrypted */
+    public static final int BLOCK_SIZE = 16 * 1024;
+    /** Upper limit of data kept in the cache */
+    public static final int CACHE_SIZE = 4 * 1024 * 1024;
+    /** Upper limit of read-ahead */
+    public static final int MAX_READ_AHEAD = 1024 * 1024;
+
+    private final Source source;
+    private final long size;
+    private final FrameCipher cipher;
+    private final int blockSize;
+    private final long blockCount;
+    private final long length;
+    private final int maxBlocks;
+    private final Map<Long, byte[]> blocks;
+
+    private byte[] header;
+    private long nextPosition = -1;
+    private int readAhead;
+    private long bytesFetched;
+    private boolean closed;
+
+    /**
+     * @param size size of the file on the drive
+     * @param key key of client side encryption or null
+     */
+    RangeReader(Source source, long size, SecretKey key) throws IOException {
+        this.source = source;
+        this.size = size;
+        if (key == null) {
+            cipher = null;
+            blockSize = BLOCK_SIZE;
+            blockCount = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            length = size;
+        } else {
+            if (size < FrameCipher.HEADER_SIZE + FrameCipher.TAG_SIZE) throw new IOException("Not an encrypted file");
+            cipher = new FrameCipher(key);
+            blockSize = FrameCipher.FRAME_SIZE;
+            blockCount = FrameCipher.frameCount(size);
+            length = size - FrameCipher.HEADER_SIZE - blockCount * FrameCipher.TAG_SIZE;
+        }
+        maxBlocks = Math.max(2, CACHE_SIZE / blockSize);
+        blocks = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                return size() > maxBlocks;
+            }
+        };
+    }
+
+    /** @return length of the file content, decrypted if it is encrypted */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Read up to {@code len} bytes of the file starting at {@code position}
+     *
+     * @return number of bytes read, it is less than {@code len} only at the end of the file, or -1 if
+     * {@code position} is at or past the end of the file
+     * @throws IOException on error
+     */
+    @WorkerThread
+    public synchronized int read(long position, byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("Reader closed");
+        if (position < 0 || off < 0 || len < 0 || len > b.length - off) throw new IndexOutOfBoundsException();
+        if (len == 0) return 0;
+        if (position >= length) return -1;
+        len = (int) Math.min(len, length - position);
+
+        // Sequential reads double the read-ahead, a random read turns it off
+        int maxReadAhead = Math.max(1, MAX_READ_AHEAD / blockSize);
+        readAhead = (position == nextPosition) ? Math.min(maxReadAhead, Math.max(1, readAhead * 2)) : 0;
+        long lastBlock = Math.min(blockCount - 1, (position + len - 1) / blockSize + readAhead);
+
+        int total = 0;
+        while (total < len) {
+            long p = position + total;
+            long index = p / blockSize;
+            byte[] block = blocks.get(index);
+            if (block == null) {
+                fetch(index, lastBlock);
+                block = blocks.get(index);
+            }
+            int offset = (int) (p - index * blockSize);
+            int n = Math.min(block.length - offset, len - total);
+            if (n <= 0) throw new IOException("Unexpected end of block " + index);
+            System.arraycopy(block, offset, b, off + total, n);
+            total += n;
+        }
+        nextPosition = position + total;
+        return total;
+    }
+
+    /**
+     * Read exactly {@code len} bytes of the file starting at {@code position}
+     *
+     * @throws java.io.EOFException if the file ends before
+     */
+    @WorkerThread
+    public synchronized void readFully(long position, byte[] b, int off, int len) throws IOException {
+        if (position + len > length) throw new java.io.EOFException("Read past the end of the file");
+        if (read(position, b, off, len) < len) throw new java.io.EOFException("Read past the end of the file");
+    }
+
+    /**
+     * Read up to {@code len} bytes of the file starting at {@code position}
+     *
+     * @return the bytes read, shorter than {@code len} at the end of the file
+     */
+    @WorkerThread @NonNull
+    public synchronized byte[] read(long position, int len) throws IOException {
+        if (position < 0 || len < 0) throw new IndexOutOfBoundsException();
+        byte[] bytes = new byte[(int) Math.max(0, Math.min(len, length - position))];
+        if (bytes.length > 0) readFully(position, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    /** @return number of bytes downloaded so far */
+    public synchronized long getBytesFetched() {
+        return bytesFetched;
+    }
+
+    /** Drop the cached data, the reader can't be used after */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        blocks.clear();
+    }
+
+    /**
+     * Fetch the block {@code first} and the missing blocks following it up to {@code last} with a single request
+     */
+    private void fetch(long first, long last) throws IOException {
+        // Stop at a cached block and keep the run within the cache, so the first block stays in it
+        long end = Math.min(last, first + maxBlocks / 2 - 1);
+        for (long i = first + 1; i <= end; i++) {
+            if (blocks.containsKey(i)) {
+                end = i - 1;
+                break;
+            }
+        }
+
+        long start = position(first);
+        // The header of an encrypted file is fetched with the first frame if it is wanted anyway
+        boolean withHeader = cipher != null && header == null && first == 0;
+        if (cipher != null && header == null && !withHeader) fetchHeader();
+        if (withHeader) start = 0;
+
+        InputStream inputStream = source.open(start, position(end + 1) - 1);
+        try {
+            if (withHeader) {
+                header = readBytes(inputStream, FrameCipher.HEADER_SIZE, "Not an encrypted file");
+                cipher.setHeader(header);
+            }
+            for (long i = first; i <= end; i++) {
+                int sealedLength = (int) (position(i + 1) - position(i));
+                byte[] block = readBytes(inputStream, sealedLength, "Unexpected end of block " + i);
+                if (cipher != null) {
+                    byte[] plain = new byte[sealedLength - FrameCipher.TAG_SIZE];
+                    cipher.decrypt(i, i == blockCount - 1, block, sealedLength, plain);
+                    block = plain;
+                }
+                blocks.put(i, block);
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private void fetchHeader() throws IOException {
+        InputStream inputStream = source.open(0, FrameCipher.HEADER_SIZE - 1);
+        try {
+            header = readBytes(inputStream, FrameCipher.HEADER_SIZE, "Not an encrypted file");
+        } finally {
+            inputStream.close();
+        }
+        cipher.setHeader(header);
+    }
+
+    /** Position of the block in the file on the drive, the size of the file past the last block */
+    private long position(long index) {
+        if (index >= blockCount) return size;
+        return (cipher == null) ? index * blockSize : FrameCipher.framePosition(index);
+    }
+
+    private byte[] readBytes(InputStream inputStream, int length, String error) throws IOException {
+        byte[] bytes = new byte[length];
+        int bytesRead = FrameCipher.readFully(inputStream, bytes, 0, length);
+        bytesFetched += bytesRead;
+        if (bytesRead < length) throw new IOException(error);
+        return bytes;
+    }
+}
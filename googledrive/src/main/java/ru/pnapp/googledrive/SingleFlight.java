@@ -0,0 +1,60 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces concurrent calls with the same key: the first caller runs the task in its own thread, callers arriving
+ * while it is in flight wait for and share its result. The result is not cached after the task completes.
+ *
+ * @param <V> result type
+ */
+class SingleFlight<V> {
+    private final ConcurrentMap<String, FutureTask<V>> inFlight = new ConcurrentHashMap<>();
+
+    V execute(String key, Callable<V> task) throws IOException {
+        FutureTask<V> future = new FutureTask<>(task);
+        FutureTask<V> existing = inFlight.putIfAbsent(key, future);
+        if (existing == null) {
+            try {
+                future.run();
+            } finally {
+                inFlight.remove(key, future);
+            }
+        } else {
+            future = existing;
+        }
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + key);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,396 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * Versioned backups on top of {@link GoogleDrive}. Each backup is stored as an immutable snapshot in its own folder
+ * under the base path along with an index file naming its files. Snapshots are listed in a catalog file in the base
+ * folder, so neither restore nor retention needs listing folders on the drive.
+ * <br>
+ * The catalog is addressed by id like any other file of this library. Pass the id returned by
+ * {@link #getCatalogId()} to the constructor next time, otherwise the catalog is looked up by name in the base folder.
+ * <br>
+ * Note that the operations change the working folder of the drive, see {@link GoogleDrive#cd(String, String)}.
+ */
+public class SnapshotManager {
+    private static final String CATALOG_TITLE = "snapshots.tsv";
+    private static final String INDEX_TITLE = "index.tsv";
+    private static final String INDEX_MIME = "text/tab-separated-values";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    private final GoogleDrive drive;
+    private final String path;
+
+    private String catalogId;
+    private String baseId;
+    private List<Snapshot> catalog;
+    private RetentionPolicy retentionPolicy;
+
+    /**
+     * Single backup generation
+     */
+    public static class Snapshot {
+        private final String name;
+        private final long time;
+        private final String folderId;
+        private final String indexId;
+
+        Snapshot(String name, long time, String folderId, String indexId) {
+            this.name = name;
+            this.time = time;
+            this.folderId = folderId;
+            this.indexId = indexId;
+        }
+
+        /** @return snapshot name, also the name of its folder */
+        public String getName() { return name; }
+
+        /** @return creation time in milliseconds since the epoch */
+        public long getTime() { return time; }
+
+        /** @return id of the snapshot folder */
+        public String getFolderId() { return folderId; }
+
+        /** @return id of the snapshot index file */
+        public String getIndexId() { return indexId; }
+    }
+
+    /**
+     * Rules to select snapshots to keep. A snapshot is kept if any of the rules selects it, the newest snapshot is
+     * always kept.
+     */
+    public static class RetentionPolicy {
+        private final int keepLast;
+        private final int keepDaily;
+        private final int keepWeekly;
+
+        /**
+         * @param keepLast number of the newest snapshots to keep
+         * @param keepDaily number of days to keep the newest snapshot of
+         * @param keepWeekly number of weeks to keep the newest snapshot of
+         */
+        public RetentionPolicy(int keepLast, int keepDaily, int keepWeekly) {
+            this.keepLast = keepLast;
+            this.keepDaily = keepDaily;
+            this.keepWeekly = keepWeekly;
+        }
+
+        /**
+         * @param snapshots snapshots sorted newest first
+         * @return snapshots to delete
+         */
+        List<Snapshot> select(List<Snapshot> snapshots) {
+            Set<Snapshot> keep = new HashSet<>();
+            for (int i = 0; i < snapshots.size() && i < Math.max(1, keepLast); i++) keep.add(snapshots.get(i));
+            thin(snapshots, keep, keepDaily, 1);
+            thin(snapshots, keep, keepWeekly, 7);
+
+            List<Snapshot> remove = new ArrayList<>();
+            for (Snapshot snapshot : snapshots) {
+                if (!keep.contains(snapshot)) remove.add(snapshot);
+            }
+            return remove;
+        }
+
+        /**
+         * Keep the newest snapshot in each of the {@code count} newest periods of {@code days} local days. Periods are
+         * counted from the epoch rather than by calendar fields, so a week spanning the new year is still one period.
+         */
+        private static void thin(List<Snapshot> snapshots, Set<Snapshot> keep, int count, int days) {
+            Calendar calendar = Calendar.getInstance();
+            long lastPeriod = Long.MIN_VALUE;
+            for (Snapshot snapshot : snapshots) {
+                if (count <= 0) break;
+                calendar.setTimeInMillis(snapshot.getTime());
+                long local = snapshot.getTime() + calendar.get(Calendar.ZONE_OFFSET) + calendar.get(Calendar.DST_OFFSET);
+                // The epoch is a Thursday, shift by 3 days for weeks to start on Monday
+                long day = floorDiv(local, DAY) + (days == 7 ? 3 : 0);
+                long period = floorDiv(day, days);
+                if (period != lastPeriod) {
+                    keep.add(snapshot);
+                    lastPeriod = period;
+                    count--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Destination of the restored files
+     */
+    public interface Sink {
+        /**
+         * Open a stream to store a restored file. The stream is closed by the caller
+         *
+         * @param title name of the file as it was backed up
+         * @return output stream, it should start from the beginning if called again for the same file
+         * @throws IOException on error
+         */
+        @NonNull
+        OutputStream open(String title) throws IOException;
+    }
+
+    /**
+     * @param drive drive to store snapshots on
+     * @param path base folder path
+     * @param catalogId id of the catalog file from the previous session or null to look it up by name under the path
+     */
+    public SnapshotManager(@NonNull GoogleDrive drive, @NonNull String path, String catalogId) {
+        this.drive = drive;
+        this.path = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+        this.catalogId = catalogId;
+    }
+
+    /**
+     * @return id of the catalog file, should be kept to open the same snapshots next time
+     */
+    public String getCatalogId() { return catalogId; }
+
+    /**
+     * Set retention policy to be applied after each {@link #backup(List)}
+     */
+    public void setRetentionPolicy(RetentionPolicy policy) { retentionPolicy = policy; }
+
+    /**
+     * @return snapshots newest first
+     * @throws IOException on error
+     */
+    @WorkerThread @NonNull
+    public List<Snapshot> list() throws IOException {
+        return Collections.unmodifiableList(new ArrayList<>(loadCatalog()));
+    }
+
+    /**
+     * Store the files as a new snapshot and apply the retention policy if any
+     *
+     * @param files files to store, titles should be unique. Ids of the specs are ignored, files are always created
+     *              in the new snapshot folder
+     * @return the new snapshot
+     * @throws IOException on error, the snapshot is not added to the catalog if any file failed
+     */
+    @WorkerThread @NonNull
+    public Snapshot backup(List<UploadSpec> files) throws IOException {
+        List<Snapshot> snapshots = loadCatalog();
+
+        long time = System.currentTimeMillis();
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmssSSS'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String name = format.format(new Date(time));
+
+        String folderId = drive.cd(null, path + "/" + name);
+
+        // A snapshot is immutable, never let a spec id overwrite a file of an older snapshot
+        List<UploadSpec> specs = new ArrayList<>(files.size());
+        for (UploadSpec spec : files) {
+            specs.add(spec.getFile() != null
+                    ? new UploadSpec(null, spec.getTitle(), spec.getMimeType(), spec.getFile())
+                    : new UploadSpec(null, spec.getTitle(), spec.getMimeType(), spec.getLength(), spec.getSource()));
+        }
+
+        BulkResult result = drive.writeAll(specs, null);
+        if (!result.isSuccessful()) {
+            drive.delete(folderId);
+            IOException error = result.getErrors().values().iterator().next();
+            throw new IOException("Snapshot " + name + " failed: " + error.getMessage(), error);
+        }
+
+        StringBuilder index = new StringBuilder();
+        for (int i = 0; i < files.size(); i++) {
+            UploadSpec spec = files.get(i);
+            index.append(result.getIds().get(i)).append('\t')
+                    .append(escape(spec.getTitle())).append('\t')
+                    .append(escape(spec.getMimeType())).append('\n');
+        }
+        String indexId = drive.write(null, INDEX_TITLE, INDEX_MIME, new ByteArrayInputStream(index.toString().getBytes(UTF8)));
+
+        Snapshot snapshot = new Snapshot(name, time, folderId, indexId);
+        snapshots.add(0, snapshot);
+        saveCatalog();
+
+        if (retentionPolicy != null) applyRetention(retentionPolicy);
+
+        return snapshot;
+    }
+
+    /**
+     * Restore all files of the snapshot. The files are fetched in parallel, see
+     * {@link GoogleDrive#readAll(List, GoogleDrive.SinkFactory, GoogleDrive.TransferListener)}.
+     *
+     * @param snapshot snapshot to restore
+     * @param sink destination of the files
+     * @param listener progress listener or null
+     * @return result of the transfer
+     * @throws IOException on error
+     */
+    @WorkerThread @NonNull
+    public BulkResult restore(Snapshot snapshot, final Sink sink, GoogleDrive.TransferListener listener) throws IOException {
+        final Map<String, String> titles = new HashMap<>();
+        List<String> ids = new ArrayList<>();
+        for (String[] fields : readTable(snapshot.getIndexId())) {
+            if (fields.length < 2) continue;
+            ids.add(fields[0]);
+            titles.put(fields[0], fields[1]);
+        }
+
+        return drive.readAll(ids, new GoogleDrive.SinkFactory() {
+            @NonNull @Override
+            public OutputStream open(String id) throws IOException {
+                return sink.open(titles.get(id));
+            }
+        }, listener);
+    }
+
+    /**
+     * Delete the snapshots not selected by the policy. Snapshot folders are deleted in parallel
+     *
+     * @param policy retention policy
+     * @return snapshots deleted
+     * @throws IOException on error, the catalog keeps snapshots which failed to delete
+     */
+    @WorkerThread @NonNull
+    public List<Snapshot> applyRetention(RetentionPolicy policy) throws IOException {
+        List<Snapshot> snapshots = loadCatalog();
+        List<Snapshot> remove = policy.select(snapshots);
+        if (remove.isEmpty()) return remove;
+
+        List<String> ids = new ArrayList<>(remove.size());
+        for (Snapshot snapshot : remove) ids.add(snapshot.getFolderId());
+        BulkResult result = drive.deleteAll(ids);
+
+        List<Snapshot> removed = new ArrayList<>(remove.size());
+        for (int i = 0; i < remove.size(); i++) {
+            if (result.getIds().get(i) != null) removed.add(remove.get(i));
+        }
+        snapshots.removeAll(removed);
+        saveCatalog();
+        return removed;
+    }
+
+    private List<Snapshot> loadCatalog() throws IOException {
+        if (catalog != null) return catalog;
+
+        List<Snapshot> snapshots = new ArrayList<>();
+        if (catalogId == null) {
+            baseId = drive.cd(null, path);
+            catalogId = drive.resolve(CATALOG_TITLE);
+        }
+        if (catalogId != null) {
+            for (String[] fields : readTable(catalogId)) {
+                if (fields.length < 4) continue;
+                try {
+                    snapshots.add(new Snapshot(fields[0], Long.parseLong(fields[1]), fields[2], fields[3]));
+                } catch (NumberFormatException ignore) {}
+            }
+        }
+        Collections.sort(snapshots, new Comparator<Snapshot>() {
+            @Override
+            public int compare(Snapshot a, Snapshot b) {
+                return a.getTime() < b.getTime() ? 1 : (a.getTime() == b.getTime() ? 0 : -1);
+            }
+        });
+        catalog = snapshots;
+        return catalog;
+    }
+
+    private void saveCatalog() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (Snapshot snapshot : catalog) {
+            builder.append(snapshot.getName()).append('\t')
+                    .append(snapshot.getTime()).append('\t')
+                    .append(snapshot.getFolderId()).append('\t')
+                    .append(snapshot.getIndexId()).append('\n');
+        }
+        // A new catalog is created in the base folder, an existing one is updated by id wherever the working folder is
+        if (catalogId == null) {
+            if (baseId == null) baseId = drive.cd(null, path);
+            else drive.cd(baseId, null);
+        }
+        catalogId = drive.write(catalogId, CATALOG_TITLE, INDEX_MIME, new ByteArrayInputStream(builder.toString().getBytes(UTF8)));
+    }
+
+    private List<String[]> readTable(String id) throws IOException {
+        InputStream inputStream = drive.openInputStream(id);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, bytesRead);
+            }
+        } finally {
+            inputStream.close();
+        }
+
+        List<String[]> table = new ArrayList<>();
+        for (String line : new String(outputStream.toByteArray(), UTF8).split("\n")) {
+            if (line.isEmpty()) continue;
+            String[] fields = line.split("\t", -1);
+            for (int i = 0; i < fields.length; i++) fields[i] = unescape(fields[i]);
+            table.add(fields);
+        }
+        return table;
+    }
+
+    private static String escape(String value) {
+        if (value == null) return "";
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    private static String unescape(String value) {
+        if (value.indexOf('\\') < 0) return value;
+        StringBuilder builder = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                builder.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    /** Math.floorDiv is not available before API 24 */
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Directory of temporary files with a disk quota.
+ * <br>
+ * Space is reserved as a file grows, a write past the quota fails, so the files of the store never take more than
+ * the quota. Files are deleted when closed. Files left by a process that crashed or missed a close are deleted by
+ * {@link #sweep()} once they are older than {@link #ORPHAN_AGE_MS}, files of this store are never swept.
+ * <br>
+ * There is one store per directory in the process, see {@link #forDirectory(java.io.File)}, so all the users of
+ * a directory share its quota and never sweep the files of each other.
+ */
+class SpoolStore {
+    static final long DEFAULT_QUOTA = 64 * 1024 * 1024;
+    /** Unknown files not modified this long are deleted by {@link #sweep()} */
+    static final long ORPHAN_AGE_MS = 60 * 60 * 1000L;
+
+    private static final String TAG = "SpoolStore";
+    private static final String SUFFIX = ".spool";
+
+    /** Stores of the process by canonical directory path */
+    private static final Map<String, SpoolStore> stores = new HashMap<>();
+
+    private final java.io.File dir;
+    private final Set<java.io.File> files = new HashSet<>();
+    private long quota = DEFAULT_QUOTA;
+    private long used;
+
+    private SpoolStore(java.io.File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Get the store of the directory, a new one with {@link #DEFAULT_QUOTA} is made on the first call
+     *
+     * @param dir directory of the store, it is created if missing
+     */
+    static SpoolStore forDirectory(java.io.File dir) {
+        String key;
+        try {
+            key = dir.getCanonicalPath();
+        } catch (IOException e) {
+            key = dir.getAbsolutePath();
+        }
+        synchronized (stores) {
+            SpoolStore store = stores.get(key);
+            if (store == null) {
+                store = new SpoolStore(new java.io.File(key));
+                stores.put(key, store);
+            }
+            return store;
+        }
+    }
+
+    /** Set the quota of the directory, it applies to all the users of the store */
+    synchronized void setQuota(long quota) {
+        this.quota = quota;
+    }
+
+    synchronized long getQuota() {
+        return quota;
+    }
+
+    /** @return bytes taken by the files of this store */
+    synchronized long getUsed() {
+        return used;
+    }
+
+    /**
+     * Create a new empty file
+     *
+     * @param prefix file name prefix, at least three characters long
+     * @throws IOException if the quota is used up or the file can't be created
+     */
+    Spool create(String prefix) throws IOException {
+        synchronized (this) {
+            if (used >= quota) throw new IOException("Spool quota of " + quota + " bytes exceeded");
+        }
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) throw new IOException("Unable to create " + dir);
+        java.io.File file = java.io.File.createTempFile(prefix, SUFFIX, dir);
+        synchronized (this) {
+            files.add(file);
+        }
+        try {
+            return new Spool(file, new RandomAccessFile(file, "rw").getChannel());
+        } catch (IOException e) {
+            delete(file, 0);
+            throw e;
+        }
+    }
+
+    /**
+     * Delete files not owned by this store and not modified for {@link #ORPHAN_AGE_MS}
+     *
+     * @return number of files deleted
+     */
+    int sweep() {
+        java.io.File[] list = dir.listFiles();
+        if (list == null) return 0;
+        long oldest = System.currentTimeMillis() - ORPHAN_AGE_MS;
+        int count = 0;
+        for (java.io.File file : list) {
+            if (!file.getName().endsWith(SUFFIX) || file.lastModified() > oldest) continue;
+            synchronized (this) {
+                if (files.contains(file)) continue;
+            }
+            if (file.delete()) count++;
+        }
+        if (count > 0) Log.i(TAG, "Deleted " + count + " orphaned files in " + dir);
+        return count;
+    }
+
+    private synchronized void reserve(long bytes) throws IOException {
+        if (used + bytes > quota) throw new IOException("Spool quota of " + quota + " bytes exceeded");
+        used += bytes;
+    }
+
+    private void delete(java.io.File file, long size) {
+        if (!file.delete() && file.exists()) Log.w(TAG, "Unable to delete " + file);
+        synchronized (this) {
+            files.remove(file);
+            used -= size;
+        }
+    }
+
+    /**
+     * Temporary file of the store, deleted on close
+     */
+    class Spool implements Closeable {
+        private final java.io.File file;
+        private final FileChannel channel;
+        private long size;
+        private boolean closed;
+
+        private Spool(java.io.File file, FileChannel channel) {
+            this.file = file;
+            this.channel = channel;
+        }
+
+        /**
+         * Write the buffer at the position
+         *
+         * @throws IOException if the file grows past the quota
+         */
+        synchronized void write(ByteBuffer buffer, long position) throws IOException {
+            if (closed) throw new IOException("Spool closed");
+            long end = position + buffer.remaining();
+            if (end > size) {
+                reserve(end - size);
+                size = end;
+            }
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+
+        int read(ByteBuffer buffer, long position) throws IOException {
+            return channel.read(buffer, position);
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) return;
+            closed = true;
+            try {
+                channel.close();
+            } catch (IOException ignore) {}
+            delete(file, size);
+        }
+    }
+}
@@ -0,0 +1,464 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import android.util.Log;
+
+import com.google.api.client.http.AbstractInputStreamContent;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.InputStreamContent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Output stream uploading the data while it is written.
+ * <br>
+ * Data up to the threshold is kept in memory, if the stream is closed within it, the content is sent at once on
+ * {@link #commit()}. Otherwise the upload is started in background as soon as the threshold is passed, and the data
+ * is passed to it through a bounded pipe, so writing, reading and sending overlap. The end of the data is signalled
+ * to the upload only on {@link #commit()}, so {@link #abort()} leaves the file on the drive untouched.
+ * <br>
+ * The data passed to the upload is also kept in a replay spool while it fits the quota of the {@link SpoolStore}.
+ * An upload failed in flight by a transient error or a checksum mismatch is then sent again from the spool on
+ * {@link #commit()}, otherwise the failure is final. At most {@link #MAX_THREADS} uploads stream at once in the
+ * process, the data of another one is only spooled and sent on {@link #commit()}.
+ *
+ * @param <V> upload result type
+ */
+class StreamingUpload<V> extends OutputStream {
+    interface Task<V> {
+        V execute(AbstractInputStreamContent content) throws IOException;
+    }
+
+    /** Uploads streaming in background at once */
+    static final int MAX_THREADS = 8;
+
+    private static final String TAG = "StreamingUpload";
+    private static final int CHUNK = 64 * 1024;
+    /** Times a failed upload is sent again from the replay spool */
+    private static final int REPLAY_ATTEMPTS = 2;
+
+    private static ThreadPoolExecutor sExecutor;
+
+    private final String type;
+    private final int threshold;
+    private final int capacity;
+    private final SpoolStore spoolStore;
+    private final Task<V> task;
+
+    private byte[] buffer;
+    private int length;
+    private FutureTask<V> future;
+    private boolean closed;
+    /** Bytes written to the stream */
+    private long written;
+    /** Bytes passed to the upload */
+    private long sent;
+    /** Time of the last write */
+    private volatile long lastWrite = System.currentTimeMillis();
+    /** Set on commit, reports the progress of the data left */
+    private volatile Transfer transfer;
+
+    /** Copy of the data passed to the upload or null if it is not kept */
+    private SpoolStore.Spool replay;
+    /** Bytes in the replay spool */
+    private long spooled;
+    /** Set if the data goes to the replay spool only, it is sent on commit */
+    private boolean deferred;
+    /** Set on abort or cancel, the data is not sent again */
+    private volatile boolean aborted;
+
+    private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+    private int queued;
+    private boolean finished;
+    private IOException failure;
+
+    /**
+     * @param type content type
+     * @param threshold data up to this size is sent in a single request
+     * @param capacity number of bytes the pipe may hold before the writer waits
+     * @param spoolStore store of the replay spool or null to not keep the data
+     * @param task upload to run with the content
+     */
+    StreamingUpload(String type, int threshold, int capacity, SpoolStore spoolStore, Task<V> task) {
+        this.type = type;
+        this.threshold = threshold;
+        this.capacity = capacity;
+        this.spoolStore = spoolStore;
+        this.task = task;
+        buffer = new byte[Math.min(threshold + 1, CHUNK)];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        written += len;
+        lastWrite = System.currentTimeMillis();
+        while (len > 0) {
+            if (length == buffer.length) {
+                if (future != null || deferred) {
+                    pass(buffer);
+                    buffer = new byte[CHUNK];
+                    length = 0;
+                } else if (length > threshold) {
+                    start();
+                } else {
+                    buffer = Arrays.copyOf(buffer, Math.min(threshold + 1, 2 * buffer.length));
+                }
+            }
+            int count = Math.min(len, buffer.length - length);
+            System.arraycopy(b, off, buffer, length, count);
+            length += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        if (future == null && !deferred && length > threshold) start();
+        if ((future != null || deferred) && length > 0) pass(Arrays.copyOf(buffer, length));
+        closed = true;
+    }
+
+    /** @return time of the last write in milliseconds */
+    long getLastWrite() {
+        return lastWrite;
+    }
+
+    /**
+     * Complete the upload and wait for it
+     */
+    V commit() throws IOException {
+        return commit(null);
+    }
+
+    /**
+     * Complete the upload and wait for it. If the transfer is cancelled, the upload is failed and the wait stops
+     * at once, even if the upload is blocked on the network.
+     *
+     * @param transfer transfer to report the progress to and to cancel the upload, may be null
+     */
+    V commit(Transfer transfer) throws IOException {
+        close();
+        if (future == null && !deferred) {
+            if (transfer != null) transfer.check();
+            V result = task.execute(new ByteArrayContent(type, buffer, 0, length));
+            if (transfer != null) transfer.progress(length, length, true);
+            return result;
+        }
+        try {
+            if (transfer != null) {
+                this.transfer = transfer;
+                transfer.onCancel(new Runnable() {
+                    @Override
+                    public void run() {
+                        aborted = true;
+                        fail(new InterruptedIOException("Upload cancelled"));
+                        if (future != null) future.cancel(false);
+                    }
+                });
+            }
+            if (future == null) {
+                if (transfer != null) transfer.check();
+                try {
+                    return task.execute(new SpoolContent());
+                } catch (IOException e) {
+                    return replay(e, transfer);
+                }
+            }
+            synchronized (this) {
+                finished = true;
+                notifyAll();
+            }
+            try {
+                return await();
+            } catch (IOException e) {
+                return replay(e, transfer);
+            }
+        } finally {
+            closeReplay();
+        }
+    }
+
+    /**
+     * Fail the upload, so the drive discards the data sent, and wait for it to stop
+     */
+    void abort() {
+        aborted = true;
+        closed = true;
+        fail(new IOException("Upload discarded"));
+        if (future != null) {
+            try {
+                await();
+            } catch (IOException ignore) {}
+        }
+        closeReplay();
+    }
+
+    private void start() throws IOException {
+        if (spoolStore != null) {
+            try {
+                replay = spoolStore.create("upload");
+            } catch (IOException e) {
+                Log.w(TAG, "The upload can't be replayed: " + e.getMessage());
+            }
+        }
+        FutureTask<V> upload = new FutureTask<>(new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                try {
+                    return task.execute(new InputStreamContent(type, new PipeInputStream()));
+                } catch (IOException e) {
+                    // Release the writer waiting for room in the pipe
+                    fail(e);
+                    throw e;
+                }
+            }
+        });
+        try {
+            executor().execute(upload);
+            future = upload;
+        } catch (RejectedExecutionException e) {
+            if (replay == null) throw new IOException("Too many uploads in progress", e);
+            // All the threads are busy, the data is sent from the spool on commit
+            deferred = true;
+        }
+
+        pass(Arrays.copyOf(buffer, length));
+        buffer = new byte[CHUNK];
+        length = 0;
+    }
+
+    private static synchronized ThreadPoolExecutor executor() {
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(0, MAX_THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "GoogleDrive.Upload");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return sExecutor;
+    }
+
+    /** Pass the chunk to the upload and keep it in the replay spool */
+    private void pass(byte[] chunk) throws IOException {
+        if (replay != null) {
+            try {
+                replay.write(ByteBuffer.wrap(chunk), spooled);
+                spooled += chunk.length;
+            } catch (IOException e) {
+                // Without the upload running the spool holds the only copy of the data
+                if (deferred) throw e;
+                Log.w(TAG, "The upload can't be replayed: " + e.getMessage());
+                closeReplay();
+            }
+        }
+        if (deferred || put(chunk)) return;
+
+        IOException failure;
+        synchronized (this) {
+            failure = this.failure;
+        }
+        if (replay == null || aborted || !isTransient(failure)) throw new IOException("Upload failed", failure);
+        // Keep the rest of the data in the spool, the upload is sent again on commit
+        deferred = true;
+    }
+
+    /** Send the upload again from the replay spool if the failure allows */
+    private V replay(IOException failure, Transfer transfer) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            if (replay == null || aborted || attempt > REPLAY_ATTEMPTS || !isTransient(failure)) throw failure;
+            if (transfer != null) transfer.check();
+            Log.w(TAG, "Upload failed, sending it again from the spool: " + failure.getMessage());
+            try {
+                return task.execute(new SpoolContent());
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+    }
+
+    /** @return true if sending the same data again may succeed */
+    private static boolean isTransient(IOException e) {
+        if (e instanceof ConflictException) return false;
+        if (e instanceof HttpResponseException) {
+            int code = ((HttpResponseException) e).getStatusCode();
+            return code >= 500 || code == 408 || code == 429;
+        }
+        return true;
+    }
+
+    private void closeReplay() {
+        SpoolStore.Spool spool = replay;
+        replay = null;
+        if (spool != null) spool.close();
+    }
+
+    private V await() throws IOException {
+        try {
+            return future.get();
+        } catch (CancellationException e) {
+            throw new InterruptedIOException("Upload cancelled");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Upload interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /** @return false if the upload failed */
+    private synchronized boolean put(byte[] chunk) throws IOException {
+        try {
+            while (failure == null && queued >= capacity) wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Upload interrupted");
+        }
+        if (failure != null) return false;
+        chunks.add(chunk);
+        queued += chunk.length;
+        notifyAll();
+        return true;
+    }
+
+    private synchronized void fail(IOException e) {
+        if (failure == null) failure = e;
+        chunks.clear();
+        queued = 0;
+        notifyAll();
+    }
+
+    /** @return next chunk or null at the end */
+    private synchronized byte[] take() throws IOException {
+        try {
+            while (failure == null && chunks.isEmpty() && !finished) wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Upload interrupted");
+        }
+        if (failure != null) throw failure;
+        byte[] chunk = chunks.poll();
+        if (chunk != null) {
+            queued -= chunk.length;
+            notifyAll();
+        }
+        return chunk;
+    }
+
+    private class PipeInputStream extends InputStream {
+        private byte[] chunk;
+        private int position;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (chunk == null || position == chunk.length) {
+                chunk = take();
+                position = 0;
+                if (chunk == null) return -1;
+            }
+            int count = Math.min(len, chunk.length - position);
+            System.arraycopy(chunk, position, b, off, count);
+            position += count;
+            sent += count;
+            Transfer transfer = StreamingUpload.this.transfer;
+            if (transfer != null) transfer.progress(sent, written, sent == written);
+            return count;
+        }
+    }
+
+    /** Content of the replay spool, it may be read any number of times */
+    private class SpoolContent extends AbstractInputStreamContent {
+        SpoolContent() {
+            super(type);
+        }
+
+        @Override
+        public long getLength() {
+            return spooled;
+        }
+
+        @Override
+        public boolean retrySupported() {
+            return true;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new InputStream() {
+                private long position;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return (read(b, 0, 1) == -1) ? -1 : b[0] & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (aborted) throw new InterruptedIOException("Upload cancelled");
+                    SpoolStore.Spool spool = replay;
+                    if (spool == null) throw new IOException("Upload discarded");
+                    if (len == 0) return 0;
+                    if (position == spooled) return -1;
+                    int count = spool.read(ByteBuffer.wrap(b, off, (int) Math.min(len, spooled - position)), position);
+                    if (count == -1) throw new IOException("Spool truncated at " + position + " of " + spooled);
+                    position += count;
+                    Transfer transfer = StreamingUpload.this.transfer;
+                    if (transfer != null) transfer.progress(position, spooled, position == spooled);
+                    return count;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import com.google.api.client.http.AbstractInputStreamContent;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Upload content sent not faster than the limiters allow
+ */
+class ThrottledContent extends AbstractInputStreamContent {
+    private final AbstractInputStreamContent content;
+    private final BandwidthLimiter[] limiters;
+
+    ThrottledContent(AbstractInputStreamContent content, BandwidthLimiter... limiters) {
+        super(content.getType());
+        this.content = content;
+        this.limiters = limiters;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return new ThrottledInputStream(content.getInputStream(), limiters);
+    }
+
+    @Override
+    public long getLength() throws IOException {
+        return content.getLength();
+    }
+
+    @Override
+    public boolean retrySupported() {
+        return content.retrySupported();
+    }
+
+    @Override
+    public ThrottledContent setType(String type) {
+        return (ThrottledContent) super.setType(type);
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream passing data not faster than the limiters allow
+ */
+class ThrottledInputStream extends FilterInputStream {
+    /** Reads are split, so a large buffer doesn't result in a long pause followed by a burst */
+    private static final int MAX_READ = 16 * 1024;
+
+    private final BandwidthLimiter[] limiters;
+
+    /**
+     * @param limiters limiters to be charged for the data read, null items are ignored
+     */
+    ThrottledInputStream(InputStream in, BandwidthLimiter... limiters) {
+        super(in);
+        this.limiters = limiters;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) acquire(1);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int bytesRead = super.read(b, off, Math.min(len, MAX_READ));
+        if (bytesRead > 0) acquire(bytesRead);
+        return bytesRead;
+    }
+
+    private void acquire(int bytes) throws IOException {
+        for (BandwidthLimiter limiter : limiters) {
+            if (limiter != null) limiter.acquire(bytes);
+        }
+    }
+}
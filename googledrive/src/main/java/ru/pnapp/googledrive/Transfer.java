@@ -0,0 +1,218 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * State of a single transfer run with {@link TransferOptions}: its own cancellation token linked to the one of the
+ * options and to the deadline, progress reporting, and the options of the transfer running in the current thread,
+ * so the HTTP requests it makes get the timeouts.
+ */
+class Transfer {
+    private static final ThreadLocal<Transfer> current = new ThreadLocal<>();
+
+    private static ScheduledExecutorService sDeadlines;
+
+    final TransferOptions options;
+    private final CancellationToken token = new CancellationToken();
+    private final Runnable parentCallback;
+    private final ScheduledFuture<?> deadline;
+    private final Transfer previous;
+    private final long startTime = System.nanoTime();
+    private long lastReport;
+    private boolean attached;
+    /** Aborts the request in flight, see {@link #abortOnCancel(Runnable)} */
+    private Runnable inFlight;
+
+    private Transfer(TransferOptions options) {
+        this.options = options;
+        CancellationToken parent = options.getCancellationToken();
+        if (parent != null) {
+            parentCallback = new Runnable() {
+                @Override
+                public void run() {
+                    token.cancel();
+                }
+            };
+            parent.onCancel(parentCallback);
+        } else {
+            parentCallback = null;
+        }
+        deadline = (options.getDeadline() > 0) ? deadlines().schedule(new Runnable() {
+            @Override
+            public void run() {
+                token.cancel("Deadline exceeded");
+            }
+        }, options.getDeadline(), TimeUnit.MILLISECONDS) : null;
+        previous = current.get();
+        current.set(this);
+        attached = true;
+    }
+
+    /**
+     * Start a transfer in the current thread, it should be finished with {@link #end()}
+     * @param options transfer options or null for none
+     */
+    static Transfer begin(TransferOptions options) {
+        return new Transfer(options == null ? new TransferOptions() : options);
+    }
+
+    /** @return the transfer running in this thread or null */
+    static Transfer current() {
+        return current.get();
+    }
+
+    private static synchronized ScheduledExecutorService deadlines() {
+        if (sDeadlines == null) {
+            sDeadlines = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "GoogleDrive.Deadline");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sDeadlines;
+    }
+
+    boolean isCancelled() {
+        return token.isCancelled();
+    }
+
+    /** @throws InterruptedIOException if the transfer is cancelled or its deadline passed */
+    void check() throws InterruptedIOException {
+        token.throwIfCancelled();
+    }
+
+    /**
+     * Error to throw for a failed transfer: if it was cancelled, the failure is likely caused by the cancel,
+     * so the reason is reported instead
+     */
+    IOException failure(IOException e) {
+        try {
+            token.throwIfCancelled();
+        } catch (InterruptedIOException cancelled) {
+            if (cancelled.getMessage().equals(e.getMessage())) return e;
+            cancelled.initCause(e);
+            return cancelled;
+        }
+        return e;
+    }
+
+    /** Run the action on cancel, e.g. to abort a request or discard data */
+    void onCancel(Runnable action) {
+        token.onCancel(action);
+    }
+
+    /**
+     * Abort the request in flight on cancel, e.g. by disconnecting its response, so a read blocked on the network
+     * stops at once. It replaces the abort of the previous request of the transfer.
+     */
+    void abortOnCancel(Runnable abort) {
+        Runnable previous;
+        synchronized (this) {
+            previous = inFlight;
+            inFlight = abort;
+        }
+        if (previous != null) token.remove(previous);
+        token.onCancel(abort);
+    }
+
+    /** Stop the transfer as the current one of this thread, it goes on in the stream returned to the caller */
+    void detach() {
+        if (!attached) return;
+        attached = false;
+        if (current.get() == this) {
+            if (previous == null) current.remove(); else current.set(previous);
+        }
+    }
+
+    /** Finish the transfer: stop the deadline and the link to the token of the options */
+    void end() {
+        detach();
+        Runnable abort;
+        synchronized (this) {
+            abort = inFlight;
+            inFlight = null;
+        }
+        if (abort != null) token.remove(abort);
+        if (deadline != null) deadline.cancel(false);
+        if (parentCallback != null) options.getCancellationToken().remove(parentCallback);
+    }
+
+    /** Report the progress, throttled to {@link TransferOptions#PROGRESS_INTERVAL_MS} unless final */
+    void progress(long bytes, long total, boolean last) {
+        TransferOptions.ProgressListener listener = options.getProgressListener();
+        if (listener == null) return;
+        long now = System.nanoTime();
+        if (!last && now - lastReport < TransferOptions.PROGRESS_INTERVAL_MS * 1000000L) return;
+        lastReport = now;
+        long elapsed = (now - startTime) / 1000000L;
+        listener.onProgress(bytes, total, elapsed > 0 ? bytes * 1000L / elapsed : 0);
+    }
+
+    /** Input stream of the transfer data: cancellation is checked and progress reported as it is read */
+    InputStream track(InputStream inputStream, final long total) {
+        return new FilterInputStream(inputStream) {
+            private long bytes;
+            private boolean done;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return (read(b, 0, 1) == -1) ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                check();
+                int n = super.read(b, off, len);
+                check();
+                if (n > 0) {
+                    bytes += n;
+                    progress(bytes, total, bytes == total);
+                } else if (n < 0 && !done) {
+                    done = true;
+                    progress(bytes, total, true);
+                }
+                return n;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                check();
+                long skipped = super.skip(n);
+                bytes += skipped;
+                return skipped;
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+        };
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import android.support.annotation.Nullable;
+
+/**
+ * Options of a single transfer, see {@link GoogleDrive#write(String, String, String, java.io.InputStream, TransferOptions)},
+ * {@link GoogleDrive#commit(String, TransferOptions)} and {@link GoogleDrive#openInputStream(String, TransferOptions)}.
+ * Options may be reused, the deadline counts from the start of each transfer.
+ */
+public class TransferOptions {
+    /**
+     * Progress of a single transfer, called in the transfer thread not more often than
+     * {@link #PROGRESS_INTERVAL_MS} and once at the end
+     */
+    public interface ProgressListener {
+        /**
+         * @param bytes bytes transferred so far
+         * @param total total bytes or -1 if unknown
+         * @param bytesPerSecond average throughput since the transfer start
+         */
+        void onProgress(long bytes, long total, long bytesPerSecond);
+    }
+
+    public static final long PROGRESS_INTERVAL_MS = 100;
+
+    private ProgressListener progressListener;
+    private CancellationToken cancellationToken;
+    private int connectTimeoutMs;
+    private int readTimeoutMs;
+    private long deadlineMs;
+
+    public TransferOptions setProgressListener(@Nullable ProgressListener listener) {
+        progressListener = listener;
+        return this;
+    }
+
+    public TransferOptions setCancellationToken(@Nullable CancellationToken token) {
+        cancellationToken = token;
+        return this;
+    }
+
+    /**
+     * Timeouts of each HTTP request of the transfer, 0 keeps the transport defaults.
+     * Not supported by {@link GoogleDriveAndroid}, its transfers run in Google Play services.
+     *
+     * @param connectTimeoutMs time to establish a connection
+     * @param readTimeoutMs time to wait for data on an established connection
+     */
+    public TransferOptions setTimeouts(int connectTimeoutMs, int readTimeoutMs) {
+        this.connectTimeoutMs = Math.max(0, connectTimeoutMs);
+        this.readTimeoutMs = Math.max(0, readTimeoutMs);
+        return this;
+    }
+
+    /**
+     * Cancel the transfer if it is not done in time. For a stream returned by
+     * {@link GoogleDrive#openInputStream(String, TransferOptions)} the time runs until it is closed.
+     * A request blocked on the network is released within the read timeout.
+     *
+     * @param deadlineMs time limit from the transfer start, 0 for none
+     */
+    public TransferOptions setDeadline(long deadlineMs) {
+        this.deadlineMs = Math.max(0, deadlineMs);
+        return this;
+    }
+
+    @Nullable
+    public ProgressListener getProgressListener() { return progressListener; }
+
+    @Nullable
+    public CancellationToken getCancellationToken() { return cancellationToken; }
+
+    public int getConnectTimeout() { return connectTimeoutMs; }
+
+    public int getReadTimeout() { return readTimeoutMs; }
+
+    public long getDeadline() { return deadlineMs; }
+}
@@ -0,0 +1,92 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import android.support.annotation.NonNull;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Description of a single file for {@link GoogleDrive#writeAll(java.util.List, GoogleDrive.TransferListener)}.
+ * The data is supplied by a {@link Source} rather than a stream, so a failed item may be retried from the start.
+ */
+public class UploadSpec {
+    private final String id;
+    private final String title;
+    private final String mimeType;
+    private final long length;
+    private final Source source;
+    private final java.io.File file;
+
+    /**
+     * Supplier of the file data. Each call to {@link #open()} should return a fresh stream positioned at the start
+     */
+    public interface Source {
+        @NonNull
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * @param id file id or null, same as for {@link GoogleDrive#write(String, String, String, InputStream)}
+     * @param title name of file to create
+     * @param mimeType type of file to create
+     * @param length data length or -1 if unknown, it is used for progress reports only
+     * @param source data supplier
+     */
+    public UploadSpec(String id, String title, String mimeType, long length, @NonNull Source source) {
+        this.id = id;
+        this.title = title;
+        this.mimeType = mimeType;
+        this.length = length;
+        this.source = source;
+        this.file = null;
+    }
+
+    /**
+     * Upload a local file
+     */
+    public UploadSpec(String id, String title, String mimeType, @NonNull final java.io.File file) {
+        this.id = id;
+        this.title = title;
+        this.mimeType = mimeType;
+        this.length = file.length();
+        this.source = new Source() {
+            @NonNull @Override
+            public InputStream open() throws IOException {
+                return new FileInputStream(file);
+            }
+        };
+        this.file = file;
+    }
+
+    public String getId() { return id; }
+
+    public String getTitle() { return title; }
+
+    public String getMimeType() { return mimeType; }
+
+    public long getLength() { return length; }
+
+    @NonNull
+    public Source getSource() { return source; }
+
+    /**
+     * @return local file to upload or null if the data comes from a {@link Source}
+     */
+    public java.io.File getFile() { return file; }
+}
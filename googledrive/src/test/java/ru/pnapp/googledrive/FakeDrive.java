@@ -0,0 +1,1388 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
+import com.google.api.services.drive.model.Channel;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import com.google.api.services.drive.model.GeneratedIds;
+import com.google.api.services.drive.model.StartPageToken;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * In-process stand-in for the part of Drive v3 used by {@link GoogleDriveREST}: files get, list, create, update,
+ * delete and generateIds, media download with ranges, multipart, media and resumable uploads, changes, change
+ * notifications and batch requests. Nothing leaves the process but the notifications posted to the channel address,
+ * e.g. of a {@link LocalChangeReceiver}, so retries, chunk sizes and parallelism can be tuned against scripted
+ * faults, latency and bandwidth, see {@link LoadTest}.
+ * <pre>
+ *   FakeDrive server = new FakeDrive();
+ *   server.addFault(FakeDrive.Fault.status("files.download", 503).times(2));
+ *   server.setLatency(50, 20);
+ *   GoogleDriveREST drive = new GoogleDriveREST();
+ *   drive.setTransport(server, null);
+ * </pre>
+ * Requests are counted by operation: files.get, files.download, files.list, files.create, files.update,
+ * files.delete, files.generateIds, upload.multipart, upload.media, upload.resumable, upload.chunk,
+ * changes.getStartPageToken, changes.list, changes.watch, channels.stop and batch. Calls inside a batch are counted
+ * as well, notifications posted are counted as {@link #NOTIFICATIONS}.
+ * <br>
+ * Each file version has an ETag returned with its metadata and content, requests with If-Match of another version
+ * fail with 412 unless {@link #setIgnoreIfMatch(boolean)} is on.
+ * <br>
+ * Permanent delete of a folder removes the descendants, except the ones marked with {@link #setOwnedByOthers(String)}
+ * which only lose the parent.
+ */
+public class FakeDrive extends HttpTransport {
+    private static final String BASE = "https://www.googleapis.com";
+    private static final String FOLDER_MIME = "application/vnd.google-apps.folder";
+    private static final String JSON_TYPE = "application/json; charset=UTF-8";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 1000;
+    /** Shaped streams pass data in pieces of this size, so the limit is smooth */
+    private static final int SHAPING_CHUNK = 16 * 1024;
+
+    /** Counter of the bytes received with requests */
+    public static final String BYTES_IN = "bytes.in";
+    /** Counter of the bytes sent with responses */
+    public static final String BYTES_OUT = "bytes.out";
+    /** Counter of the faults injected */
+    public static final String FAULTS = "faults";
+    /** Counter of the change notifications delivered */
+    public static final String NOTIFICATIONS = "notifications";
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (?:(\\d+)-(\\d+)|\\*)/(\\d+|\\*)");
+    private static final Pattern IN_PARENTS = Pattern.compile("'((?:[^'\\\\]|\\\\.)*)'\\s+in\\s+parents");
+    private static final Pattern COMPARISON =
+            Pattern.compile("(\\w+)\\s*(!=|<=|>=|=|<|>|contains)\\s*('(?:[^'\\\\]|\\\\.)*'|true|false)");
+
+    private final JsonFactory jsonFactory = GsonFactory.getDefaultInstance();
+    private final Random random = new Random();
+
+    private static class Node {
+        final File meta;
+        byte[] data;
+        /** Owned by another user, it can't be deleted and survives the delete of its folder */
+        boolean foreign;
+
+        Node(File meta, byte[] data) {
+            this.meta = meta;
+            this.data = data;
+        }
+    }
+
+    /** Resumable upload in progress */
+    private static class Session {
+        final String fileId;
+        final File meta;
+        final String mime;
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        Session(String fileId, File meta, String mime) {
+            this.fileId = fileId;
+            this.meta = meta;
+            this.mime = mime;
+        }
+    }
+
+    private final Map<String, Node> files = new LinkedHashMap<>();
+    private final List<Change> changes = new ArrayList<>();
+    private final Map<String, Session> sessions = new HashMap<>();
+    /** Notification channels by id */
+    private final Map<String, Channel> channels = new HashMap<>();
+    private final AtomicLong messageNumber = new AtomicLong();
+    private ExecutorService notifier;
+    private long lastId;
+
+    private final List<Fault> faults = new ArrayList<>();
+    private FaultScript faultScript;
+    private volatile long latencyMs;
+    private volatile long jitterMs;
+    private volatile boolean ignoreIfMatch;
+    private final BandwidthLimiter uplink = new BandwidthLimiter(0);
+    private final BandwidthLimiter downlink = new BandwidthLimiter(0);
+    private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    public FakeDrive() {
+        clear();
+    }
+
+    /**
+     * Fault to inject into the matching requests. A fault answers with an error status, drops the connection after
+     * some bytes of the request or the response were transferred, or stalls the response.
+     */
+    public static class Fault {
+        final String operation;
+        final int status;
+        final String reason;
+        final long dropRequestAfter;
+        final long dropResponseAfter;
+        long stallMs;
+        int skip;
+        int remaining = Integer.MAX_VALUE;
+        double probability = 1;
+
+        private Fault(String operation, int status, String reason, long dropRequestAfter, long dropResponseAfter) {
+            this.operation = operation;
+            this.status = status;
+            this.reason = reason;
+            this.dropRequestAfter = dropRequestAfter;
+            this.dropResponseAfter = dropResponseAfter;
+        }
+
+        /**
+         * Answer with an error status, e.g. 429, 500 or 503
+         * @param operation operation name or its prefix like "upload", null for any request
+         */
+        public static Fault status(@Nullable String operation, int status) {
+            String reason = status == 429 ? "rateLimitExceeded" : status >= 500 ? "backendError" : "failed";
+            return new Fault(operation, status, reason, -1, -1);
+        }
+
+        /** Answer with 403 userRateLimitExceeded, the way Drive throttles a user */
+        public static Fault rateLimit(@Nullable String operation) {
+            return new Fault(operation, 403, "userRateLimitExceeded", -1, -1);
+        }
+
+        /** Drop the connection after the given number of request bytes was sent */
+        public static Fault dropRequest(@Nullable String operation, long afterBytes) {
+            return new Fault(operation, 0, null, Math.max(0, afterBytes), -1);
+        }
+
+        /** Drop the connection after the given number of response bytes was received */
+        public static Fault dropResponse(@Nullable String operation, long afterBytes) {
+            return new Fault(operation, 0, null, -1, Math.max(0, afterBytes));
+        }
+
+        /** Hold the response for the given time, a read timeout shorter than that fails the request */
+        public static Fault stall(@Nullable String operation, long millis) {
+            Fault fault = new Fault(operation, 0, null, -1, -1);
+            fault.stallMs = Math.max(0, millis);
+            return fault;
+        }
+
+        /** Let the first requests pass, the fault applies to the next ones */
+        public Fault after(int requests) {
+            skip = requests;
+            return this;
+        }
+
+        /** Apply the fault at most this number of times, it is removed then */
+        public Fault times(int count) {
+            remaining = count;
+            return this;
+        }
+
+        /** Apply the fault to the matching requests with this probability */
+        public Fault probability(double probability) {
+            this.probability = probability;
+            return this;
+        }
+
+        boolean matches(String op) {
+            return operation == null || op.equals(operation) || op.startsWith(operation + ".");
+        }
+    }
+
+    /** Decides on a fault per request, for scenarios the {@link Fault} rules can't express */
+    public interface FaultScript {
+        /**
+         * @param operation operation name
+         * @param number number of the request of this operation, starting from 1
+         * @return fault to inject or null
+         */
+        @Nullable
+        Fault onRequest(@NonNull String operation, long number);
+    }
+
+    /** Remove all files, changes, channels and upload sessions, only "root" and "appDataFolder" are left */
+    synchronized public void clear() {
+        files.clear();
+        changes.clear();
+        sessions.clear();
+        channels.clear();
+        DateTime now = new DateTime(System.currentTimeMillis());
+        for (String id : new String[]{"root", "appDataFolder"}) {
+            files.put(id, new Node(new File().setId(id).setName(id).setMimeType(FOLDER_MIME)
+                    .setCreatedTime(now).setModifiedTime(now).setTrashed(false), null));
+        }
+    }
+
+    synchronized public void addFault(@NonNull Fault fault) {
+        faults.add(fault);
+    }
+
+    synchronized public void clearFaults() {
+        faults.clear();
+        faultScript = null;
+    }
+
+    synchronized public void setFaultScript(@Nullable FaultScript script) {
+        faultScript = script;
+    }
+
+    /**
+     * Make the file owned by another user, its delete fails with 403
+     */
+    synchronized public void setOwnedByOthers(@NonNull String id) {
+        Node node = files.get(id);
+        if (node != null) node.foreign = true;
+    }
+
+    /**
+     * Ignore If-Match headers, as an endpoint without ETag preconditions would
+     */
+    public void setIgnoreIfMatch(boolean ignore) {
+        ignoreIfMatch = ignore;
+    }
+
+    /**
+     * Delay every response
+     * @param latencyMs base delay
+     * @param jitterMs random addition up to this value
+     */
+    public void setLatency(long latencyMs, long jitterMs) {
+        this.latencyMs = Math.max(0, latencyMs);
+        this.jitterMs = Math.max(0, jitterMs);
+    }
+
+    /**
+     * Limit the rate of data shared by all the requests, 0 for unlimited
+     * @param uploadBytesPerSecond request bodies
+     * @param downloadBytesPerSecond response bodies
+     */
+    public void setBandwidth(long uploadBytesPerSecond, long downloadBytesPerSecond) {
+        uplink.setRate(uploadBytesPerSecond);
+        downlink.setRate(downloadBytesPerSecond);
+    }
+
+    /** @return snapshot of the request counters by operation, plus {@link #BYTES_IN}, {@link #BYTES_OUT} and {@link #FAULTS} */
+    @NonNull
+    public Map<String, Long> getCounters() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    public long getCounter(@NonNull String name) {
+        AtomicLong counter = counters.get(name);
+        return counter == null ? 0 : counter.get();
+    }
+
+    public void resetCounters() {
+        counters.clear();
+    }
+
+    /** @return number of files and folders stored, trashed included */
+    synchronized public int getFileCount() {
+        return files.size() - 2;
+    }
+
+    /** @return copy of the file content or null if there is no such file */
+    @Nullable
+    synchronized public byte[] getContent(@NonNull String id) {
+        Node node = files.get(id);
+        return node == null || node.data == null ? null : node.data.clone();
+    }
+
+    private long count(String name, long delta) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) counter = created;
+        }
+        return counter.addAndGet(delta);
+    }
+
+    @Override
+    public boolean supportsMethod(String method) {
+        return true;
+    }
+
+    @Override
+    protected LowLevelHttpRequest buildRequest(String method, String url) {
+        return new Request(method, url);
+    }
+
+    private class Request extends LowLevelHttpRequest {
+        final String method;
+        final String url;
+        final Map<String, String> headers = new HashMap<>();
+        int readTimeout;
+
+        Request(String method, String url) {
+            this.method = method;
+            this.url = url;
+        }
+
+        @Override
+        public void setTimeout(int connectTimeout, int readTimeout) {
+            this.readTimeout = readTimeout;
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            headers.put(name.toLowerCase(Locale.US), value);
+        }
+
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+            String method = this.method;
+            String override = headers.get("x-http-method-override");
+            if (override != null) method = override;
+
+            GenericUrl genericUrl = new GenericUrl(url);
+            String op = operation(method, genericUrl);
+            Fault fault = nextFault(op);
+
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            if (getStreamingContent() != null) {
+                OutputStream out = new ShapedOutputStream(buffer, fault == null ? -1 : fault.dropRequestAfter);
+                getStreamingContent().writeTo(out);
+                out.flush();
+            }
+            byte[] body = buffer.toByteArray();
+            if ("gzip".equalsIgnoreCase(getContentEncoding())) body = gunzip(body);
+
+            delay(fault == null ? 0 : fault.stallMs, readTimeout);
+
+            Response response;
+            if (fault != null && fault.status > 0) {
+                response = error(fault.status, fault.reason, "Injected fault");
+            } else if ("batch".equals(op)) {
+                response = batch(getContentType(), body);
+            } else {
+                response = handle(op, method, genericUrl, headers, getContentType(), body);
+            }
+            if (fault != null) response.dropAfter = fault.dropResponseAfter;
+            return response;
+        }
+    }
+
+    /** Wait for the response as a client with the read timeout would */
+    private void delay(long stall, int readTimeout) throws InterruptedIOException {
+        long delay = latencyMs + stall;
+        if (jitterMs > 0) {
+            synchronized (random) {
+                delay += (long) (random.nextDouble() * jitterMs);
+            }
+        }
+        boolean timeout = readTimeout > 0 && delay > readTimeout;
+        if (timeout) delay = readTimeout;
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        if (timeout) throw new SocketTimeoutException("Read timed out");
+    }
+
+    private Fault nextFault(String op) {
+        long number = count(op, 1);
+        Fault fault = null;
+        synchronized (this) {
+            if (faultScript != null) fault = faultScript.onRequest(op, number);
+            for (Iterator<Fault> iterator = faults.iterator(); fault == null && iterator.hasNext(); ) {
+                Fault rule = iterator.next();
+                if (!rule.matches(op)) continue;
+                if (rule.skip > 0) {
+                    rule.skip--;
+                    continue;
+                }
+                if (rule.probability < 1) {
+                    synchronized (random) {
+                        if (random.nextDouble() >= rule.probability) continue;
+                    }
+                }
+                fault = rule;
+                if (--rule.remaining <= 0) iterator.remove();
+            }
+        }
+        if (fault != null) count(FAULTS, 1);
+        return fault;
+    }
+
+    private static String operation(String method, GenericUrl url) {
+        String path = url.getRawPath();
+        if (path.startsWith("/batch/")) return "batch";
+        if (path.startsWith("/upload/")) {
+            if (url.getFirst("upload_id") != null) return "upload.chunk";
+            Object type = url.getFirst("uploadType");
+            return "upload." + (type == null ? "media" : type);
+        }
+        if (path.startsWith("/drive/v3/changes")) {
+            if (path.endsWith("/watch")) return "changes.watch";
+            return path.endsWith("/startPageToken") ? "changes.getStartPageToken" : "changes.list";
+        }
+        if (path.equals("/drive/v3/channels/stop")) return "channels.stop";
+        if (path.endsWith("/files/generateIds")) return "files.generateIds";
+        if (path.endsWith("/files")) return "POST".equals(method) ? "files.create" : "files.list";
+        switch (method) {
+            case "GET":
+                return "media".equals(url.getFirst("alt")) ? "files.download" : "files.get";
+            case "DELETE":
+                return "files.delete";
+            default:
+                return "files.update";
+        }
+    }
+
+    private Response handle(String op, String method, GenericUrl url, Map<String, String> headers,
+                            String contentType, byte[] body) throws IOException {
+        String path = url.getRawPath();
+        String id = path.substring(path.lastIndexOf('/') + 1);
+        String ifMatch = headers.get("if-match");
+        if (ifMatch != null && !ignoreIfMatch && !"upload.chunk".equals(op) && !"*".equals(ifMatch)) {
+            synchronized (this) {
+                Node node = files.get(id);
+                if (node != null && !ifMatch.equals(etag(node.meta))) {
+                    return error(412, "conditionNotMet", "Precondition Failed");
+                }
+            }
+        }
+        switch (op) {
+            case "files.get":
+                return get(id);
+            case "files.download":
+                return download(id, headers.get("range"));
+            case "files.list":
+                return list(url);
+            case "files.create":
+                return fileJson(create(parse(body), null, null));
+            case "files.update":
+                return update(id, body.length == 0 ? null : parse(body), url, null, null);
+            case "files.delete":
+                return delete(id);
+            case "files.generateIds":
+                return generateIds(url);
+            case "upload.multipart":
+                return upload(method, path, url, contentType, body);
+            case "upload.media":
+                return path.endsWith("/files")
+                        ? fileJson(create(new File(), contentType, body))
+                        : update(id, null, url, contentType, body);
+            case "upload.resumable":
+                return startSession(path, url, headers, body);
+            case "upload.chunk":
+                return chunk(url, headers.get("content-range"), body);
+            case "changes.getStartPageToken":
+                synchronized (this) {
+                    return json(200, new StartPageToken().setStartPageToken(String.valueOf(changes.size())));
+                }
+            case "changes.list":
+                return changes(url);
+            case "changes.watch":
+                return watch(body);
+            case "channels.stop":
+                synchronized (this) {
+                    channels.remove(parseChannel(body).getId());
+                }
+                return new Response(204, null, new byte[0]);
+            default:
+                return error(404, "notFound", "Not found: " + path);
+        }
+    }
+
+    synchronized private Response get(String id) throws IOException {
+        Node node = files.get(id);
+        if (node == null) return notFound(id);
+        return fileJson(node.meta);
+    }
+
+    synchronized private Response download(String id, String range) throws IOException {
+        Node node = files.get(id);
+        if (node == null) return notFound(id);
+        byte[] data = node.data == null ? new byte[0] : node.data;
+        if (range == null) {
+            Response response = new Response(200, node.meta.getMimeType(), data);
+            response.addHeader("ETag", etag(node.meta));
+            return response;
+        }
+
+        Matcher matcher = RANGE.matcher(range);
+        if (!matcher.matches()) return error(400, "badRequest", "Invalid range " + range);
+        long start = Long.parseLong(matcher.group(1));
+        long end = matcher.group(2).isEmpty() ? data.length - 1 : Math.min(data.length - 1, Long.parseLong(matcher.group(2)));
+        if (start >= data.length) return error(416, "requestedRangeNotSatisfiable", "Range " + range);
+        Response response = new Response(206, node.meta.getMimeType(), Arrays.copyOfRange(data, (int) start, (int) end + 1));
+        response.addHeader("Content-Range", "bytes " + start + "-" + end + "/" + data.length);
+        response.addHeader("ETag", etag(node.meta));
+        return response;
+    }
+
+    synchronized private Response list(GenericUrl url) throws IOException {
+        Object q = url.getFirst("q");
+        List<Predicate> query;
+        try {
+            query = q == null ? Collections.<Predicate>emptyList() : parseQuery((String) q);
+        } catch (IllegalArgumentException e) {
+            return error(400, "invalid", "Invalid query: " + e.getMessage());
+        }
+
+        List<File> result = new ArrayList<>();
+        for (Node node : files.values()) {
+            if ("root".equals(node.meta.getId()) || "appDataFolder".equals(node.meta.getId())) continue;
+            boolean matches = true;
+            for (int i = 0; matches && i < query.size(); i++) matches = query.get(i).test(node.meta);
+            if (matches) result.add(node.meta);
+        }
+        Object orderBy = url.getFirst("orderBy");
+        if (orderBy != null) sort(result, (String) orderBy);
+
+        int offset = url.getFirst("pageToken") == null ? 0 : Integer.parseInt((String) url.getFirst("pageToken"));
+        int pageSize = url.getFirst("pageSize") == null ? DEFAULT_PAGE_SIZE
+                : Math.min(MAX_PAGE_SIZE, Integer.parseInt(url.getFirst("pageSize").toString()));
+        int end = Math.min(result.size(), offset + pageSize);
+        FileList list = new FileList().setFiles(new ArrayList<>(result.subList(Math.min(offset, end), end)));
+        if (end < result.size()) list.setNextPageToken(String.valueOf(end));
+        return json(200, list);
+    }
+
+    synchronized private Response generateIds(GenericUrl url) throws IOException {
+        int count = url.getFirst("count") == null ? 10 : Integer.parseInt(url.getFirst("count").toString());
+        List<String> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) ids.add(newId());
+        return json(200, new GeneratedIds().setIds(ids).setSpace((String) url.getFirst("space")));
+    }
+
+    private String newId() {
+        return "fake" + Long.toString(++lastId, 36) + Long.toString(System.nanoTime() & 0xffffff, 36);
+    }
+
+    synchronized private File create(File meta, String mime, byte[] data) throws IOException {
+        String id = meta.getId();
+        if (id == null) {
+            id = newId();
+        } else if (files.containsKey(id)) {
+            throw new DuplicateException(id);
+        }
+        DateTime now = new DateTime(System.currentTimeMillis());
+        File file = meta.clone().setId(id);
+        if (file.getName() == null) file.setName("Untitled");
+        if (file.getMimeType() == null) file.setMimeType(mime != null ? mime : "application/octet-stream");
+        if (file.getParents() == null || file.getParents().isEmpty()) file.setParents(Collections.singletonList("root"));
+        if (file.getCreatedTime() == null) file.setCreatedTime(now);
+        if (file.getModifiedTime() == null) file.setModifiedTime(now);
+        if (file.getTrashed() == null) file.setTrashed(false);
+        Node node = new Node(file, null);
+        setData(node, FOLDER_MIME.equals(file.getMimeType()) ? null : data != null ? data : new byte[0]);
+        files.put(id, node);
+        changed(id, file);
+        return file;
+    }
+
+    private static class DuplicateException extends IOException {
+        DuplicateException(String id) {
+            super("A file already exists with the provided ID: " + id);
+        }
+    }
+
+    synchronized private Response update(String id, File patch, GenericUrl url, String mime, byte[] data)
+            throws IOException {
+        Node node = files.get(id);
+        if (node == null) return notFound(id);
+        File file = node.meta;
+        if (patch != null) {
+            for (Map.Entry<String, Object> entry : patch.entrySet()) {
+                if (!"id".equals(entry.getKey()) && !"parents".equals(entry.getKey())) {
+                    file.set(entry.getKey(), entry.getValue());
+                }
+            }
+            if (Boolean.TRUE.equals(patch.getTrashed())) trashChildren(id);
+        }
+        if (url != null) {
+            List<String> parents = new ArrayList<>(file.getParents() == null ? Collections.<String>emptyList() : file.getParents());
+            Object remove = url.getFirst("removeParents");
+            if (remove != null) parents.removeAll(Arrays.asList(remove.toString().split(",")));
+            Object add = url.getFirst("addParents");
+            if (add != null) {
+                for (String parent : add.toString().split(",")) {
+                    if (!files.containsKey(parent)) return notFound(parent);
+                    if (!parents.contains(parent)) parents.add(parent);
+                }
+            }
+            file.setParents(parents);
+        }
+        if (data != null) {
+            if (mime != null && !FOLDER_MIME.equals(file.getMimeType())) file.setMimeType(mime);
+            setData(node, data);
+        }
+        if (patch == null || patch.getModifiedTime() == null) file.setModifiedTime(new DateTime(System.currentTimeMillis()));
+        changed(id, file);
+        return fileJson(file);
+    }
+
+    private void trashChildren(String folderId) {
+        for (Node node : files.values()) {
+            List<String> parents = node.meta.getParents();
+            if (parents != null && parents.contains(folderId) && !Boolean.TRUE.equals(node.meta.getTrashed())) {
+                node.meta.setTrashed(true);
+                changed(node.meta.getId(), node.meta);
+                trashChildren(node.meta.getId());
+            }
+        }
+    }
+
+    synchronized private Response delete(String id) throws IOException {
+        if (!files.containsKey(id) || "root".equals(id) || "appDataFolder".equals(id)) return notFound(id);
+        if (files.get(id).foreign) {
+            return error(403, "insufficientFilePermissions", "The user does not have sufficient permissions for this file.");
+        }
+        remove(id);
+        return new Response(204, null, new byte[0]);
+    }
+
+    private void remove(String id) {
+        files.remove(id);
+        addChange(new Change().setKind("drive#change").setType("file").setFileId(id).setRemoved(true)
+                .setTime(new DateTime(System.currentTimeMillis())));
+        List<String> children = new ArrayList<>();
+        for (Node node : files.values()) {
+            if (node.meta.getParents() == null || !node.meta.getParents().contains(id)) continue;
+            if (node.foreign) {
+                List<String> parents = new ArrayList<>(node.meta.getParents());
+                parents.remove(id);
+                node.meta.setParents(parents);
+            } else {
+                children.add(node.meta.getId());
+            }
+        }
+        for (String child : children) remove(child);
+    }
+
+    private void setData(Node node, byte[] data) {
+        node.data = data;
+        if (data == null) return;
+        node.meta.setSize((long) data.length);
+        node.meta.setMd5Checksum(md5(data));
+    }
+
+    private void changed(String id, File file) {
+        file.setVersion(file.getVersion() == null ? 1 : file.getVersion() + 1);
+        addChange(new Change().setKind("drive#change").setType("file").setFileId(id).setRemoved(false)
+                .setFile(file.clone()).setTime(file.getModifiedTime()));
+    }
+
+    private void addChange(Change change) {
+        changes.add(change);
+        long now = System.currentTimeMillis();
+        Iterator<Channel> iterator = channels.values().iterator();
+        while (iterator.hasNext()) {
+            Channel channel = iterator.next();
+            if (channel.getExpiration() < now) {
+                iterator.remove();
+            } else {
+                post(channel, "change");
+            }
+        }
+    }
+
+    synchronized private Response watch(byte[] body) throws IOException {
+        Channel channel = parseChannel(body);
+        if (channel.getId() == null || channel.getAddress() == null) {
+            return error(400, "required", "Channel id and address are required");
+        }
+        if (channels.containsKey(channel.getId())) return error(400, "channelIdNotUnique", "Channel id not unique");
+        long expiration = (channel.getExpiration() != null) ? channel.getExpiration() : System.currentTimeMillis() + 3600 * 1000L;
+        Channel watched = new Channel().setKind("api#channel").setId(channel.getId()).setResourceId(newId())
+                .setResourceUri(BASE + "/drive/v3/changes").setToken(channel.getToken())
+                .setAddress(channel.getAddress()).setExpiration(expiration);
+        channels.put(watched.getId(), watched);
+        post(watched, "sync");
+        return json(200, watched);
+    }
+
+    /** Post a notification to the channel address in background, the way Drive does */
+    private void post(final Channel channel, final String state) {
+        final long number = messageNumber.incrementAndGet();
+        if (notifier == null) {
+            notifier = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    Thread thread = new Thread(r, "FakeDrive.notify");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        notifier.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    HttpURLConnection connection = (HttpURLConnection) new URL(channel.getAddress()).openConnection();
+                    connection.setRequestMethod("POST");
+                    connection.setDoOutput(true);
+                    connection.setFixedLengthStreamingMode(0);
+                    connection.setRequestProperty("X-Goog-Channel-ID", channel.getId());
+                    if (channel.getToken() != null) connection.setRequestProperty("X-Goog-Channel-Token", channel.getToken());
+                    connection.setRequestProperty("X-Goog-Channel-Expiration", new Date(channel.getExpiration()).toString());
+                    connection.setRequestProperty("X-Goog-Resource-ID", channel.getResourceId());
+                    connection.setRequestProperty("X-Goog-Resource-URI", channel.getResourceUri());
+                    connection.setRequestProperty("X-Goog-Resource-State", state);
+                    connection.setRequestProperty("X-Goog-Message-Number", String.valueOf(number));
+                    connection.getOutputStream().close();
+                    connection.getResponseCode();
+                    connection.disconnect();
+                    count(NOTIFICATIONS, 1);
+                } catch (IOException e) {
+                    // Drive drops the notification too if the address doesn't answer
+                }
+            }
+        });
+    }
+
+    private Channel parseChannel(byte[] json) throws IOException {
+        return jsonFactory.fromInputStream(new ByteArrayInputStream(json), UTF8, Channel.class);
+    }
+
+    synchronized private Response changes(GenericUrl url) throws IOException {
+        Object token = url.getFirst("pageToken");
+        if (token == null) return error(400, "required", "Required parameter: pageToken");
+        int offset = Integer.parseInt(token.toString());
+        int pageSize = url.getFirst("pageSize") == null ? DEFAULT_PAGE_SIZE
+                : Math.min(MAX_PAGE_SIZE, Integer.parseInt(url.getFirst("pageSize").toString()));
+        int end = Math.min(changes.size(), offset + pageSize);
+        ChangeList list = new ChangeList().setKind("drive#changeList")
+                .setChanges(new ArrayList<>(changes.subList(Math.min(offset, end), end)));
+        if (end < changes.size()) {
+            list.setNextPageToken(String.valueOf(end));
+        } else {
+            list.setNewStartPageToken(String.valueOf(end));
+        }
+        return json(200, list);
+    }
+
+    // Uploads
+
+    private Response upload(String method, String path, GenericUrl url, String contentType, byte[] body)
+            throws IOException {
+        List<Part> parts = parseMultipart(contentType, body);
+        if (parts.size() != 2) return error(400, "badContent", "Multipart upload must have 2 parts");
+        File meta = parse(parts.get(0).body);
+        String mime = parts.get(1).headers.get("content-type");
+        if ("POST".equals(method)) {
+            try {
+                return fileJson(create(meta, mime, parts.get(1).body));
+            } catch (DuplicateException e) {
+                return error(409, "duplicate", e.getMessage());
+            }
+        }
+        return update(path.substring(path.lastIndexOf('/') + 1), meta, url, mime, parts.get(1).body);
+    }
+
+    synchronized private Response startSession(String path, GenericUrl url, Map<String, String> headers, byte[] body)
+            throws IOException {
+        String fileId = path.endsWith("/files") ? null : path.substring(path.lastIndexOf('/') + 1);
+        if (fileId != null && !files.containsKey(fileId)) return notFound(fileId);
+        File meta = body.length == 0 ? null : parse(body);
+        if (fileId == null && meta != null && meta.getId() != null && files.containsKey(meta.getId())) {
+            return error(409, "duplicate", "A file already exists with the provided ID: " + meta.getId());
+        }
+        String uploadId = newId();
+        sessions.put(uploadId, new Session(fileId, meta, headers.get("x-upload-content-type")));
+
+        GenericUrl location = new GenericUrl(BASE + path);
+        location.set("uploadType", "resumable");
+        location.set("upload_id", uploadId);
+        if (url.getFirst("fields") != null) location.set("fields", url.getFirst("fields"));
+        Response response = new Response(200, null, new byte[0]);
+        response.addHeader("Location", location.build());
+        return response;
+    }
+
+    private Response chunk(GenericUrl url, String contentRange, byte[] body) throws IOException {
+        String uploadId = (String) url.getFirst("upload_id");
+        Session session;
+        synchronized (this) {
+            session = sessions.get(uploadId);
+        }
+        if (session == null) return error(404, "notFound", "Upload session not found: " + uploadId);
+
+        long total = -1;
+        synchronized (session) {
+            if (contentRange != null) {
+                Matcher matcher = CONTENT_RANGE.matcher(contentRange);
+                if (!matcher.matches()) return error(400, "badRequest", "Invalid Content-Range " + contentRange);
+                if (!"*".equals(matcher.group(3))) total = Long.parseLong(matcher.group(3));
+                if (matcher.group(1) != null) {
+                    long start = Long.parseLong(matcher.group(1));
+                    long received = session.data.size();
+                    if (start > received) return error(400, "badRequest", "Chunk starts at " + start + ", have " + received);
+                    if (start < received) {
+                        // The client resends data it is not sure about
+                        byte[] kept = Arrays.copyOf(session.data.toByteArray(), (int) start);
+                        session.data.reset();
+                        session.data.write(kept);
+                    }
+                    session.data.write(body);
+                }
+            } else {
+                session.data.write(body);
+                total = session.data.size();
+            }
+
+            if (total < 0 || session.data.size() < total) {
+                Response response = new Response(308, null, new byte[0]);
+                if (session.data.size() > 0) response.addHeader("Range", "bytes=0-" + (session.data.size() - 1));
+                return response;
+            }
+        }
+
+        synchronized (this) {
+            sessions.remove(uploadId);
+            byte[] data = session.data.toByteArray();
+            if (session.fileId != null) return update(session.fileId, session.meta, null, session.mime, data);
+            try {
+                return fileJson(create(session.meta == null ? new File() : session.meta, session.mime, data));
+            } catch (DuplicateException e) {
+                return error(409, "duplicate", e.getMessage());
+            }
+        }
+    }
+
+    // Batch
+
+    private Response batch(String contentType, byte[] body) throws IOException {
+        List<Part> parts = parseMultipart(contentType, body);
+        String boundary = "batch_" + Long.toHexString(System.nanoTime());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int contentId = 0;
+        for (Part part : parts) {
+            Response response = batchPart(part.body);
+            write(out, "--" + boundary + "\r\nContent-Type: application/http\r\nContent-ID: <response-" + (++contentId) + ">\r\n\r\n");
+            write(out, "HTTP/1.1 " + response.status + " " + reason(response.status) + "\r\n");
+            if (response.contentType != null) write(out, "Content-Type: " + response.contentType + "\r\n");
+            for (String[] header : response.headers) write(out, header[0] + ": " + header[1] + "\r\n");
+            write(out, "Content-Length: " + response.body.length + "\r\n\r\n");
+            out.write(response.body);
+            write(out, "\r\n");
+        }
+        write(out, "--" + boundary + "--\r\n");
+        return new Response(200, "multipart/mixed; boundary=" + boundary, out.toByteArray());
+    }
+
+    /** Run a call from a batch: the request line, headers and body of the call, as sent by BatchRequest */
+    private Response batchPart(byte[] http) throws IOException {
+        int headerEnd = indexOf(http, "\r\n\r\n".getBytes(UTF8), 0);
+        String head = new String(http, 0, headerEnd < 0 ? http.length : headerEnd, UTF8);
+        byte[] body = headerEnd < 0 ? new byte[0] : Arrays.copyOfRange(http, headerEnd + 4, http.length);
+        String[] lines = head.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length < 2) return error(400, "badRequest", "Invalid request line " + lines[0]);
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.US), lines[i].substring(colon + 1).trim());
+        }
+        String length = headers.get("content-length");
+        if (length != null && Integer.parseInt(length) < body.length) body = Arrays.copyOf(body, Integer.parseInt(length));
+
+        String url = requestLine[1].startsWith("/") ? BASE + requestLine[1] : requestLine[1];
+        GenericUrl genericUrl = new GenericUrl(url);
+        String op = operation(requestLine[0], genericUrl);
+        Fault fault = nextFault(op);
+        if (fault != null && fault.status > 0) return error(fault.status, fault.reason, "Injected fault");
+        // A dropped connection fails the whole batch in reality, here it fails the call only
+        if (fault != null && (fault.dropRequestAfter >= 0 || fault.dropResponseAfter >= 0)) {
+            return error(503, "backendError", "Injected fault");
+        }
+        return handle(op, requestLine[0], genericUrl, headers, headers.get("content-type"), body);
+    }
+
+    // Parsing helpers
+
+    private static class Part {
+        final Map<String, String> headers = new HashMap<>();
+        byte[] body;
+    }
+
+    private static List<Part> parseMultipart(String contentType, byte[] body) throws IOException {
+        String boundary = null;
+        if (contentType != null) {
+            for (String param : contentType.split(";")) {
+                param = param.trim();
+                if (param.startsWith("boundary=")) boundary = param.substring(9).replace("\"", "");
+            }
+        }
+        if (boundary == null) throw new IOException("No multipart boundary in " + contentType);
+
+        byte[] delimiter = ("--" + boundary).getBytes(UTF8);
+        byte[] separator = "\r\n\r\n".getBytes(UTF8);
+        List<Part> parts = new ArrayList<>();
+        int position = indexOf(body, delimiter, 0);
+        while (position >= 0) {
+            int start = position + delimiter.length;
+            if (start + 1 < body.length && body[start] == '-' && body[start + 1] == '-') break;
+            int next = indexOf(body, delimiter, start);
+            if (next < 0) break;
+            int headerEnd = indexOf(body, separator, start);
+            if (headerEnd < 0 || headerEnd > next) throw new IOException("Malformed multipart body");
+
+            Part part = new Part();
+            for (String line : new String(body, start, headerEnd - start, UTF8).split("\r\n")) {
+                int colon = line.indexOf(':');
+                if (colon > 0) part.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+            }
+            int end = next;
+            if (end >= 2 && body[end - 2] == '\r' && body[end - 1] == '\n') end -= 2;
+            part.body = Arrays.copyOfRange(body, headerEnd + separator.length, Math.max(end, headerEnd + separator.length));
+            parts.add(part);
+            position = next;
+        }
+        return parts;
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 2);
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private File parse(byte[] json) throws IOException {
+        if (json.length == 0) return new File();
+        return jsonFactory.fromInputStream(new ByteArrayInputStream(json), UTF8, File.class);
+    }
+
+    private static String md5(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(data);
+            StringBuilder hex = new StringBuilder(32);
+            for (byte b : digest) hex.append(String.format("%02x", b & 0xff));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void write(OutputStream out, String text) throws IOException {
+        out.write(text.getBytes(UTF8));
+    }
+
+    // Query
+
+    private interface Predicate {
+        boolean test(File file);
+    }
+
+    /** Supports the terms joined with "and": 'id' in parents, and comparisons of name, mimeType, trashed and times */
+    private static List<Predicate> parseQuery(String q) {
+        List<Predicate> predicates = new ArrayList<>();
+        for (String term : splitAnd(q)) {
+            term = term.trim();
+            Matcher matcher = IN_PARENTS.matcher(term);
+            if (matcher.matches()) {
+                final String parent = unquote("'" + matcher.group(1) + "'");
+                predicates.add(new Predicate() {
+                    @Override
+                    public boolean test(File file) {
+                        return file.getParents() != null && file.getParents().contains(parent);
+                    }
+                });
+                continue;
+            }
+            matcher = COMPARISON.matcher(term);
+            if (!matcher.matches()) throw new IllegalArgumentException(term);
+            predicates.add(comparison(matcher.group(1), matcher.group(2), matcher.group(3)));
+        }
+        return predicates;
+    }
+
+    private static Predicate comparison(final String field, final String operator, String literal) {
+        final Object value;
+        switch (field) {
+            case "name":
+            case "mimeType":
+                value = unquote(literal);
+                break;
+            case "trashed":
+                value = Boolean.valueOf(literal);
+                break;
+            case "modifiedTime":
+            case "createdTime":
+                value = DateTime.parseRfc3339(unquote(literal)).getValue();
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported field " + field);
+        }
+        return new Predicate() {
+            @Override
+            public boolean test(File file) {
+                Object actual = field(file, field);
+                if ("contains".equals(operator)) {
+                    return actual instanceof String && ((String) actual).contains((String) value);
+                }
+                int compare = compare(actual, value);
+                switch (operator) {
+                    case "=": return compare == 0;
+                    case "!=": return compare != 0;
+                    case "<": return compare < 0;
+                    case "<=": return compare <= 0;
+                    case ">": return compare > 0;
+                    default: return compare >= 0;
+                }
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compare(Object a, Object b) {
+        if (a == null) return b == null ? 0 : -1;
+        if (b == null) return 1;
+        return ((Comparable<Object>) a).compareTo(b);
+    }
+
+    private static Object field(File file, String field) {
+        switch (field) {
+            case "name":
+                return file.getName();
+            case "mimeType":
+                return file.getMimeType();
+            case "trashed":
+                return Boolean.TRUE.equals(file.getTrashed());
+            case "modifiedTime":
+                return file.getModifiedTime() == null ? null : file.getModifiedTime().getValue();
+            case "createdTime":
+                return file.getCreatedTime() == null ? null : file.getCreatedTime().getValue();
+            default:
+                return null;
+        }
+    }
+
+    /** Split the query on "and" outside of the quoted literals */
+    private static List<String> splitAnd(String q) {
+        List<String> terms = new ArrayList<>();
+        StringBuilder term = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < q.length(); i++) {
+            char c = q.charAt(i);
+            if (quoted && c == '\\' && i + 1 < q.length()) {
+                term.append(c).append(q.charAt(++i));
+                continue;
+            }
+            if (c == '\'') quoted = !quoted;
+            if (!quoted && q.startsWith(" and ", i)) {
+                terms.add(term.toString());
+                term.setLength(0);
+                i += 4;
+                continue;
+            }
+            term.append(c);
+        }
+        if (quoted) throw new IllegalArgumentException("Unterminated string");
+        terms.add(term.toString());
+        return terms;
+    }
+
+    private static String unquote(String literal) {
+        StringBuilder result = new StringBuilder(literal.length());
+        for (int i = 1; i < literal.length() - 1; i++) {
+            char c = literal.charAt(i);
+            if (c == '\\' && i + 1 < literal.length() - 1) c = literal.charAt(++i);
+            result.append(c);
+        }
+        return result.toString();
+    }
+
+    private static void sort(List<File> list, String orderBy) {
+        String[] keys = orderBy.split(",");
+        final String[] fields = new String[keys.length];
+        final boolean[] descending = new boolean[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            String[] words = keys[i].trim().split("\\s+");
+            fields[i] = words[0];
+            descending[i] = words.length > 1 && "desc".equalsIgnoreCase(words[1]);
+        }
+        Collections.sort(list, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                for (int i = 0; i < fields.length; i++) {
+                    int result = FakeDrive.compare(field(a, fields[i]), field(b, fields[i]));
+                    if (result != 0) return descending[i] ? -result : result;
+                }
+                return 0;
+            }
+        });
+    }
+
+    // Responses
+
+    private Response json(int status, Object data) throws IOException {
+        return new Response(status, JSON_TYPE, jsonFactory.toByteArray(data));
+    }
+
+    /** File metadata response with the ETag of the file version */
+    private Response fileJson(File file) throws IOException {
+        Response response = json(200, file);
+        response.addHeader("ETag", etag(file));
+        return response;
+    }
+
+    private static String etag(File file) {
+        return "\"" + file.getVersion() + "\"";
+    }
+
+    private Response notFound(String id) throws IOException {
+        return error(404, "notFound", "File not found: " + id + ".");
+    }
+
+    private Response error(int status, String reason, String message) throws IOException {
+        Map<String, Object> item = new LinkedHashMap<>();
+        item.put("domain", status == 403 || status == 429 ? "usageLimits" : "global");
+        item.put("reason", reason);
+        item.put("message", message);
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("errors", Collections.singletonList(item));
+        error.put("code", status);
+        error.put("message", message);
+        return json(status, Collections.singletonMap("error", error));
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 204: return "No Content";
+            case 206: return "Partial Content";
+            case 308: return "Resume Incomplete";
+            case 400: return "Bad Request";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 409: return "Conflict";
+            case 416: return "Requested Range Not Satisfiable";
+            case 429: return "Too Many Requests";
+            case 500: return "Internal Server Error";
+            case 503: return "Service Unavailable";
+            default: return "Status " + status;
+        }
+    }
+
+    private class Response extends LowLevelHttpResponse {
+        final int status;
+        final String contentType;
+        final byte[] body;
+        final List<String[]> headers = new ArrayList<>();
+        long dropAfter = -1;
+
+        Response(int status, String contentType, byte[] body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+        }
+
+        void addHeader(String name, String value) {
+            headers.add(new String[]{name, value});
+        }
+
+        @Override
+        public InputStream getContent() {
+            return new ShapedInputStream(new ByteArrayInputStream(body), dropAfter);
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return null;
+        }
+
+        @Override
+        public long getContentLength() {
+            return body.length;
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public String getStatusLine() {
+            return "HTTP/1.1 " + status + " " + reason(status);
+        }
+
+        @Override
+        public int getStatusCode() {
+            return status;
+        }
+
+        @Override
+        public String getReasonPhrase() {
+            return reason(status);
+        }
+
+        @Override
+        public int getHeaderCount() {
+            return headers.size();
+        }
+
+        @Override
+        public String getHeaderName(int index) {
+            return headers.get(index)[0];
+        }
+
+        @Override
+        public String getHeaderValue(int index) {
+            return headers.get(index)[1];
+        }
+    }
+
+    /** Request body sink counting and shaping the bytes, fails after a limit to model a dropped connection */
+    private class ShapedOutputStream extends FilterOutputStream {
+        private long left;
+
+        ShapedOutputStream(OutputStream out, long dropAfter) {
+            super(out);
+            left = dropAfter < 0 ? Long.MAX_VALUE : dropAfter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = (int) Math.min(Math.min(len, SHAPING_CHUNK), left);
+                if (n <= 0) throw new IOException("Connection reset (injected)");
+                uplink.acquire(n);
+                out.write(b, off, n);
+                count(BYTES_IN, n);
+                left -= n;
+                off += n;
+                len -= n;
+            }
+        }
+    }
+
+    /**
+     * Response body counting and shaping the bytes, fails after a limit to model a dropped connection.
+     * Once closed, a read in progress in another thread fails like on a disconnected socket.
+     */
+    private class ShapedInputStream extends FilterInputStream {
+        private long left;
+        private volatile boolean closed;
+
+        ShapedInputStream(InputStream in, long dropAfter) {
+            super(in);
+            left = dropAfter < 0 ? Long.MAX_VALUE : dropAfter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (closed) throw new IOException("Socket closed");
+            if (left <= 0 && in.available() > 0) throw new IOException("Connection reset (injected)");
+            int n = in.read(b, off, (int) Math.min(Math.min(len, SHAPING_CHUNK), left));
+            if (n > 0) {
+                downlink.acquire(n);
+                if (closed) throw new IOException("Socket closed");
+                count(BYTES_OUT, n);
+                left -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            super.close();
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(n, SHAPING_CHUNK)];
+            int read = read(buffer, 0, buffer.length);
+            return read < 0 ? 0 : read;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Retry behaviour of {@link GoogleDriveREST} against scripted faults of {@link FakeDrive}
+ */
+public class GoogleDriveRESTTest {
+    private static final String MIME = "application/octet-stream";
+
+    private FakeDrive server;
+    private GoogleDriveREST drive;
+
+    @Before
+    public void setUp() {
+        GoogleDrive.setEnabled(true);
+        server = new FakeDrive();
+        drive = new GoogleDriveREST();
+        drive.init(null);
+        drive.setTransport(server, null);
+    }
+
+    @After
+    public void tearDown() {
+        drive.destroy();
+    }
+
+    @Test
+    public void deleteAllRetriesRateLimitedCalls() throws IOException {
+        List<String> ids = writeFiles(3);
+        server.addFault(FakeDrive.Fault.rateLimit("files.delete").times(2));
+
+        BulkResult result = drive.deleteAll(ids, true);
+
+        assertTrue(result.isSuccessful());
+        assertEquals(0, server.getFileCount());
+        assertEquals(2, server.getCounter(FakeDrive.FAULTS));
+        assertEquals(5, server.getCounter("files.delete"));
+        assertEquals(2, server.getCounter("batch"));
+    }
+
+    @Test
+    public void deleteAllRetriesServerErrors() throws IOException {
+        List<String> ids = writeFiles(3);
+        server.addFault(FakeDrive.Fault.status("files.delete", 503).times(1));
+
+        BulkResult result = drive.deleteAll(ids, true);
+
+        assertTrue(result.isSuccessful());
+        assertEquals(0, server.getFileCount());
+        assertEquals(1, server.getCounter(FakeDrive.FAULTS));
+        assertEquals(4, server.getCounter("files.delete"));
+        assertEquals(2, server.getCounter("batch"));
+    }
+
+    @Test
+    public void deleteTreeTakesSingleRequest() throws IOException {
+        String folder = drive.cd(null, "/tree");
+        writeFiles(3);
+        drive.cd(null, "/tree/sub");
+        writeFiles(2);
+
+        BulkResult result = drive.deleteTree(folder, true);
+
+        assertTrue(result.isSuccessful());
+        assertEquals(0, server.getFileCount());
+        assertEquals(1, server.getCounter("files.delete"));
+        assertEquals(0, server.getCounter("files.list"));
+    }
+
+    @Test
+    public void deleteTreeOpensFoldersOwnedByOthers() throws IOException {
+        String folder = drive.cd(null, "/shared");
+        List<String> ids = writeFiles(2);
+        String sub = drive.cd(null, "/shared/sub");
+        writeFiles(2);
+        server.setOwnedByOthers(folder);
+
+        BulkResult result = drive.deleteTree(folder, true);
+
+        assertEquals(1, result.getErrors().size());
+        assertTrue(result.getErrors().containsKey(0));
+        assertTrue(result.getIds().containsAll(ids));
+        assertTrue(result.getIds().contains(sub));
+        assertEquals(1, server.getFileCount());
+        assertEquals(1, server.getCounter("files.list"));
+    }
+
+    @Test
+    public void writeIsNotRepeatedOnServerError() throws IOException {
+        String id = writeFiles(1).get(0);
+        server.addFault(FakeDrive.Fault.status("upload.media", 503).times(1));
+
+        try {
+            drive.write(id, "f", MIME, new ByteArrayInputStream(new byte[] { 2 }));
+            fail("503 should be reported");
+        } catch (GoogleJsonResponseException e) {
+            assertEquals(503, e.getStatusCode());
+        }
+        assertEquals(1, server.getCounter("upload.media"));
+        assertArrayEquals(new byte[] { 1 }, server.getContent(id));
+    }
+
+    @Test
+    public void worksWithoutInit() throws IOException {
+        GoogleDriveREST plain = new GoogleDriveREST();
+        plain.setTransport(server, null);
+        try {
+            String id = plain.write(null, "f", MIME, new ByteArrayInputStream(new byte[] { 3 }));
+            InputStream inputStream = plain.openInputStream(id);
+            assertEquals(3, inputStream.read());
+            inputStream.close();
+        } finally {
+            plain.destroy();
+        }
+    }
+
+    @Test
+    public void conflictIsDetectedWithoutExtraRequests() throws IOException {
+        String id = writeFiles(1).get(0);
+        drive.setConflictResolver(ConflictResolver.REMOTE_WINS);
+        long gets = server.getCounter("files.get");
+        drive.openInputStream(id).close();
+
+        GoogleDriveREST other = new GoogleDriveREST();
+        other.setTransport(server, null);
+        try {
+            other.write(id, null, MIME, new ByteArrayInputStream(new byte[] { 2 }));
+        } finally {
+            other.destroy();
+        }
+
+        try {
+            drive.write(id, null, MIME, new ByteArrayInputStream(new byte[] { 3 }));
+            fail("Change made elsewhere should be detected");
+        } catch (ConflictException expected) {
+        }
+        assertArrayEquals(new byte[] { 2 }, server.getContent(id));
+        assertEquals(gets, server.getCounter("files.get"));
+    }
+
+    @Test
+    public void updateIsUnconditionalWhereIfMatchIsIgnored() throws IOException {
+        String id = writeFiles(1).get(0);
+        server.setIgnoreIfMatch(true);
+        drive.setConflictResolver(ConflictResolver.REMOTE_WINS);
+        drive.openInputStream(id).close();
+
+        GoogleDriveREST other = new GoogleDriveREST();
+        other.setTransport(server, null);
+        try {
+            other.write(id, null, MIME, new ByteArrayInputStream(new byte[] { 2 }));
+        } finally {
+            other.destroy();
+        }
+
+        drive.write(id, null, MIME, new ByteArrayInputStream(new byte[] { 3 }));
+        assertArrayEquals(new byte[] { 3 }, server.getContent(id));
+    }
+
+    @Test
+    public void streamedUploadIsSentAgainAfterDroppedChunk() throws IOException {
+        String id = writeFiles(1).get(0);
+        byte[] data = randomData(3 * 1024 * 1024);
+        server.addFault(FakeDrive.Fault.dropRequest("upload.chunk", 100 * 1024).times(1));
+
+        drive.review(id, null, null);
+        OutputStream outputStream = drive.openOutputStream(id);
+        outputStream.write(data);
+        outputStream.close();
+        drive.commit(id);
+
+        assertArrayEquals(data, server.getContent(id));
+        assertEquals(1, server.getCounter(FakeDrive.FAULTS));
+        assertEquals(2, server.getCounter("upload.resumable"));
+    }
+
+    @Test
+    public void uploadFromStreamFailsOnDroppedChunk() throws IOException {
+        String id = writeFiles(1).get(0);
+        server.addFault(FakeDrive.Fault.dropRequest("upload.chunk", 100 * 1024).times(1));
+
+        try {
+            drive.write(id, "f", MIME, new ByteArrayInputStream(randomData(3 * 1024 * 1024)));
+            fail("Dropped chunk should be reported");
+        } catch (IOException expected) {
+            // The stream can't be read again
+        }
+        assertEquals(1, server.getCounter("upload.resumable"));
+        assertEquals(1, server.getCounter("upload.chunk"));
+        assertArrayEquals(new byte[] { 1 }, server.getContent(id));
+    }
+
+    @Test
+    public void cancelAbortsResponseInFlight() throws IOException {
+        byte[] data = randomData(4 * 1024 * 1024);
+        String id = drive.write(null, "f", MIME, new ByteArrayInputStream(data));
+        server.setBandwidth(0, 1024 * 1024);
+        final CancellationToken token = new CancellationToken();
+        new Timer(true).schedule(new TimerTask() {
+            @Override
+            public void run() {
+                token.cancel();
+            }
+        }, 200);
+
+        // Reads of the plain stream don't check the token, only the disconnect of the response stops them
+        Transfer transfer = Transfer.begin(new TransferOptions().setCancellationToken(token));
+        long total = 0;
+        try {
+            InputStream inputStream = drive.openInputStream(id);
+            byte[] buffer = new byte[64 * 1024];
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) != -1) total += bytesRead;
+            fail("Download should be aborted");
+        } catch (IOException expected) {
+            assertTrue(total < data.length);
+        } finally {
+            transfer.end();
+        }
+    }
+
+    /** Write the files and reset the counters */
+    private List<String> writeFiles(int count) throws IOException {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ids.add(drive.write(null, "f" + i, MIME, new ByteArrayInputStream(new byte[] { 1 })));
+        }
+        server.resetCounters();
+        return ids;
+    }
+
+    private static byte[] randomData(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
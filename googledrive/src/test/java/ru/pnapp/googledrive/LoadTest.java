@@ -0,0 +1,296 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test driver: runs a {@link Scenario} in a number of concurrent {@link GoogleDriveREST} clients talking to a
+ * {@link FakeDrive} and reports throughput and latency percentiles of the iterations.
+ * <pre>
+ *   FakeDrive server = new FakeDrive();
+ *   server.setLatency(80, 40);
+ *   server.addFault(FakeDrive.Fault.status("upload", 503).probability(0.02));
+ *   LoadTest.Report report = new LoadTest(context, server)
+ *           .setClients(8)
+ *           .setIterations(50)
+ *           .setScenario(LoadTest.writeReadDelete(1024 * 1024))
+ *           .run();
+ *   Log.i(TAG, report.toString());
+ * </pre>
+ */
+public class LoadTest {
+    /** One measured unit of work */
+    public interface Scenario {
+        /**
+         * @param drive client connected to the fake server, working folder is private to the client
+         * @param client client number
+         * @param iteration iteration number
+         * @return number of payload bytes transferred
+         */
+        @WorkerThread
+        long run(@NonNull GoogleDrive drive, int client, int iteration) throws IOException;
+    }
+
+    /** Prepares a client before the measurement, e.g. sets parallelism or encryption */
+    public interface Configurator {
+        void configure(@NonNull GoogleDriveREST drive);
+    }
+
+    public static class Report {
+        public final int clients;
+        public final long iterations;
+        public final long failures;
+        public final long elapsedMs;
+        public final long bytes;
+        public final long p50Ms;
+        public final long p95Ms;
+        public final long p99Ms;
+        public final long maxMs;
+        /** Server side counters, see {@link FakeDrive#getCounters()} */
+        public final Map<String, Long> counters;
+        /** The first failure if any */
+        public final IOException firstFailure;
+
+        Report(int clients, long[] latencies, long failures, long elapsedMs, long bytes,
+               Map<String, Long> counters, IOException firstFailure) {
+            this.clients = clients;
+            this.iterations = latencies.length;
+            this.failures = failures;
+            this.elapsedMs = elapsedMs;
+            this.bytes = bytes;
+            this.counters = counters;
+            this.firstFailure = firstFailure;
+            Arrays.sort(latencies);
+            p50Ms = percentile(latencies, 50);
+            p95Ms = percentile(latencies, 95);
+            p99Ms = percentile(latencies, 99);
+            maxMs = latencies.length == 0 ? 0 : latencies[latencies.length - 1];
+        }
+
+        private static long percentile(long[] sorted, int percent) {
+            if (sorted.length == 0) return 0;
+            int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+
+        /** @return successful iterations per second */
+        public double getThroughput() {
+            return elapsedMs == 0 ? 0 : (iterations - failures) * 1000.0 / elapsedMs;
+        }
+
+        /** @return payload megabytes per second */
+        public double getMegabytesPerSecond() {
+            return elapsedMs == 0 ? 0 : bytes * 1000.0 / elapsedMs / (1024 * 1024);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d clients, %d iterations, %d failed in %d ms: %.1f ops/s, %.2f MB/s, " +
+                            "latency p50 %d ms, p95 %d ms, p99 %d ms, max %d ms; server %s",
+                    clients, iterations, failures, elapsedMs, getThroughput(), getMegabytesPerSecond(),
+                    p50Ms, p95Ms, p99Ms, maxMs, counters);
+        }
+    }
+
+    private final Context mContext;
+    private final FakeDrive server;
+    private int clients = 4;
+    private int iterations = 20;
+    private Scenario scenario = writeReadDelete(256 * 1024);
+    private Configurator configurator;
+
+    /**
+     * @param context context for the clients, used for temporary files, may be null
+     * @param server fake server to run against
+     */
+    public LoadTest(@Nullable Context context, @NonNull FakeDrive server) {
+        mContext = context;
+        this.server = server;
+    }
+
+    public LoadTest setClients(int clients) {
+        this.clients = Math.max(1, clients);
+        return this;
+    }
+
+    /** @param iterations number of iterations each client runs */
+    public LoadTest setIterations(int iterations) {
+        this.iterations = Math.max(1, iterations);
+        return this;
+    }
+
+    public LoadTest setScenario(@NonNull Scenario scenario) {
+        this.scenario = scenario;
+        return this;
+    }
+
+    public LoadTest setConfigurator(@Nullable Configurator configurator) {
+        this.configurator = configurator;
+        return this;
+    }
+
+    /**
+     * Run the scenario in all the clients at once. Failed iterations are counted and measured too,
+     * the server counters are reset at start.
+     */
+    @WorkerThread @NonNull
+    public Report run() throws IOException, InterruptedException {
+        GoogleDrive.setEnabled(true);
+        final GoogleDriveREST[] drives = new GoogleDriveREST[clients];
+        for (int i = 0; i < clients; i++) {
+            drives[i] = new GoogleDriveREST();
+            drives[i].init(mContext);
+            drives[i].setTransport(server, null);
+            if (configurator != null) configurator.configure(drives[i]);
+            drives[i].cd(null, "/LoadTest/client" + i);
+        }
+
+        server.resetCounters();
+        final long[] latencies = new long[clients * iterations];
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final IOException[] firstFailure = new IOException[1];
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(clients);
+
+        for (int i = 0; i < clients; i++) {
+            final int client = i;
+            Thread thread = new Thread("LoadTest-" + i) {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int iteration = 0; iteration < iterations; iteration++) {
+                            long begin = System.nanoTime();
+                            try {
+                                bytes.addAndGet(scenario.run(drives[client], client, iteration));
+                            } catch (IOException e) {
+                                failures.incrementAndGet();
+                                synchronized (firstFailure) {
+                                    if (firstFailure[0] == null) firstFailure[0] = e;
+                                }
+                            }
+                            latencies[client * iterations + iteration] = (System.nanoTime() - begin) / 1000000L;
+                        }
+                    } catch (InterruptedException ignore) {
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        try {
+            done.await();
+        } finally {
+            for (GoogleDriveREST drive : drives) drive.destroy();
+        }
+        long elapsed = (System.nanoTime() - begin) / 1000000L;
+
+        return new Report(clients, latencies, failures.get(), elapsed, bytes.get(), server.getCounters(), firstFailure[0]);
+    }
+
+    /** Write a file of the given size, read it back comparing the data, then delete it */
+    public static Scenario writeReadDelete(final int size) {
+        return new Scenario() {
+            @Override
+            public long run(@NonNull GoogleDrive drive, int client, int iteration) throws IOException {
+                byte[] data = randomData(size, client * 31L + iteration);
+                String id = drive.write(null, "file" + iteration, "application/octet-stream", new ByteArrayInputStream(data));
+                verify(drive, id, data);
+                drive.delete(id);
+                return 2L * size;
+            }
+        };
+    }
+
+    /** Write a file with {@link GoogleDrive#openOutputStream(String)} and read it back, the file is kept */
+    public static Scenario streamWriteRead(final int size) {
+        return new Scenario() {
+            @Override
+            public long run(@NonNull GoogleDrive drive, int client, int iteration) throws IOException {
+                byte[] data = randomData(size, client * 31L + iteration);
+                String id = drive.review(null, "stream" + iteration, "application/octet-stream");
+                OutputStream outputStream = drive.openOutputStream(id);
+                try {
+                    outputStream.write(data);
+                } finally {
+                    outputStream.close();
+                }
+                drive.commit(id);
+                verify(drive, id, data);
+                return 2L * size;
+            }
+        };
+    }
+
+    /** List the working folder, the metadata only load */
+    public static Scenario list() {
+        return new Scenario() {
+            @Override
+            public long run(@NonNull GoogleDrive drive, int client, int iteration) throws IOException {
+                List<String> ids = drive.ls();
+                return ids.size();
+            }
+        };
+    }
+
+    private static byte[] randomData(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static void verify(GoogleDrive drive, String id, byte[] expected) throws IOException {
+        InputStream inputStream = drive.openInputStream(id);
+        try {
+            byte[] buffer = new byte[8192];
+            int position = 0;
+            int n;
+            while ((n = inputStream.read(buffer)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    if (position >= expected.length || buffer[i] != expected[position++]) {
+                        throw new IOException("Data read back doesn't match at " + (position - 1));
+                    }
+                }
+            }
+            if (position != expected.length) throw new IOException("Read " + position + " of " + expected.length + " bytes");
+        } finally {
+            inputStream.close();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * {@link ChangeReceiver} listening for notifications on a loopback port, a stand-in of the webhook endpoint for
+ * tests with FakeDrive. Each request is answered with 200 and its headers are passed to the callback.
+ */
+public class LocalChangeReceiver implements ChangeReceiver {
+    private static final String TAG = "LocalChangeReceiver";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int READ_TIMEOUT_MS = 5000;
+    private static final byte[] RESPONSE = "HTTP/1.1 200 OK\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(ASCII);
+
+    private ServerSocket serverSocket;
+
+    @Override @NonNull
+    synchronized public String open(@NonNull final Callback callback) throws IOException {
+        if (serverSocket != null) throw new IOException("Receiver is open already");
+        final ServerSocket socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        serverSocket = socket;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!socket.isClosed()) {
+                    try {
+                        receive(socket.accept(), callback);
+                    } catch (IOException e) {
+                        if (!socket.isClosed()) Log.w(TAG, "Notification dropped", e);
+                    }
+                }
+            }
+        }, "LocalChangeReceiver");
+        thread.setDaemon(true);
+        thread.start();
+        return "http://127.0.0.1:" + socket.getLocalPort() + "/notifications";
+    }
+
+    /** Read the request headers, skip the body and answer before the callback runs */
+    private static void receive(Socket socket, Callback callback) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        try {
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), ASCII));
+            String line = reader.readLine();
+            if (line == null || !line.startsWith("POST ")) return;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0) headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+            }
+            String length = headers.get("content-length");
+            if (length != null) {
+                try {
+                    reader.skip(Long.parseLong(length));
+                } catch (NumberFormatException | SocketTimeoutException e) {
+                    // The body carries nothing we need
+                }
+            }
+            OutputStream out = socket.getOutputStream();
+            out.write(RESPONSE);
+            out.flush();
+        } finally {
+            socket.close();
+        }
+        callback.onNotification(headers.get("x-goog-channel-id"), headers.get("x-goog-channel-token"),
+                headers.get("x-goog-resource-state"));
+    }
+
+    @Override
+    synchronized public void close() {
+        if (serverSocket == null) return;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Close fails", e);
+        }
+        serverSocket = null;
+    }
+}
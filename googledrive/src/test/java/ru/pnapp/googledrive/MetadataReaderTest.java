@@ -0,0 +1,227 @@
+/*
+ *  Copyright 2016 P.N.Alekseev <pnaleks@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.pnapp.googledrive;
+
+import com.google.api.client.json.JsonObjectParser;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.FileList;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Decoding of the file metadata by {@link MetadataReader}, checked against the values the Drive client would produce
+ */
+public class MetadataReaderTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final MetadataReader reader = new MetadataReader(GsonFactory.getDefaultInstance());
+
+    @Test
+    public void readsAllFields() throws IOException {
+        reader.readFile(json("{\"id\": \"a1\", \"name\": \"n\", \"mimeType\": \"text/plain\", \"parents\": [\"p1\", \"p2\"],"
+                + " \"size\": \"12345678901\", \"md5Checksum\": \"abc\", \"modifiedTime\": \"2016-10-19T10:11:12.345Z\","
+                + " \"trashed\": true}"), UTF8);
+
+        assertEquals("a1", reader.id);
+        assertEquals("n", reader.name);
+        assertEquals("text/plain", reader.mimeType);
+        assertEquals("p1", reader.parent);
+        assertEquals(12345678901L, reader.size);
+        assertEquals("abc", reader.md5);
+        assertEquals(DateTime.parseRfc3339("2016-10-19T10:11:12.345Z").getValue(), reader.modifiedTime);
+        assertTrue(reader.trashed);
+    }
+
+    @Test
+    public void decodesEscapes() throws IOException {
+        reader.readFile(json("{\"name\": \"q\\\"b\\\\s\\/t\\tn\\nr\\rf\\fb\\bu\\u00e9\\u0041\"}"), UTF8);
+
+        assertEquals("q\"b\\s/t\tn\nr\rf\fb\buéA", reader.name);
+    }
+
+    @Test
+    public void decodesMultiByteCharacters() throws IOException {
+        reader.readFile(json("{\"name\": \"Прé € 😀\"}"), UTF8);
+
+        assertEquals("Прé € 😀", reader.name);
+    }
+
+    @Test
+    public void decodesEscapedSurrogatePairs() throws IOException {
+        reader.readFile(json("{\"name\": \"x\\ud83d\\ude00y\"}"), UTF8);
+
+        assertEquals("x😀y", reader.name);
+    }
+
+    @Test
+    public void readsNulls() throws IOException {
+        reader.readFile(json("{\"id\": \"a\", \"name\": null, \"md5Checksum\": null, \"size\": null, \"parents\": null,"
+                + " \"modifiedTime\": null, \"trashed\": null}"), UTF8);
+
+        assertEquals("a", reader.id);
+        assertNull(reader.name);
+        assertNull(reader.md5);
+        assertNull(reader.parent);
+        assertEquals(-1, reader.size);
+        assertEquals(0, reader.modifiedTime);
+        assertFalse(reader.trashed);
+    }
+
+    @Test
+    public void parsesTimeOffsets() throws IOException {
+        String[] times = {
+                "1970-01-01T00:00:00Z",
+                "1969-12-31T23:59:59.999Z",
+                "2016-02-29T23:59:58.7+03:00",
+                "2000-03-01T00:00:00-05:30",
+                "2038-01-19T03:14:07.123456Z",
+                "1600-02-29T12:00:00+14:00",
+        };
+        for (String time : times) {
+            assertEquals(time, DateTime.parseRfc3339(time).getValue(), MetadataReader.parseTime(time));
+        }
+    }
+
+    @Test
+    public void listsFilesSkippingUnknownValues() throws IOException {
+        final List<String> visited = new ArrayList<>();
+        String pageToken = reader.readList(json("{\"kind\": \"drive#fileList\", \"incompleteSearch\": false, \"files\": ["
+                + "{\"id\": \"a\", \"extra\": {\"x\": [1, 2.5e3, {\"y\": \"}]\\\"\"}], \"z\": null}, \"name\": \"na\"},"
+                + " {\"id\": \"b\", \"parents\": []}, {}], \"nextPageToken\": \"token\"}"), UTF8,
+                new MetadataReader.Visitor() {
+            @Override
+            public void visit(MetadataReader file) {
+                visited.add(file.id + ":" + file.name + ":" + file.parent);
+            }
+        });
+
+        assertEquals("token", pageToken);
+        assertEquals(3, visited.size());
+        assertEquals("a:na:null", visited.get(0));
+        assertEquals("b:null:null", visited.get(1));
+        assertEquals("null:null:null", visited.get(2));
+    }
+
+    @Test
+    public void readsEmptyList() throws IOException {
+        String pageToken = reader.readList(json("{\"files\": []}"), UTF8, new MetadataReader.Visitor() {
+            @Override
+            public void visit(MetadataReader file) {
+                fail("No files expected");
+            }
+        });
+
+        assertNull(pageToken);
+    }
+
+    @Test
+    public void readsLargeResponses() throws IOException {
+        StringBuilder builder = new StringBuilder("{\"files\": [");
+        for (int i = 0; i < 2000; i++) {
+            if (i > 0) builder.append(',');
+            builder.append("{\"id\": \"").append(i).append("\", \"name\": \"é").append(i).append("\"}");
+        }
+        builder.append("]}");
+        final int[] count = new int[1];
+        reader.readList(json(builder.toString()), UTF8, new MetadataReader.Visitor() {
+            @Override
+            public void visit(MetadataReader file) {
+                assertEquals("é" + file.id, file.name);
+                count[0]++;
+            }
+        });
+
+        assertEquals(2000, count[0]);
+    }
+
+    @Test
+    public void rejectsMalformedMetadata() {
+        String[] malformed = {
+                "{\"id\": \"a\"",
+                "{\"name\": \"unterminated}",
+                "{\"size\": \"12x\"}",
+                "{\"modifiedTime\": \"2016-10-19 10:11:12Z\"}",
+                "[]",
+        };
+        for (String text : malformed) {
+            try {
+                reader.readFile(json(text), UTF8);
+                fail("Accepted " + text);
+            } catch (IOException expected) {
+                // Reported as an I/O error like the other failures of a response
+            }
+        }
+    }
+
+    @Test
+    public void allocatesLessThanTheDriveModel() throws IOException {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        StringBuilder builder = new StringBuilder("{\"nextPageToken\": \"token\", \"files\": [");
+        for (int i = 0; i < 100; i++) {
+            if (i > 0) builder.append(',');
+            builder.append("{\"id\": \"0B1x").append(i).append("\", \"name\": \"photo").append(i)
+                    .append(".jpg\", \"mimeType\": \"image/jpeg\", \"parents\": [\"0Bparent\"], \"size\": \"")
+                    .append(1000 + i).append("\", \"md5Checksum\": \"d41d8cd98f00b204e9800998ecf8427e\",")
+                    .append(" \"modifiedTime\": \"2016-10-19T10:11:12.345Z\"}");
+        }
+        byte[] page = builder.append("]}").toString().getBytes(UTF8);
+        MetadataReader.Visitor visitor = new MetadataReader.Visitor() {
+            @Override
+            public void visit(MetadataReader file) {
+            }
+        };
+        JsonObjectParser model = GsonFactory.getDefaultInstance().createJsonObjectParser();
+        long readerBytes = Long.MAX_VALUE;
+        long modelBytes = Long.MAX_VALUE;
+        // Several rounds so that class loading and the first-use caches of either path don't count
+        for (int round = 0; round < 5; round++) {
+            long start = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            reader.readList(new ByteArrayInputStream(page), UTF8, visitor);
+            long middle = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            model.parseAndClose(new ByteArrayInputStream(page), UTF8, FileList.class);
+            long end = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            readerBytes = Math.min(readerBytes, middle - start);
+            modelBytes = Math.min(modelBytes, end - middle);
+        }
+
+        assertTrue("reader " + readerBytes + " B, model " + modelBytes + " B", readerBytes < modelBytes);
+    }
+
+    private static InputStream json(String text) {
+        return new ByteArrayInputStream(text.getBytes(UTF8));
+    }
+}